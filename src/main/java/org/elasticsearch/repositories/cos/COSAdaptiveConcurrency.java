@@ -0,0 +1,209 @@
+package org.elasticsearch.repositories.cos;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.core.Nullable;
+import org.elasticsearch.repositories.cos.COSRequestScheduler.RequestClass;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Adapts how many data requests the {@link COSRequestScheduler} runs at a time to what the link and COS sustain, since the best limit
+ * differs a lot between a cluster in the region of its bucket and one that backs up across regions. Reads and bulk requests (mainly
+ * part uploads) have a limit each, which starts at the minimum and is adjusted once per round, a round lasting at least
+ * {@link #ROUND_NANOS} and as many requests as the limit:
+ * <ul>
+ *     <li>a request COS throttled cuts the limit by {@link #DECREASE_FACTOR} right away, at most once per round, and so do more than
+ *     {@link #MAX_ERROR_RATE} of the requests of a round failing with server or network errors;</li>
+ *     <li>a round that used up the limit raises it, doubling while it starts up and by one afterwards, unless the raise before did not
+ *     increase the goodput, the bytes per second of completed transfers, by at least {@link #MIN_GAIN}, in which case that raise is
+ *     taken back and the limit grows by one at a time from then on;</li>
+ *     <li>a round that did not use up the limit leaves it as it is, it tells nothing about a higher limit.</li>
+ * </ul>
+ * The bytes of a download are only known once it completed, the limit of reads covers the requests that open downloads.
+ */
+final class COSAdaptiveConcurrency {
+
+    private static final Logger logger = LogManager.getLogger(COSAdaptiveConcurrency.class);
+
+    static final long ROUND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    static final double DECREASE_FACTOR = 0.7;
+
+    static final double MIN_GAIN = 0.05;
+
+    static final double MAX_ERROR_RATE = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final LongSupplier nanoTime;
+    private final Map<RequestClass, Limit> limits = new EnumMap<>(RequestClass.class);
+
+    COSAdaptiveConcurrency(int minLimit, int maxLimit, LongSupplier nanoTime) {
+        this.minLimit = minLimit;
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        this.nanoTime = nanoTime;
+        final long now = nanoTime.getAsLong();
+        limits.put(RequestClass.READS, new Limit(minLimit, now));
+        limits.put(RequestClass.BULK, new Limit(minLimit, now));
+    }
+
+    /**
+     * Returns the current limit of the given class of requests, or {@link Integer#MAX_VALUE} if it is not adapted.
+     */
+    synchronized int limit(RequestClass requestClass) {
+        final Limit limit = limits.get(requestClass);
+        return limit == null ? Integer.MAX_VALUE : limit.value;
+    }
+
+    /**
+     * Records a completed attempt of a request.
+     *
+     * @param bytes     the bytes the request sent
+     * @param failure   the failure of the attempt, if it failed
+     * @param saturated whether the limit of its class was used up or requests of its class were queued when it completed
+     * @return whether the limit was raised, so that queued requests may be admitted
+     */
+    synchronized boolean onCompleted(RequestClass requestClass, long bytes, @Nullable Exception failure, boolean saturated) {
+        final Limit limit = limits.get(requestClass);
+        if (limit == null) {
+            return false;
+        }
+        final long now = nanoTime.getAsLong();
+        limit.roundRequests++;
+        limit.roundBytes += bytes;
+        limit.roundSaturated |= saturated;
+        if (failure != null) {
+            if (COSRetryPolicy.isRejected(failure)) {
+                limit.throttled++;
+                if (now - limit.lastCutNanos >= ROUND_NANOS) {
+                    limit.cutsThrottled++;
+                    cut(requestClass, limit, now, "throttled");
+                }
+                return false;
+            }
+            if (COSEndpoints.isEndpointFailure(failure)) {
+                limit.roundFailures++;
+            }
+        }
+        if (now - limit.roundStartNanos < ROUND_NANOS || limit.roundRequests < limit.value) {
+            return false;
+        }
+        return endRound(requestClass, limit, now);
+    }
+
+    /**
+     * Records the bytes of a completed download.
+     */
+    synchronized void onTransfer(RequestClass requestClass, long bytes) {
+        final Limit limit = limits.get(requestClass);
+        if (limit != null) {
+            limit.roundBytes += bytes;
+        }
+    }
+
+    private boolean endRound(RequestClass requestClass, Limit limit, long now) {
+        final double goodput = limit.roundBytes * (double) TimeUnit.SECONDS.toNanos(1) / (now - limit.roundStartNanos);
+        boolean raised = false;
+        if (limit.roundFailures > limit.roundRequests * MAX_ERROR_RATE) {
+            limit.cutsErrors++;
+            cut(requestClass, limit, now, "failing");
+        } else {
+            if (limit.roundSaturated) {
+                if (limit.raised && goodput < limit.goodput * (1.0 + MIN_GAIN)) {
+                    // the last raise bought nothing, more requests at a time would only queue up at COS or on the link
+                    limit.takenBack++;
+                    adjust(requestClass, limit, limit.previousValue, "no gain");
+                    limit.slowStart = false;
+                    limit.raised = false;
+                } else if (limit.value < maxLimit) {
+                    limit.raises++;
+                    limit.previousValue = limit.value;
+                    adjust(requestClass, limit, Math.min(maxLimit, limit.slowStart ? 2 * limit.value : limit.value + 1), "saturated");
+                    limit.raised = true;
+                    raised = true;
+                }
+            } else {
+                limit.raised = false;
+            }
+            limit.goodput = goodput;
+            limit.startRound(now);
+        }
+        return raised;
+    }
+
+    private void cut(RequestClass requestClass, Limit limit, long now, String reason) {
+        adjust(requestClass, limit, Math.max(minLimit, (int) (limit.value * DECREASE_FACTOR)), reason);
+        limit.slowStart = false;
+        limit.raised = false;
+        limit.lastCutNanos = now;
+        limit.startRound(now);
+    }
+
+    private static void adjust(RequestClass requestClass, Limit limit, int value, String reason) {
+        if (value != limit.value) {
+            logger.debug("adjusting the concurrency of [{}] requests from [{}] to [{}]: {}",
+                    requestClass.name().toLowerCase(Locale.ROOT), limit.value, value, reason);
+            limit.value = value;
+        }
+    }
+
+    synchronized void addStats(Map<String, Long> stats) {
+        for (Map.Entry<RequestClass, Limit> entry : limits.entrySet()) {
+            final String prefix = "adaptive_concurrency." + entry.getKey().name().toLowerCase(Locale.ROOT) + ".";
+            final Limit limit = entry.getValue();
+            stats.put(prefix + "limit", (long) limit.value);
+            stats.put(prefix + "goodput_bytes_per_second", (long) limit.goodput);
+            stats.put(prefix + "throttled", limit.throttled);
+            stats.put(prefix + "raises", limit.raises);
+            stats.put(prefix + "taken_back", limit.takenBack);
+            stats.put(prefix + "cuts_throttled", limit.cutsThrottled);
+            stats.put(prefix + "cuts_failing", limit.cutsErrors);
+        }
+    }
+
+    /**
+     * The limit of a class of requests, guarded by the controller.
+     */
+    private static final class Limit {
+        private int value;
+        private int previousValue;
+        private boolean slowStart = true;
+        // whether the current round runs with a limit the previous round raised
+        private boolean raised;
+        // the goodput of the previous round
+        private double goodput;
+        private long lastCutNanos;
+
+        private long roundStartNanos;
+        private long roundRequests;
+        private long roundFailures;
+        private long roundBytes;
+        private boolean roundSaturated;
+
+        private long throttled;
+        private long raises;
+        private long takenBack;
+        private long cutsThrottled;
+        private long cutsErrors;
+
+        Limit(int value, long nowNanos) {
+            this.value = value;
+            this.previousValue = value;
+            this.lastCutNanos = nowNanos - ROUND_NANOS;
+            startRound(nowNanos);
+        }
+
+        void startRound(long nowNanos) {
+            roundStartNanos = nowNanos;
+            roundRequests = 0L;
+            roundFailures = 0L;
+            roundBytes = 0L;
+            roundSaturated = false;
+        }
+    }
+}
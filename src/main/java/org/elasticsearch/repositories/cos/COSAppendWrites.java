@@ -0,0 +1,73 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes streamed metadata blobs that outgrow a single buffer as COS appendable objects instead of multipart uploads. The blob is
+ * sent as a sequence of {@code AppendObject} requests of a small buffer each, so a writer holds at most that buffer instead of a full
+ * multipart part, and there is no upload to initiate, complete or abort:
+ * <ul>
+ *     <li>a blob that fits into the buffer is still written with a single {@code PutObject};</li>
+ *     <li>a larger blob is appended to a fresh temporary key below {@link #FOLDER_NAME} and published to its key with a single
+ *     {@code CopyObject}, so that neither a partial blob is ever visible under its key nor a failed write destroys the blob it was
+ *     meant to replace;</li>
+ *     <li>the temporary keys of published blobs are deleted in batches of up to {@link COSBlobStore#MAX_BULK_DELETES} keys per
+ *     {@code DeleteObjects}, and when the store closes, so a write costs its appends and one copy.</li>
+ * </ul>
+ * Appendable objects are limited to 5GB and not supported in buckets with versioning enabled.
+ */
+final class COSAppendWrites {
+
+    /**
+     * The folder below the base path of the repository that holds the temporary keys of atomic writes. Keys of writes that were
+     * interrupted by a crash stay behind here and are best expired by a lifecycle rule.
+     */
+    static final String FOLDER_NAME = "append-tmp";
+
+    private final long bufferSize;
+    private final BlobPath temporaryPath;
+    // temporary keys of published blobs that are not deleted yet, guarded by this
+    private final List<String> published = new ArrayList<>();
+
+    COSAppendWrites(ByteSizeValue bufferSize, BlobPath temporaryPath) {
+        this.bufferSize = bufferSize.getBytes();
+        this.temporaryPath = temporaryPath;
+    }
+
+    /**
+     * The size of the buffer each append sends.
+     */
+    long bufferSizeInBytes() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a fresh temporary key to append a blob to.
+     */
+    String temporaryKey() {
+        return temporaryPath.buildAsString() + UUIDs.randomBase64UUID();
+    }
+
+    /**
+     * Records the temporary key of a blob that was published and returns the temporary keys to delete now, once a full batch of them
+     * was collected, or an empty list.
+     */
+    synchronized List<String> onPublished(String temporaryKey) {
+        published.add(temporaryKey);
+        return published.size() >= COSBlobStore.MAX_BULK_DELETES ? drainPublished() : List.of();
+    }
+
+    /**
+     * Returns and forgets the temporary keys of all published blobs that are not deleted yet.
+     */
+    synchronized List<String> drainPublished() {
+        final List<String> keys = List.copyOf(published);
+        published.clear();
+        return keys;
+    }
+}
@@ -1,40 +1,44 @@
 package org.elasticsearch.repositories.cos;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.NoSuchFileException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import com.qcloud.cos.exception.MultiObjectDeleteException;
+import com.qcloud.cos.COSClient;
 import com.qcloud.cos.internal.CosServiceRequest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.SetOnce;
-import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.CheckedSupplier;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.blobstore.*;
 import org.elasticsearch.common.blobstore.support.AbstractBlobContainer;
 import org.elasticsearch.common.blobstore.support.BlobMetadata;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.collect.Iterators;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
 
 import com.qcloud.cos.exception.CosClientException;
 import com.qcloud.cos.exception.CosServiceException;
 import com.qcloud.cos.model.*;
-import org.elasticsearch.common.unit.ByteSizeUnit;
-import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.core.CheckedConsumer;
 import org.elasticsearch.core.Nullable;
 import org.elasticsearch.core.Tuple;
 import org.elasticsearch.repositories.blobstore.ChunkedBlobOutputStream;
+import org.elasticsearch.repositories.cos.COSBlobStore.Operation;
 
 import static org.elasticsearch.repositories.cos.COSRepository.*;
 
@@ -45,7 +49,12 @@ public class COSBlobContainer extends AbstractBlobContainer {
     
     private static final Logger logger = LogManager.getLogger(COSBlobContainer.class);
 
-    private static final int MAX_BULK_DELETES = 1000;
+
+
+    /**
+     * The maximum number of parts of a multipart upload.
+     */
+    private static final long MAX_PARTS = 10_000L;
     protected final COSBlobStore blobStore;
     protected final String keyPath;
 
@@ -58,7 +67,8 @@ public class COSBlobContainer extends AbstractBlobContainer {
     @Override
     public boolean blobExists(OperationPurpose purpose, String blobName) {
         try {
-            return SocketAccess.doPrivileged(() -> blobStore.client().doesObjectExist(blobStore.bucket(), buildKey(blobName)));
+            final String key = buildKey(blobName);
+            return blobStore.execute(Operation.HEAD_OBJECT, purpose, key, client -> client.doesObjectExist(blobStore.bucket(key), key));
         } catch (final Exception e) {
             throw new BlobStoreException("Failed to check if blob [" + blobName + "] exists", e);
         }
@@ -66,8 +76,24 @@ public class COSBlobContainer extends AbstractBlobContainer {
 
     @Override
     public InputStream readBlob(OperationPurpose purpose, String blobName) throws IOException {
+        final COSReadOnlyCache readOnlyCache = blobStore.readOnlyCache();
+        if (readOnlyCache != null) {
+            final String key = buildKey(blobName);
+            if (blobName.equals(INDEX_LATEST_BLOB)) {
+                return decrypt(key, readOnlyCache.readLatestIndex(eTag -> getIfChanged(purpose, key, eTag)).streamInput());
+            }
+            if (COSReadOnlyCache.isImmutableMetadata(purpose, blobName)) {
+                return readOnlyCache.readImmutable(key, () -> readUncached(purpose, blobName));
+            }
+        }
+        return readUncached(purpose, blobName);
+    }
+
+    private InputStream readUncached(OperationPurpose purpose, String blobName) throws IOException {
+        final String key = buildKey(blobName);
+        final InputStream stream;
         try {
-            return new CosRetryingInputStream(blobStore, buildKey(blobName));
+            stream = new CosRetryingInputStream(purpose, blobStore, key);
         } catch (CosClientException e) {
             if (e instanceof CosServiceException) {
                 if (404 == ((CosServiceException) e).getStatusCode()) {
@@ -76,8 +102,60 @@ public class COSBlobContainer extends AbstractBlobContainer {
             }
             throw e;
         }
+        return decrypt(key, stream);
     }
-    
+
+    /**
+     * Wraps the stream of the stored blob with the given key into one that decrypts it, if blobs are encrypted.
+     */
+    private InputStream decrypt(String key, InputStream stream) throws IOException {
+        final COSEncryption encryption = blobStore.encryption();
+        if (encryption == null) {
+            return stream;
+        }
+        boolean success = false;
+        try {
+            final InputStream decrypted = encryption.decrypt(key, stream);
+            success = true;
+            return decrypted;
+        } finally {
+            if (success == false) {
+                IOUtils.closeWhileHandlingException(stream);
+            }
+        }
+    }
+
+    /**
+     * Reads the whole blob with the given key unless its ETag still is the given one, in which case {@code null} is returned.
+     *
+     * @return the ETag and stored content of the blob, or {@code null} if it was not modified
+     */
+    @Nullable
+    private Tuple<String, BytesReference> getIfChanged(OperationPurpose purpose, String key, @Nullable String eTag) throws IOException {
+        try {
+            final COSObject cosObject = blobStore.execute(Operation.GET_OBJECT, purpose, key, client -> {
+                final GetObjectRequest request = new GetObjectRequest(blobStore.bucket(key), key);
+                setRequestHeader(request);
+                if (eTag != null) {
+                    request.setNonmatchingETagConstraints(List.of(eTag));
+                }
+                // the client answers a 304 with no object
+                return client.getObject(request);
+            });
+            if (cosObject == null) {
+                return null;
+            }
+            try (InputStream stream = cosObject.getObjectContent()) {
+                return Tuple.tuple(cosObject.getObjectMetadata().getETag(), new BytesArray(stream.readAllBytes()));
+            }
+        } catch (CosServiceException e) {
+            if (e.getStatusCode() == 404) {
+                throw new NoSuchFileException("Blob object [" + key + "] not found: " + e.getMessage());
+            }
+            throw e;
+        }
+    }
+
     @Override
     public InputStream readBlob(OperationPurpose purpose, String blobName, long position, long length) throws IOException {
         if (position < 0L) {
@@ -88,15 +166,71 @@ public class COSBlobContainer extends AbstractBlobContainer {
         }
         if (length == 0) {
             return new ByteArrayInputStream(new byte[0]);
+        }
+        final COSEncryption encryption = blobStore.encryption();
+        if (encryption == null) {
+            return readRawRange(purpose, buildKey(blobName), position, length);
+        }
+        return readDecryptedRange(purpose, encryption, buildKey(blobName), position, length);
+    }
+
+    private InputStream readRawRange(OperationPurpose purpose, String blobKey, long position, long length) throws IOException {
+        if (blobStore.readCoalescer().accepts(length)) {
+            return blobStore.readCoalescer().read(purpose, blobKey, position, Math.toIntExact(length), this::readRange);
         } else {
-            return new CosRetryingInputStream(blobStore, buildKey(blobName), position, Math.addExact(position, length - 1));
+            return new CosRetryingInputStream(purpose, blobStore, blobKey, position, Math.addExact(position, length - 1));
+        }
+    }
+
+    /**
+     * Reads a range of an encrypted blob by fetching only the frames that hold it, plus the header unless it is cached already or
+     * the range starts in the first frame anyway.
+     */
+    private InputStream readDecryptedRange(OperationPurpose purpose, COSEncryption encryption, String blobKey, long position, long length)
+            throws IOException {
+        final long firstFrame = position / COSEncryption.FRAME_SIZE;
+        final long lastFrame = (Math.addExact(position, length) - 1) / COSEncryption.FRAME_SIZE;
+        final long end = COSEncryption.frameOffset(lastFrame + 1);
+        COSEncryption.Header header = encryption.cachedHeader(blobKey);
+        if (header == null && firstFrame > 0) {
+            try (InputStream headerStream = readRawRange(purpose, blobKey, 0L, COSEncryption.HEADER_LENGTH)) {
+                header = encryption.readHeader(headerStream);
+            }
+            encryption.cacheHeader(blobKey, header);
+        }
+        final long start = header == null ? 0L : COSEncryption.frameOffset(firstFrame);
+        final InputStream stream = readRawRange(purpose, blobKey, start, end - start);
+        boolean success = false;
+        try {
+            if (header == null) {
+                header = encryption.readHeader(stream);
+                encryption.cacheHeader(blobKey, header);
+            }
+            final InputStream decrypted = encryption.decryptFrames(header, stream, firstFrame,
+                    position - firstFrame * COSEncryption.FRAME_SIZE);
+            success = true;
+            return Streams.limitStream(decrypted, length);
+        } finally {
+            if (success == false) {
+                IOUtils.closeWhileHandlingException(stream);
+            }
+        }
+    }
+
+    private byte[] readRange(OperationPurpose purpose, String blobKey, long start, long endInclusive) throws IOException {
+        final long length = endInclusive - start + 1;
+        final COSBufferBudget.Reservation reservation = blobStore.bufferBudget().reserve(length, length);
+        try (InputStream stream = new CosRetryingInputStream(purpose, blobStore, blobKey, start, endInclusive)) {
+            return stream.readAllBytes();
+        } finally {
+            reservation.close();
         }
     }
     
     @Override
     public long readBlobPreferredLength() {
         // This container returns streams that must be fully consumed, so we tell consumers to make bounded requests.
-        return new ByteSizeValue(32, ByteSizeUnit.MB).getBytes();
+        return blobStore.readLength().preferredLength();
     }
     
     /**
@@ -104,19 +238,50 @@ public class COSBlobContainer extends AbstractBlobContainer {
      */
     @Override
     public void writeBlob(OperationPurpose purpose, String blobName, InputStream inputStream, long blobSize, boolean failIfAlreadyExists) throws IOException {
+        final String blobKey = buildKey(blobName);
+        final COSEncryption encryption = blobStore.encryption();
+        if (encryption == null) {
+            putBlob(purpose, blobKey, inputStream, blobSize);
+        } else {
+            encryption.invalidate(blobKey);
+            putBlob(purpose, blobKey, encryption.encrypt(inputStream, blobSize), COSEncryption.encryptedLength(blobSize));
+        }
+    }
+
+    private void putBlob(OperationPurpose purpose, String blobKey, InputStream inputStream, long blobSize) throws IOException {
         SocketAccess.doPrivilegedIOException(() -> {
             if (blobSize <= getLargeBlobThresholdInBytes()) {
-                executeSingleUpload(blobStore, buildKey(blobName), inputStream, blobSize);
+                executeSingleUpload(purpose, blobStore, blobKey, inputStream, blobSize);
             } else {
-                executeMultipartUpload(blobStore, buildKey(blobName), inputStream, blobSize);
+                executeMultipartUpload(purpose, blobStore, blobKey, inputStream, blobSize);
             }
             return null;
         });
     }
 
+    /**
+     * Uploads the pages backing {@code bytes} directly instead of going through {@link BytesReference#streamInput()} and the generic
+     * stream upload: the content length and MD5 are known up front and every request body can be reset for retries without the
+     * client copying it into a buffer of its own. Encrypted blobs are streamed through the cipher instead.
+     */
     @Override
     public void writeBlob(OperationPurpose purpose, String blobName, BytesReference bytes, boolean failIfAlreadyExists) throws IOException {
-        super.writeBlob(purpose, blobName, bytes, failIfAlreadyExists);
+        if (blobStore.encryption() != null) {
+            writeBlob(purpose, blobName, bytes.streamInput(), bytes.length(), failIfAlreadyExists);
+        } else {
+            putBlob(purpose, buildKey(blobName), bytes);
+        }
+    }
+
+    private void putBlob(OperationPurpose purpose, String blobKey, BytesReference bytes) throws IOException {
+        SocketAccess.doPrivilegedIOException(() -> {
+            if (bytes.length() <= getLargeBlobThresholdInBytes()) {
+                executeSingleUpload(purpose, blobStore, blobKey, bytes);
+            } else {
+                executeMultipartUpload(purpose, blobStore, blobKey, bytes);
+            }
+            return null;
+        });
     }
 
     @Override
@@ -127,89 +292,201 @@ public class COSBlobContainer extends AbstractBlobContainer {
                           boolean atomic,
                           CheckedConsumer<OutputStream, IOException> writer) throws IOException {
         final String absoluteBlobKey = buildKey(blobName);
+        final COSEncryption encryption = blobStore.encryption();
+        if (encryption != null) {
+            encryption.invalidate(absoluteBlobKey);
+        }
+        final COSAppendWrites appendWrites = blobStore.appendWrites();
+        final long bufferSize = appendWrites == null ? blobStore.bufferSizeInBytes() : appendWrites.bufferSizeInBytes();
         try (
-                ChunkedBlobOutputStream<PartETag> out = new ChunkedBlobOutputStream<PartETag>(
-                        blobStore.bigArrays(), blobStore.bufferSizeInBytes()) {
+                COSBufferBudget.Reservation reservation = blobStore.bufferBudget().reserve(bufferSize, minPartSize(bufferSize));
+                ChunkedBlobOutputStream<?> out = appendWrites == null
+                        ? multipartOutputStream(purpose, absoluteBlobKey, reservation.bytes())
+                        : appendingOutputStream(purpose, absoluteBlobKey, appendWrites, reservation.bytes())
+        ) {
+            if (encryption == null) {
+                writer.accept(out);
+            } else {
+                try (OutputStream encrypted = encryption.encrypt(out)) {
+                    writer.accept(encrypted);
+                }
+            }
+            out.markSuccess();
+        }
+    }
 
-                    private final SetOnce<String> uploadId = new SetOnce<>();
+    /**
+     * Streams a metadata blob through a multipart upload that is only initiated once the buffer overflows.
+     */
+    private ChunkedBlobOutputStream<PartETag> multipartOutputStream(OperationPurpose purpose, String absoluteBlobKey, long bufferSize) {
+        return new ChunkedBlobOutputStream<>(blobStore.bigArrays(), bufferSize) {
 
-                    @Override
-                    protected void flushBuffer() throws IOException {
-                        flushBuffer(false);
-                    }
+            private final SetOnce<String> uploadId = new SetOnce<>();
 
-                    private void flushBuffer(boolean lastPart) throws IOException {
-                        if (buffer.size() == 0) {
-                            return;
-                        }
-                        if (flushedBytes == 0L) {
-                            assert lastPart == false : "use single part upload if there's only a single part";
-                            uploadId.set(SocketAccess.doPrivileged(() ->
-                                    blobStore.client().initiateMultipartUpload(initiateMultiPartUpload(absoluteBlobKey)).getUploadId()));
-                            if (Strings.isEmpty(uploadId.get())) {
-                                throw new IOException("Failed to initialize multipart upload " + absoluteBlobKey);
-                            }
-                        }
-                        assert lastPart == false || successful : "must only write last part if successful";
-                        final UploadPartRequest uploadRequest = createPartUploadRequest(
-                                buffer.bytes().streamInput(), uploadId.get(), parts.size() + 1, absoluteBlobKey, buffer.size(), lastPart);
-                        final UploadPartResult uploadResponse =
-                                SocketAccess.doPrivileged(() -> blobStore.client().uploadPart(uploadRequest));
-                        finishPart(uploadResponse.getPartETag());
-                    }
+            @Override
+            protected void flushBuffer() throws IOException {
+                flushBuffer(false);
+            }
 
-                    @Override
-                    protected void onCompletion() throws IOException {
-                        if (flushedBytes == 0L) {
-                            writeBlob(purpose, blobName, buffer.bytes(), failIfAlreadyExists);
-                        } else {
-                            flushBuffer(true);
-                            final CompleteMultipartUploadRequest complRequest =
-                                    new CompleteMultipartUploadRequest(blobStore.bucket(), absoluteBlobKey, uploadId.get(), parts);
-                            setRequestHeader(complRequest);
-                            SocketAccess.doPrivilegedVoid(() -> blobStore.client().completeMultipartUpload(complRequest));
-                        }
+            private void flushBuffer(boolean lastPart) throws IOException {
+                if (buffer.size() == 0) {
+                    return;
+                }
+                if (flushedBytes == 0L) {
+                    assert lastPart == false : "use single part upload if there's only a single part";
+                    uploadId.set(blobStore.execute(Operation.INITIATE_MULTIPART_UPLOAD, purpose, absoluteBlobKey,
+                            client -> client.initiateMultipartUpload(initiateMultiPartUpload(absoluteBlobKey)).getUploadId()));
+                    if (Strings.isEmpty(uploadId.get())) {
+                        throw new IOException("Failed to initialize multipart upload " + absoluteBlobKey);
                     }
+                }
+                assert lastPart == false || successful : "must only write last part if successful";
+                finishPart(uploadPart(purpose, absoluteBlobKey, buffer.bytes(), uploadId.get(), parts.size() + 1, lastPart)
+                        .getPartETag());
+            }
 
-                    @Override
-                    protected void onFailure() {
-                        if (Strings.hasText(uploadId.get())) {
-                            abortMultiPartUpload(uploadId.get(), absoluteBlobKey);
-                        }
-                    }
-                }) {
-            writer.accept(out);
-            out.markSuccess();
-        }
+            @Override
+            protected void onCompletion() throws IOException {
+                if (flushedBytes == 0L) {
+                    putBlob(purpose, absoluteBlobKey, buffer.bytes());
+                } else {
+                    flushBuffer(true);
+                    final CompleteMultipartUploadRequest complRequest = new CompleteMultipartUploadRequest(
+                            blobStore.bucket(absoluteBlobKey), absoluteBlobKey, uploadId.get(), parts);
+                    setRequestHeader(complRequest);
+                    blobStore.executeVoid(Operation.COMPLETE_MULTIPART_UPLOAD, purpose, absoluteBlobKey,
+                            client -> client.completeMultipartUpload(complRequest));
+                }
+            }
+
+            @Override
+            protected void onFailure() {
+                if (Strings.hasText(uploadId.get())) {
+                    abortMultiPartUpload(purpose, uploadId.get(), absoluteBlobKey);
+                }
+            }
+        };
     }
-    
-    private UploadPartRequest createPartUploadRequest(InputStream stream,
+
+    /**
+     * Streams a metadata blob that outgrows the buffer through appends to a temporary key, which is copied to the key of the blob once
+     * complete, see {@link COSAppendWrites}.
+     */
+    private ChunkedBlobOutputStream<Long> appendingOutputStream(OperationPurpose purpose, String absoluteBlobKey,
+                                                                COSAppendWrites appendWrites, long bufferSize) {
+        final String temporaryKey = appendWrites.temporaryKey();
+        return new ChunkedBlobOutputStream<>(blobStore.bigArrays(), bufferSize) {
+
+            @Override
+            protected void flushBuffer() throws IOException {
+                if (buffer.size() == 0) {
+                    return;
+                }
+                try {
+                    finishPart(appendObject(purpose, temporaryKey, flushedBytes, buffer.bytes()));
+                } catch (CosClientException e) {
+                    throw new IOException("Unable to append to object [" + temporaryKey + "]", e);
+                }
+            }
+
+            @Override
+            protected void onCompletion() throws IOException {
+                if (flushedBytes == 0L) {
+                    putBlob(purpose, absoluteBlobKey, buffer.bytes());
+                    return;
+                }
+                final CopyObjectRequest copyRequest = new CopyObjectRequest(blobStore.bucket(temporaryKey), temporaryKey,
+                        blobStore.bucket(absoluteBlobKey), absoluteBlobKey);
+                setRequestHeader(copyRequest);
+                try {
+                    flushBuffer();
+                    blobStore.executeVoid(Operation.COPY_OBJECT, purpose, absoluteBlobKey, client -> client.copyObject(copyRequest));
+                } catch (IOException | CosClientException e) {
+                    // the write fails while the blob it replaces is still intact
+                    deleteQuietly(List.of(temporaryKey));
+                    throw e instanceof IOException ioe ? ioe
+                            : new IOException("Unable to copy object [" + temporaryKey + "] to [" + absoluteBlobKey + "]", e);
+                }
+                final List<String> published = appendWrites.onPublished(temporaryKey);
+                if (published.isEmpty() == false) {
+                    deleteQuietly(published);
+                }
+            }
+
+            @Override
+            protected void onFailure() {
+                if (flushedBytes > 0L) {
+                    deleteQuietly(List.of(temporaryKey));
+                }
+            }
+
+            private void deleteQuietly(List<String> keys) {
+                try {
+                    blobStore.deleteKeys(purpose, keys.iterator());
+                } catch (Exception e) {
+                    logger.warn(() -> "failed to delete appended objects " + keys, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Appends the given bytes to the appendable object with the given key at the given position, creating it if the position is
+     * {@code 0}, and returns the position of the next append.
+     */
+    private long appendObject(OperationPurpose purpose, String key, long position, BytesReference bytes) {
+        final ObjectMetadata md = new ObjectMetadata();
+        md.setContentLength(bytes.length());
+        md.setContentMD5(md5Base64(bytes));
+        final int trafficLimit = blobStore.trafficLimit(purpose, true);
+        return blobStore.executeReplayable(Operation.APPEND_OBJECT, purpose, key, bytes.length(), client -> {
+            final AppendObjectRequest appendRequest;
+            try {
+                appendRequest = new AppendObjectRequest(blobStore.bucket(key), key, bytes.streamInput(), md);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            appendRequest.setPosition(position);
+            if (trafficLimit > 0) {
+                appendRequest.setTrafficLimit(trafficLimit);
+            }
+            setRequestHeader(appendRequest);
+            return client.appendObject(appendRequest).getNextAppendPosition();
+        });
+    }
+
+    private UploadPartRequest createPartUploadRequest(OperationPurpose purpose,
+                                                      InputStream stream,
                                                       String uploadId,
                                                       int number,
                                                       String blobName,
                                                       long size,
                                                       boolean lastPart) {
         final UploadPartRequest uploadRequest = new UploadPartRequest();
-        uploadRequest.setBucketName(blobStore.bucket());
+        uploadRequest.setBucketName(blobStore.bucket(blobName));
         uploadRequest.setKey(blobName);
         uploadRequest.setUploadId(uploadId);
         uploadRequest.setPartNumber(number);
         uploadRequest.setInputStream(stream);
         uploadRequest.setPartSize(size);
         uploadRequest.setLastPart(lastPart);
+        final int trafficLimit = blobStore.trafficLimit(purpose, true);
+        if (trafficLimit > 0) {
+            uploadRequest.setTrafficLimit(trafficLimit);
+        }
         setRequestHeader(uploadRequest);
         return uploadRequest;
     }
     
-    private void abortMultiPartUpload(String uploadId, String blobName) {
+    private void abortMultiPartUpload(OperationPurpose purpose, String uploadId, String blobName) {
         final AbortMultipartUploadRequest abortRequest =
-                new AbortMultipartUploadRequest(blobStore.bucket(), blobName, uploadId);
+                new AbortMultipartUploadRequest(blobStore.bucket(blobName), blobName, uploadId);
         setRequestHeader(abortRequest);
-        SocketAccess.doPrivilegedVoid(() -> blobStore.client().abortMultipartUpload(abortRequest));
+        blobStore.executeVoid(Operation.ABORT_MULTIPART_UPLOAD, purpose, blobName, client -> client.abortMultipartUpload(abortRequest));
     }
     
     private InitiateMultipartUploadRequest initiateMultiPartUpload(String blobName) {
-        final InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(blobStore.bucket(), blobName);
+        final InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(blobStore.bucket(blobName), blobName);
         setRequestHeader(initRequest);
         return initRequest;
     }
@@ -230,55 +507,64 @@ public class COSBlobContainer extends AbstractBlobContainer {
         final AtomicLong deletedBlobs = new AtomicLong();
         final AtomicLong deletedBytes = new AtomicLong();
         try {
-            ObjectListing prevListing = null;
-            while (true) {
-                ObjectListing list;
-                if (prevListing != null) {
-                    final ObjectListing finalPrevListing = prevListing;
-                    list = SocketAccess.doPrivileged(() -> blobStore.client().listNextBatchOfObjects(finalPrevListing));
-                } else {
-                    final ListObjectsRequest listObjectsRequest = new ListObjectsRequest();
-                    listObjectsRequest.setBucketName(blobStore.bucket());
-                    listObjectsRequest.setPrefix(keyPath);
-                    setRequestHeader(listObjectsRequest);
-                    list = SocketAccess.doPrivileged(() -> blobStore.client().listObjects(listObjectsRequest));
-                }
-                
-                final Iterator<COSObjectSummary> objectSummaryIterator = list.getObjectSummaries().iterator();
-                final Iterator<String> blobNameIterator = new Iterator<String>() {
-                    @Override
-                    public boolean hasNext() {
-                        return objectSummaryIterator.hasNext();
-                    }
-                    
-                    @Override
-                    public String next() {
-                        final COSObjectSummary summary = objectSummaryIterator.next();
-                        deletedBlobs.incrementAndGet();
-                        deletedBytes.addAndGet(summary.getSize());
-                        return summary.getKey();
-                    }
-                };
-                if (list.isTruncated()) {
-                    doDeleteBlobs(blobNameIterator, false);
-                    prevListing = list;
-                } else {
-                    doDeleteBlobs(Iterators.concat(blobNameIterator, Collections.singletonList(keyPath).iterator()), false);
-                    break;
-                }
+            // a striped container has blobs in every bucket, the keys are routed back to theirs when they are deleted
+            for (String bucket : blobStore.buckets()) {
+                deleteListed(purpose, bucket, deletedBlobs, deletedBytes);
             }
+            doDeleteBlobs(purpose, Collections.singletonList(keyPath).iterator(), false);
         } catch (CosClientException e) {
             throw new IOException("Exception when deleting blob container [\" + keyPath + \"]" + e);
         }
         return new DeleteResult(deletedBlobs.get(), deletedBytes.get());
     }
 
+    private void deleteListed(OperationPurpose purpose, String bucket, AtomicLong deletedBlobs, AtomicLong deletedBytes)
+            throws IOException {
+        ObjectListing prevListing = null;
+        while (true) {
+            ObjectListing list;
+            if (prevListing != null) {
+                final ObjectListing finalPrevListing = prevListing;
+                list = blobStore.execute(Operation.LIST_OBJECTS, purpose, keyPath,
+                        client -> client.listNextBatchOfObjects(finalPrevListing));
+            } else {
+                final ListObjectsRequest listObjectsRequest = new ListObjectsRequest();
+                listObjectsRequest.setBucketName(bucket);
+                listObjectsRequest.setPrefix(keyPath);
+                setRequestHeader(listObjectsRequest);
+                list = blobStore.execute(Operation.LIST_OBJECTS, purpose, keyPath, client -> client.listObjects(listObjectsRequest));
+            }
+            
+            final Iterator<COSObjectSummary> objectSummaryIterator = list.getObjectSummaries().iterator();
+            final Iterator<String> blobNameIterator = new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return objectSummaryIterator.hasNext();
+                }
+                
+                @Override
+                public String next() {
+                    final COSObjectSummary summary = objectSummaryIterator.next();
+                    deletedBlobs.incrementAndGet();
+                    deletedBytes.addAndGet(summary.getSize());
+                    return summary.getKey();
+                }
+            };
+            doDeleteBlobs(purpose, blobNameIterator, false);
+            if (list.isTruncated()) {
+                prevListing = list;
+            } else {
+                break;
+            }
+        }
+    }
+
     @Override
     public void deleteBlobsIgnoringIfNotExists(OperationPurpose purpose, Iterator<String> blobNames) throws IOException {
-        doDeleteBlobs(blobNames, true);
+        doDeleteBlobs(purpose, blobNames, true);
     }
 
-    private void doDeleteBlobs(Iterator<String> blobNames, boolean relative) throws IOException {
+    private void doDeleteBlobs(OperationPurpose purpose, Iterator<String> blobNames, boolean relative) throws IOException {
         if (blobNames.hasNext() == false) {
             return;
         }
@@ -299,68 +585,43 @@ public class COSBlobContainer extends AbstractBlobContainer {
             outstanding = blobNames;
         }
         
-        final List<String> partition = new ArrayList<>();
-        try {
-            // Cos API only allows 1k blobs per delete so we split up the given blobs into requests of max. 1k deletes
-            final AtomicReference<Exception> aex = new AtomicReference<>();
-            SocketAccess.doPrivilegedVoid(() -> {
-                outstanding.forEachRemaining(key -> {
-                    partition.add(key);
-                    if (partition.size() == MAX_BULK_DELETES) {
-                        deletePartition(blobStore, partition, aex);
-                        partition.clear();
-                    }
-                });
-                if (partition.isEmpty() == false) {
-                    deletePartition(blobStore, partition, aex);
-                }
-            });
-            if (aex.get() != null) {
-                throw aex.get();
-            }
-        } catch (Exception e) {
-            throw new IOException("Failed to delete blobs " + partition.stream().limit(10).collect(Collectors.toList()), e);
-        }
-    }
-    
-    private void deletePartition(COSBlobStore blobStore, List<String> partition, AtomicReference<Exception> aex) {
-        try {
-            blobStore.client().deleteObjects(bulkDelete(blobStore.bucket(), partition));
-        } catch (MultiObjectDeleteException e) {
-            // We are sending quiet mode requests so we can't use the deleted keys entry on the exception and instead
-            // first remove all keys that were sent in the request and then add back those that ran into an exception.
-            logger.warn(
-                    () -> new ParameterizedMessage("Failed to delete some blobs {}", e.getErrors()
-                            .stream().map(err -> "[" + err.getKey() + "][" + err.getCode() + "][" + err.getMessage() + "]")
-                            .collect(Collectors.toList())), e);
-            aex.set(ExceptionsHelper.useOrSuppress(aex.get(), e));
-        } catch (CosClientException e) {
-            // The Cos client threw any unexpected exception and did not execute the request at all so we do not
-            // remove any keys from the outstanding deletes set.
-            aex.set(ExceptionsHelper.useOrSuppress(aex.get(), e));
-        }
-    }
-
-    private DeleteObjectsRequest bulkDelete(String bucket, List<String> blobs) {
-        DeleteObjectsRequest deleteObjectsRequest = new DeleteObjectsRequest(bucket)
-                .withKeys(blobs.toArray(Strings.EMPTY_ARRAY)).withQuiet(true);
-        setRequestHeader(deleteObjectsRequest);
-        return deleteObjectsRequest;
+        blobStore.deleteKeys(purpose, outstanding);
     }
 
     @Override
     public Map<String, BlobMetadata> listBlobsByPrefix(OperationPurpose purpose, @Nullable String blobNamePrefix) throws IOException {
+        final COSReadOnlyCache readOnlyCache = blobStore.readOnlyCache();
+        if (readOnlyCache != null) {
+            return readOnlyCache.blobs(blobNamePrefix == null ? keyPath : buildKey(blobNamePrefix),
+                    () -> listUncached(purpose, blobNamePrefix));
+        }
+        return listUncached(purpose, blobNamePrefix);
+    }
+
+    private Map<String, BlobMetadata> listUncached(OperationPurpose purpose, @Nullable String blobNamePrefix) throws IOException {
         try {
-            return executeListing(blobStore, listObjectsRequest(blobNamePrefix == null ? keyPath : buildKey(blobNamePrefix)))
+            final ListObjectsRequest listObjectsRequest = listObjectsRequest(blobNamePrefix == null ? keyPath : buildKey(blobNamePrefix));
+            // only data blobs live outside of the primary bucket, no need to list the other buckets if none can match
+            final List<String> buckets = blobNamePrefix == null
+                    || UPLOADED_DATA_BLOB_PREFIX.startsWith(blobNamePrefix) || blobNamePrefix.startsWith(UPLOADED_DATA_BLOB_PREFIX)
+                    ? blobStore.buckets() : List.of(blobStore.bucket());
+            return executeListing(purpose, blobStore, buckets, listObjectsRequest)
                     .stream()
                     .flatMap(listing -> listing.getObjectSummaries().stream())
-                    .map(summary -> new BlobMetadata(summary.getKey().substring(keyPath.length()), summary.getSize()))
-                    .collect(Collectors.toMap(BlobMetadata::name, Function.identity()));
+                    .map(summary -> new BlobMetadata(summary.getKey().substring(keyPath.length()), blobSize(summary.getSize())))
+                    .collect(Collectors.toMap(BlobMetadata::name, Function.identity(), (first, second) -> first));
         } catch (final CosClientException e) {
             throw new IOException("Exception when listing blobs by prefix [" + blobNamePrefix + "]", e);
         }
     }
 
+    /**
+     * Returns the size of the content of a blob stored with the given size, which is smaller if the blob is encrypted.
+     */
+    private long blobSize(long storedSize) {
+        return blobStore.encryption() == null ? storedSize : COSEncryption.plaintextLength(storedSize);
+    }
+
     @Override
     public void compareAndExchangeRegister(OperationPurpose purpose, String key, BytesReference expected, BytesReference updated, ActionListener<OptionalBytesReference> listener) {
         listener.onFailure(new UnsupportedOperationException()); // TODO
@@ -388,8 +649,14 @@ public class COSBlobContainer extends AbstractBlobContainer {
 
     @Override
     public Map<String, BlobContainer> children(OperationPurpose purpose) throws IOException {
+        final COSReadOnlyCache readOnlyCache = blobStore.readOnlyCache();
+        final Set<String> names = readOnlyCache == null ? childNames(purpose) : readOnlyCache.children(keyPath, () -> childNames(purpose));
+        return names.stream().collect(Collectors.toMap(Function.identity(), name -> blobStore.blobContainer(path().add(name))));
+    }
+
+    private Set<String> childNames(OperationPurpose purpose) throws IOException {
         try {
-            return executeListing(blobStore, listObjectsRequest(keyPath)).stream()
+            return executeListing(purpose, blobStore, blobStore.buckets(), listObjectsRequest(keyPath)).stream()
                     .flatMap(listing -> {
                         assert listing.getObjectSummaries().stream().noneMatch(s -> {
                             for (String commonPrefix : listing.getCommonPrefixes()) {
@@ -405,31 +672,85 @@ public class COSBlobContainer extends AbstractBlobContainer {
                     .filter(name -> name.isEmpty() == false)
                     // Stripping the trailing slash off of the common prefix
                     .map(name -> name.substring(0, name.length() - 1))
-                    .collect(Collectors.toMap(Function.identity(), name -> blobStore.blobContainer(path().add(name))));
+                    // the children of a striped container are listed once per bucket
+                    .collect(Collectors.toSet());
         } catch (final CosClientException e) {
             throw new IOException("Exception when listing children of [" + path().buildAsString() + ']', e);
         }
     }
 
-    private List<ObjectListing> executeListing(COSBlobStore blobStore, ListObjectsRequest listObjectsRequest) {
+    /**
+     * Lists this container page by page, passing every blob to {@code blobs} and, unless {@code recursive} is set, the name of every
+     * child container to {@code children}. If {@code recursive} is set the blobs of all descendants are listed instead, named by their
+     * path relative to this container. Unlike {@link #listBlobs} no more than one page is held in memory.
+     */
+    void forEachListed(OperationPurpose purpose, boolean recursive, Consumer<BlobMetadata> blobs, Consumer<String> children)
+            throws IOException {
+        final ListObjectsRequest listObjectsRequest = listObjectsRequest(keyPath);
+        if (recursive) {
+            listObjectsRequest.setDelimiter(null);
+        }
+        final List<String> buckets = blobStore.buckets();
+        // the children of a striped container are listed once per bucket but reported once
+        final Set<String> listedChildren = buckets.size() > 1 ? new HashSet<>() : null;
+        try {
+            executeListing(purpose, blobStore, buckets, listObjectsRequest, listing -> {
+                for (COSObjectSummary summary : listing.getObjectSummaries()) {
+                    final String name = summary.getKey().substring(keyPath.length());
+                    if (name.isEmpty() == false) {
+                        blobs.accept(new BlobMetadata(name, blobSize(summary.getSize())));
+                    }
+                }
+                for (String prefix : listing.getCommonPrefixes()) {
+                    final String name = prefix.substring(keyPath.length());
+                    if (name.length() > 1 && (listedChildren == null || listedChildren.add(name))) {
+                        children.accept(name.substring(0, name.length() - 1));
+                    }
+                }
+            });
+        } catch (final CosClientException e) {
+            throw new IOException("Exception when listing [" + path().buildAsString() + ']', e);
+        }
+    }
+
+    private List<ObjectListing> executeListing(OperationPurpose purpose,
+                                               COSBlobStore blobStore,
+                                               List<String> buckets,
+                                               ListObjectsRequest listObjectsRequest) {
         final List<ObjectListing> results = new ArrayList<>();
-        ObjectListing prevListing = null;
-        while (true) {
-            ObjectListing list;
-            if (prevListing != null) {
-                final ObjectListing finalPrevListing = prevListing;
-                list = SocketAccess.doPrivileged(() -> blobStore.client().listNextBatchOfObjects(finalPrevListing));
-            } else {
-                list = SocketAccess.doPrivileged(() -> blobStore.client().listObjects(listObjectsRequest));
-            }
-            results.add(list);
-            if (list.isTruncated()) {
-                prevListing = list;
-            } else {
-                break;
+        executeListing(purpose, blobStore, buckets, listObjectsRequest, results::add);
+        return results;
+    }
+
+    /**
+     * Lists the given buckets one after the other with the same request, the listings of a striped container are merged this way.
+     */
+    private void executeListing(OperationPurpose purpose,
+                                COSBlobStore blobStore,
+                                List<String> buckets,
+                                ListObjectsRequest listObjectsRequest,
+                                Consumer<ObjectListing> consumer) {
+        for (String bucket : buckets) {
+            listObjectsRequest.setBucketName(bucket);
+            ObjectListing prevListing = null;
+            while (true) {
+                ObjectListing list;
+                if (prevListing != null) {
+                    final ObjectListing finalPrevListing = prevListing;
+                    list = blobStore.execute(Operation.LIST_OBJECTS, purpose, listObjectsRequest.getPrefix(),
+                            client -> client.listNextBatchOfObjects(finalPrevListing));
+                } else {
+                    list = blobStore.execute(Operation.LIST_OBJECTS, purpose, listObjectsRequest.getPrefix(),
+                            client -> client.listObjects(listObjectsRequest));
+                }
+                consumer.accept(list);
+                if (list.isTruncated()) {
+                    prevListing = list;
+                } else {
+                    break;
+                }
             }
         }
-        return results;
     }
 
     private ListObjectsRequest listObjectsRequest(String keyPath) {
@@ -446,11 +767,38 @@ public class COSBlobContainer extends AbstractBlobContainer {
     /**
      * Uploads a blob using a single upload request
      */
-    void executeSingleUpload(final COSBlobStore blobStore,
+    void executeSingleUpload(final OperationPurpose purpose,
+                             final COSBlobStore blobStore,
                              final String blobName,
                              final InputStream input,
                              final long blobSize) throws IOException {
 
+        final ObjectMetadata md = new ObjectMetadata();
+        md.setContentLength(blobSize);
+        putObject(purpose, blobStore, blobName, () -> input, false, md);
+    }
+
+    /**
+     * Uploads a blob held in memory using a single upload request
+     */
+    void executeSingleUpload(final OperationPurpose purpose,
+                             final COSBlobStore blobStore,
+                             final String blobName,
+                             final BytesReference bytes) throws IOException {
+        final ObjectMetadata md = new ObjectMetadata();
+        md.setContentLength(bytes.length());
+        // setting the digest ourselves keeps the client from wrapping the (resettable) page stream into a digesting one
+        md.setContentMD5(md5Base64(bytes));
+        putObject(purpose, blobStore, blobName, bytes::streamInput, true, md);
+    }
+
+    private void putObject(final OperationPurpose purpose,
+                           final COSBlobStore blobStore,
+                           final String blobName,
+                           final CheckedSupplier<InputStream, IOException> body,
+                           final boolean replayable,
+                           final ObjectMetadata md) throws IOException {
+        final long blobSize = md.getContentLength();
         // Extra safety checks
         if (blobSize > MAX_FILE_SIZE.getBytes()) {
             throw new IllegalArgumentException("Upload request size [" + blobSize + "] can't be larger than " + MAX_FILE_SIZE);
@@ -458,30 +806,123 @@ public class COSBlobContainer extends AbstractBlobContainer {
         if (blobSize > blobStore.bufferSizeInBytes()) {
             throw new IllegalArgumentException("Upload request size [" + blobSize + "] can't be larger than buffer size");
         }
-        
-        final ObjectMetadata md = new ObjectMetadata();
-        md.setContentLength(blobSize);
-        final PutObjectRequest putRequest = new PutObjectRequest(blobStore.bucket(), blobName, input, md);
-        
+
+        final int trafficLimit = blobStore.trafficLimit(purpose, true);
+        // every attempt gets a request with a fresh body, which can only be replayed if the body can be read again
+        final Function<COSClient, PutObjectResult> request = client -> {
+            final PutObjectRequest putRequest;
+            try {
+                putRequest = new PutObjectRequest(blobStore.bucket(blobName), blobName, body.get(), md);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (trafficLimit > 0) {
+                putRequest.setTrafficLimit(trafficLimit);
+            }
+            return client.putObject(putRequest);
+        };
+
         try {
-            SocketAccess.doPrivilegedVoid(() -> {
-                blobStore.client().putObject(putRequest);
-            });
+            if (replayable) {
+                blobStore.executeReplayable(Operation.PUT_OBJECT, purpose, blobName, blobSize, request);
+            } else {
+                blobStore.execute(Operation.PUT_OBJECT, purpose, blobName, blobSize, request);
+            }
         } catch (final CosClientException e) {
             throw new IOException("Unable to upload object [" + blobName + "] using a single upload", e);
         }
     }
     
     /**
-     * Uploads a blob using multipart upload requests.
+     * Uploads a blob using multipart upload requests. Every part is staged in a buffer from {@link COSBlobStore#bigArrays()} before it
+     * is sent, so that it can be sent again if the request fails. The parts are smaller than the buffer size if the node-wide
+     * {@link COSBufferBudget} is short of memory, unless a retained upload of the blob is resumed, whose part size is kept.
      */
-    void executeMultipartUpload(final COSBlobStore blobStore,
+    void executeMultipartUpload(final OperationPurpose purpose,
+                                final COSBlobStore blobStore,
                                 final String blobName,
                                 final InputStream input,
                                 final long blobSize) throws IOException {
-        
+        final long minPartSize = Math.max(minPartSize(blobStore.bufferSizeInBytes()), (blobSize + MAX_PARTS - 1) / MAX_PARTS);
+        final long retainedPartSize = blobStore.resumableUploads().retainedPartSize(blobName, blobSize);
+        final long preferredPartSize = retainedPartSize > 0L ? retainedPartSize : blobStore.bufferSizeInBytes();
+        try (COSBufferBudget.Reservation reservation = blobStore.bufferBudget()
+                     .reserve(preferredPartSize, retainedPartSize > 0L ? retainedPartSize : Math.min(minPartSize, preferredPartSize));
+             ReleasableBytesStreamOutput partBuffer = new ReleasableBytesStreamOutput(blobStore.bigArrays())) {
+            executeMultipartUpload(purpose, blobStore, blobName, blobSize, reservation.bytes(), (offset, partSize) -> {
+                partBuffer.seek(0L);
+                final long copied = org.elasticsearch.core.Streams.copy(Streams.limitStream(input, partSize), partBuffer, false);
+                if (copied != partSize) {
+                    throw new EOFException("unexpected end of stream after [" + (offset + copied) + "] of [" + blobSize + "] bytes of ["
+                            + blobName + "]");
+                }
+                return partBuffer.bytes();
+            });
+        }
+    }
+
+    /**
+     * Uploads a blob held in memory using multipart upload requests, sending a slice of its pages as each part.
+     */
+    void executeMultipartUpload(final OperationPurpose purpose,
+                                final COSBlobStore blobStore,
+                                final String blobName,
+                                final BytesReference bytes) throws IOException {
+        final long retainedPartSize = blobStore.resumableUploads().retainedPartSize(blobName, bytes.length());
+        executeMultipartUpload(purpose, blobStore, blobName, bytes.length(),
+                retainedPartSize > 0L ? retainedPartSize : blobStore.bufferSizeInBytes(),
+                (offset, partSize) -> bytes.slice(Math.toIntExact(offset), Math.toIntExact(partSize)));
+    }
+
+    /**
+     * The content of a blob uploaded with multipart upload requests, read part by part in order.
+     */
+    @FunctionalInterface
+    private interface PartSource {
+
+        /**
+         * Returns the content of the next part, which stays valid until the next part is read.
+         */
+        BytesReference read(long offset, long partSize) throws IOException;
+    }
+
+    /**
+     * Uploads a single part. The part carries its Content-MD5 so COS rejects it if it was corrupted on the way, and it is sent with a
+     * fresh stream over its content on every attempt, so that {@link COSRetryPolicy} can send it again like any other request.
+     */
+    private UploadPartResult uploadPart(final OperationPurpose purpose,
+                                        final String blobName,
+                                        final BytesReference part,
+                                        final String uploadId,
+                                        final int partNumber,
+                                        final boolean lastPart) throws IOException {
+        final String md5 = md5Base64(part);
+        return blobStore.executeReplayable(Operation.UPLOAD_PART, purpose, blobName, part.length(), client -> {
+            final UploadPartRequest uploadRequest;
+            try {
+                uploadRequest = createPartUploadRequest(purpose, part.streamInput(), uploadId, partNumber, blobName, part.length(),
+                        lastPart);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            uploadRequest.setMd5Digest(md5);
+            return client.uploadPart(uploadRequest);
+        });
+    }
+
+    /**
+     * Uploads a blob part by part. If an earlier attempt to upload the same blob failed and its upload was retained (see
+     * {@link COSResumableUploads}), the parts it already stored in COS are listed and every part whose content matches is skipped.
+     * If this attempt fails, its upload is retained in turn instead of being aborted.
+     */
+    private void executeMultipartUpload(final OperationPurpose purpose,
+                                        final COSBlobStore blobStore,
+                                        final String blobName,
+                                        final long blobSize,
+                                        final long partSize,
+                                        final PartSource partSource) throws IOException {
+
         ensureMultiPartUploadSize(blobSize);
-        final long partSize = blobStore.bufferSizeInBytes();
         final Tuple<Long, Long> multiparts = numberOfMultiparts(blobSize, partSize);
         
         if (multiparts.v1() > Integer.MAX_VALUE) {
@@ -491,14 +932,45 @@ public class COSBlobContainer extends AbstractBlobContainer {
         final int nbParts = multiparts.v1().intValue();
         final long lastPartSize = multiparts.v2();
         assert blobSize == (((nbParts - 1) * partSize) + lastPartSize) : "blobSize does not match multipart sizes";
-        
+
+        final COSResumableUploads resumableUploads = blobStore.resumableUploads();
+        blobStore.abortExpiredUploads(purpose);
+
         final SetOnce<String> uploadId = new SetOnce<>();
-        final String bucketName = blobStore.bucket();
+        final String bucketName = blobStore.bucket(blobName);
         boolean success = false;
+        // an encrypted blob gets a new data key on every attempt, so parts of an earlier attempt can never match
+        final boolean resumable = resumableUploads.isEnabled() && blobStore.encryption() == null;
+        boolean retainOnFailure = resumable;
         try {
-            
-            uploadId.set(SocketAccess.doPrivileged(() ->
-                    blobStore.client().initiateMultipartUpload(initiateMultiPartUpload(blobName)).getUploadId()));
+            Map<Integer, PartSummary> storedParts = Collections.emptyMap();
+            final COSResumableUploads.Upload retained = resumable ? resumableUploads.claim(blobName, blobSize) : null;
+            final String retainedUploadId;
+            if (retained != null && retained.partSize() != partSize) {
+                // retained by a concurrent writer after this one chose its part size, none of its parts can match
+                blobStore.abortUploads(purpose, Collections.singletonList(retained));
+                retainedUploadId = null;
+            } else {
+                retainedUploadId = retained == null ? null : retained.uploadId();
+            }
+            if (retainedUploadId != null) {
+                try {
+                    storedParts = listParts(purpose, blobName, retainedUploadId);
+                    uploadId.set(retainedUploadId);
+                } catch (CosClientException e) {
+                    if (e instanceof CosServiceException == false || ((CosServiceException) e).getStatusCode() != 404) {
+                        // keep it for the next attempt
+                        resumableUploads.retain(blobName, blobSize, partSize, retainedUploadId);
+                        throw e;
+                    }
+                    logger.debug("retained multipart upload [{}] of [{}] no longer exists, starting over", retainedUploadId, blobName);
+                }
+            }
+
+            if (uploadId.get() == null) {
+                uploadId.set(blobStore.execute(Operation.INITIATE_MULTIPART_UPLOAD, purpose, blobName,
+                        client -> client.initiateMultipartUpload(initiateMultiPartUpload(blobName)).getUploadId()));
+            }
             if (Strings.isEmpty(uploadId.get())) {
                 throw new IOException("Failed to initialize multipart upload " + blobName);
             }
@@ -506,17 +978,33 @@ public class COSBlobContainer extends AbstractBlobContainer {
             final List<PartETag> parts = new ArrayList<>();
             
             long bytesCount = 0;
+            int skippedParts = 0;
             for (int i = 1; i <= nbParts; i++) {
                 final boolean lastPart = i == nbParts;
-                final UploadPartRequest uploadRequest =
-                        createPartUploadRequest(input, uploadId.get(), i, blobName, lastPart ? lastPartSize : partSize, lastPart);
-                bytesCount += uploadRequest.getPartSize();
-                
-                final UploadPartResult uploadResponse = SocketAccess.doPrivileged(() -> blobStore.client().uploadPart(uploadRequest));
-                parts.add(uploadResponse.getPartETag());
+                final long size = lastPart ? lastPartSize : partSize;
+                final BytesReference part = partSource.read(bytesCount, size);
+                final PartSummary storedPart = storedParts.get(i);
+                if (storedPart != null && storedPart.getSize() == size) {
+                    // the ETag of a part is the hex encoded MD5 of its content
+                    final String eTag = storedPart.getETag().replace("\"", "");
+                    if (MessageDigests.toHexString(MessageDigests.digest(part, MessageDigests.md5())).equalsIgnoreCase(eTag)) {
+                        parts.add(new PartETag(i, storedPart.getETag()));
+                        bytesCount += size;
+                        skippedParts++;
+                        continue;
+                    }
+                }
+                bytesCount += part.length();
+                parts.add(uploadPart(purpose, blobName, part, uploadId.get(), i, lastPart).getPartETag());
+            }
+            if (retainedUploadId != null && retainedUploadId.equals(uploadId.get())) {
+                resumableUploads.onResumed(skippedParts);
+                logger.debug("resumed multipart upload [{}] of [{}], skipped [{}] of [{}] parts", uploadId.get(), blobName,
+                        skippedParts, nbParts);
             }
             
             if (bytesCount != blobSize) {
+                retainOnFailure = false;
                 throw new IOException("Failed to execute multipart upload for [" + blobName + "], expected " + blobSize
                         + "bytes sent but got " + bytesCount);
             }
@@ -524,17 +1012,50 @@ public class COSBlobContainer extends AbstractBlobContainer {
             final CompleteMultipartUploadRequest complRequest = new CompleteMultipartUploadRequest(bucketName, blobName, uploadId.get(),
                     parts);
             setRequestHeader(complRequest);
-            SocketAccess.doPrivilegedVoid(() -> blobStore.client().completeMultipartUpload(complRequest));
+            blobStore.executeVoid(Operation.COMPLETE_MULTIPART_UPLOAD, purpose, blobName,
+                    client -> client.completeMultipartUpload(complRequest));
             success = true;
             
         } catch (final CosClientException e) {
+            if (e instanceof CosServiceException && ((CosServiceException) e).getStatusCode() == 404) {
+                // the upload itself is gone, there is nothing left to resume
+                retainOnFailure = false;
+            }
             throw new IOException("Unable to upload object [" + blobName + "] using multipart upload", e);
         } finally {
             if ((success == false) && Strings.hasLength(uploadId.get())) {
-                abortMultiPartUpload(uploadId.get(), blobName);
+                if (retainOnFailure) {
+                    logger.debug("retaining failed multipart upload [{}] of [{}] for a retry", uploadId.get(), blobName);
+                    final COSResumableUploads.Upload displaced = resumableUploads.retain(blobName, blobSize, partSize, uploadId.get());
+                    if (displaced != null) {
+                        blobStore.abortUploads(purpose, Collections.singletonList(displaced));
+                    }
+                } else {
+                    abortMultiPartUpload(purpose, uploadId.get(), blobName);
+                }
             }
         }
     }
+
+    /**
+     * Lists the parts COS holds for the given multipart upload, keyed by part number.
+     */
+    private Map<Integer, PartSummary> listParts(OperationPurpose purpose, String blobName, String uploadId) {
+        final Map<Integer, PartSummary> parts = new HashMap<>();
+        final ListPartsRequest listPartsRequest = new ListPartsRequest(blobStore.bucket(blobName), blobName, uploadId);
+        setRequestHeader(listPartsRequest);
+        while (true) {
+            final PartListing listing = blobStore.execute(Operation.LIST_PARTS, purpose, blobName,
+                    client -> client.listParts(listPartsRequest));
+            for (PartSummary part : listing.getParts()) {
+                parts.put(part.getPartNumber(), part);
+            }
+            if (listing.isTruncated() == false) {
+                return parts;
+            }
+            listPartsRequest.setPartNumberMarker(listing.getNextPartNumberMarker());
+        }
+    }
     
     // non-static, package private for testing
     void ensureMultiPartUploadSize(final long blobSize) {
@@ -548,6 +1069,13 @@ public class COSBlobContainer extends AbstractBlobContainer {
         }
     }
     
+    /**
+     * The smallest size a part may shrink to if the buffer budget is short of memory, never more than the configured buffer size.
+     */
+    private static long minPartSize(long bufferSize) {
+        return Math.min(bufferSize, MIN_PART_SIZE_USING_MULTIPART.getBytes());
+    }
+
     /**
      * Returns the number parts of size of {@code partSize} needed to reach {@code totalSize},
      * along with the size of the last (or unique) part.
@@ -576,10 +1104,17 @@ public class COSBlobContainer extends AbstractBlobContainer {
         }
     }
 
+    /**
+     * Computes the base64 encoded MD5 digest of the given bytes, as expected by the Content-MD5 header, page by page.
+     */
+    static String md5Base64(BytesReference bytes) {
+        return Base64.getEncoder().encodeToString(MessageDigests.digest(bytes, MessageDigests.md5()));
+    }
+
     /**
      * Set request header
      */
-    private void setRequestHeader(CosServiceRequest request) {
+    static void setRequestHeader(CosServiceRequest request) {
         if (request == null) return;
         request.putCustomRequestHeader("User-Agent","Elasticsearch");
     }
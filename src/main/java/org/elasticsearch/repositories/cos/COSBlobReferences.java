@@ -0,0 +1,99 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.core.Nullable;
+import org.elasticsearch.repositories.IndexId;
+import org.elasticsearch.repositories.RepositoryData;
+import org.elasticsearch.repositories.ShardGeneration;
+import org.elasticsearch.snapshots.SnapshotId;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Tells which blobs below the {@code indices/} folder of a repository the given {@link RepositoryData} no longer references: the
+ * folders of indices it does not know, shard generations other than the current one and {@code snap-*.dat} blobs of snapshots it does
+ * not know. Data blobs of a known shard always count as referenced, finding out which generation still uses them would need the shard
+ * index blob to be read.
+ */
+final class COSBlobReferences {
+
+    private static final String SNAPSHOT_PREFIX = "snap-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String SHARD_GENERATION_PREFIX = "index-";
+
+    private final RepositoryData repositoryData;
+    private final Set<String> snapshotUuids;
+    // the index of every index id the repository data knows
+    private final Map<String, IndexId> indices;
+
+    COSBlobReferences(RepositoryData repositoryData) {
+        this.repositoryData = repositoryData;
+        this.snapshotUuids = repositoryData.getSnapshotIds().stream().map(SnapshotId::getUUID).collect(Collectors.toSet());
+        this.indices = repositoryData.getIndices().values().stream().collect(Collectors.toMap(IndexId::getId, indexId -> indexId));
+    }
+
+    RepositoryData repositoryData() {
+        return repositoryData;
+    }
+
+    /**
+     * Returns the index with the given id, or {@code null} if the repository data does not know it.
+     */
+    @Nullable
+    IndexId index(String indexId) {
+        return indices.get(indexId);
+    }
+
+    /**
+     * Returns the current generation of the given shard, or {@code null} if it is unknown.
+     */
+    @Nullable
+    ShardGeneration currentGeneration(IndexId index, int shardId) {
+        final List<ShardGeneration> generations = repositoryData.shardGenerations().getGens(index);
+        return shardId >= 0 && shardId < generations.size() ? generations.get(shardId) : null;
+    }
+
+    /**
+     * Whether a blob of a shard of a known index is no longer referenced.
+     *
+     * @param current the current generation of the shard, or {@code null} if it is unknown
+     */
+    boolean isStaleShardBlob(String blobName, @Nullable ShardGeneration current) {
+        if (blobName.startsWith(SHARD_GENERATION_PREFIX)) {
+            // repositories written before shard generations were tracked keep numeric generations, whose current one is unknown here
+            return current != null && blobName.equals(SHARD_GENERATION_PREFIX + current.toBlobNamePart()) == false;
+        }
+        if (blobName.startsWith(SNAPSHOT_PREFIX) && blobName.endsWith(SNAPSHOT_SUFFIX)) {
+            return snapshotUuids.contains(
+                    blobName.substring(SNAPSHOT_PREFIX.length(), blobName.length() - SNAPSHOT_SUFFIX.length())) == false;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the blob at the given path relative to the {@code indices/} folder is no longer referenced. Paths that do not follow
+     * the repository layout count as referenced.
+     */
+    boolean isStale(String path) {
+        final String[] parts = path.split("/", -1);
+        if (parts.length < 2 || parts[0].isEmpty()) {
+            return false;
+        }
+        final IndexId index = indices.get(parts[0]);
+        if (index == null) {
+            return true;
+        }
+        if (parts.length != 3) {
+            return false;
+        }
+        final int shardId;
+        try {
+            shardId = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return isStaleShardBlob(parts[2], currentGeneration(index, shardId));
+    }
+}
@@ -1,40 +1,108 @@
 package org.elasticsearch.repositories.cos;
 
 import com.qcloud.cos.COSClient;
+import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.exception.CosServiceException;
+import com.qcloud.cos.exception.MultiObjectDeleteException;
+import com.qcloud.cos.model.AbortMultipartUploadRequest;
+import com.qcloud.cos.model.COSObject;
+import com.qcloud.cos.model.DeleteObjectsRequest;
+import com.qcloud.cos.model.GetObjectRequest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.cluster.routing.Murmur3HashFunction;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.blobstore.BlobContainer;
 import org.elasticsearch.common.blobstore.BlobPath;
 import org.elasticsearch.common.blobstore.BlobStore;
 import org.elasticsearch.common.blobstore.OperationPurpose;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.core.Nullable;
+import org.elasticsearch.core.Releasable;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.repositories.blobstore.BlobStoreRepository;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class COSBlobStore implements BlobStore {
     
     private static final Logger logger = LogManager.getLogger(COSBlobStore.class);
+
+    static final int MAX_BULK_DELETES = 1000;
     
-    private final COSClient client;
+    private final COSEndpoints endpoints;
     private final String bucket;
+    private final List<String> dataBuckets;
 
     private final BigArrays bigArrays;
+    private final COSBufferBudget bufferBudget;
+    private final COSTrafficLimits trafficLimits;
     private final ByteSizeValue bufferSize;
+    private final COSRequestStats requestStats;
+    private final COSResumableUploads resumableUploads;
+    private final COSRetryPolicy retryPolicy;
+    private final COSHedgedReads hedgedReads;
+    private final COSReadCoalescer readCoalescer;
+    private final COSReadLength readLength;
+    @Nullable
+    private final COSEncryption encryption;
+    @Nullable
+    private final COSDeletionJournal deletionJournal;
+    @Nullable
+    private final COSAppendWrites appendWrites;
+    @Nullable
+    private final COSReadOnlyCache readOnlyCache;
+    private final COSStallWatchdog stallWatchdog;
+    private final COSRequestScheduler scheduler;
+    private final COSConsistencyProbe consistencyProbe;
+
+    private COSBlobStore(Builder builder) {
+        this.endpoints = builder.endpoints;
+        this.bucket = builder.bucket;
+        this.dataBuckets = List.copyOf(builder.dataBuckets);
+        this.bigArrays = builder.bigArrays;
+        this.bufferBudget = builder.bufferBudget;
+        this.trafficLimits = builder.trafficLimits;
+        this.bufferSize = builder.bufferSize;
+        this.requestStats = new COSRequestStats(builder.slowRequestThreshold);
+        this.resumableUploads = new COSResumableUploads(builder.multipartResumeTtl, System::nanoTime);
+        this.retryPolicy = builder.retryPolicy;
+        this.hedgedReads = builder.hedgedReads;
+        this.readCoalescer = builder.readCoalescer;
+        this.readLength = builder.readLength;
+        this.encryption = builder.encryption;
+        this.deletionJournal = builder.deletionJournal;
+        this.appendWrites = builder.appendWrites;
+        this.readOnlyCache = builder.readOnlyCache;
+        this.stallWatchdog = builder.stallWatchdog;
+        this.scheduler = builder.scheduler;
+        this.consistencyProbe = builder.consistencyProbe;
+    }
 
-    COSBlobStore(COSClient client, String bucket, ByteSizeValue bufferSize, BigArrays bigArrays) {
-        this.client = client;
-        this.bucket = bucket;
-        this.bigArrays = bigArrays;
-        this.bufferSize = bufferSize;
+    /**
+     * Returns a builder for a store of the given bucket, with every optional behaviour disabled until it is set.
+     */
+    static Builder builder(COSEndpoints endpoints, String bucket, ByteSizeValue bufferSize, BigArrays bigArrays) {
+        return new Builder(endpoints, bucket, bufferSize, bigArrays);
     }
 
     @Override
     public String toString() {
         return SocketAccess.doPrivileged(() ->
-                client.getClientConfig().getRegion() + "/" + bucket);
+                client().getClientConfig().getRegion() + "/" + bucket);
     }
 
     @Override
@@ -42,34 +110,558 @@ public class COSBlobStore implements BlobStore {
         return new COSBlobContainer(path, this);
     }
 
+    /**
+     * Deletes the blobs with the given keys. If deletions are deferred, data blobs are only recorded in the {@link COSDeletionJournal}
+     * and deleted in the background, everything else is deleted right away.
+     */
     @Override
     public void deleteBlobsIgnoringIfNotExists(OperationPurpose purpose, Iterator<String> blobNames) throws IOException {
+        deleteKeys(purpose, deletionJournal == null ? blobNames : deletionJournal.append(this, purpose, blobNames));
+    }
+
+    /**
+     * Deletes the blobs with the given keys right away, in batches of at most {@value #MAX_BULK_DELETES} keys per bucket.
+     */
+    void deleteKeys(OperationPurpose purpose, Iterator<String> keys) throws IOException {
+        if (keys.hasNext() == false) {
+            return;
+        }
+        // one partition per bucket, a striped repository keeps its data blobs apart from the rest
+        final Map<String, List<String>> partitions = new HashMap<>();
+        try {
+            // Cos API only allows 1k blobs per delete so we split up the given blobs into requests of max. 1k deletes
+            final AtomicReference<Exception> aex = new AtomicReference<>();
+            keys.forEachRemaining(key -> {
+                final String bucket = bucket(key);
+                final List<String> partition = partitions.computeIfAbsent(bucket, b -> new ArrayList<>());
+                partition.add(key);
+                if (partition.size() == MAX_BULK_DELETES) {
+                    deletePartition(purpose, bucket, partition, aex);
+                    partition.clear();
+                }
+            });
+            partitions.forEach((bucket, partition) -> {
+                if (partition.isEmpty() == false) {
+                    deletePartition(purpose, bucket, partition, aex);
+                }
+            });
+            if (aex.get() != null) {
+                throw aex.get();
+            }
+        } catch (Exception e) {
+            throw new IOException("Failed to delete blobs "
+                    + partitions.values().stream().flatMap(List::stream).limit(10).collect(Collectors.toList()), e);
+        }
+    }
 
+    private void deletePartition(OperationPurpose purpose, String bucket, List<String> partition, AtomicReference<Exception> aex) {
+        if (encryption != null) {
+            partition.forEach(encryption::invalidate);
+        }
+        try {
+            final DeleteObjectsRequest deleteRequest = new DeleteObjectsRequest(bucket)
+                    .withKeys(partition.toArray(Strings.EMPTY_ARRAY)).withQuiet(true);
+            COSBlobContainer.setRequestHeader(deleteRequest);
+            execute(Operation.DELETE_OBJECTS, purpose, partition.get(0), client -> client.deleteObjects(deleteRequest));
+        } catch (MultiObjectDeleteException e) {
+            // We are sending quiet mode requests so we can't use the deleted keys entry on the exception and instead
+            // first remove all keys that were sent in the request and then add back those that ran into an exception.
+            logger.warn(
+                    () -> new ParameterizedMessage("Failed to delete some blobs {}", e.getErrors()
+                            .stream().map(err -> "[" + err.getKey() + "][" + err.getCode() + "][" + err.getMessage() + "]")
+                            .collect(Collectors.toList())), e);
+            aex.set(ExceptionsHelper.useOrSuppress(aex.get(), e));
+        } catch (CosClientException e) {
+            // The Cos client threw any unexpected exception and did not execute the request at all so we do not
+            // remove any keys from the outstanding deletes set.
+            aex.set(ExceptionsHelper.useOrSuppress(aex.get(), e));
+        }
     }
 
+    /**
+     * Returns the number of requests per operation. These feed the repositories metering API, which expects nothing else, all
+     * other statistics are in {@link #detailedStats()}.
+     */
     @Override
     public Map<String, Long> stats() {
-        return BlobStore.super.stats();
+        return requestStats.counts();
+    }
+
+    /**
+     * Returns the request latencies and the statistics of the components of this store, served by {@link RestCOSStatsAction}.
+     */
+    Map<String, Long> detailedStats() {
+        final Map<String, Long> stats = new HashMap<>();
+        requestStats.addStats(stats);
+        endpoints.addStats(stats);
+        resumableUploads.addStats(stats);
+        retryPolicy.addStats(stats);
+        hedgedReads.addStats(stats);
+        readCoalescer.addStats(stats);
+        readLength.addStats(stats);
+        if (deletionJournal != null) {
+            deletionJournal.addStats(stats);
+        }
+        if (readOnlyCache != null) {
+            readOnlyCache.addStats(stats);
+        }
+        stallWatchdog.addStats(stats);
+        scheduler.addStats(stats);
+        consistencyProbe.addStats(stats);
+        bufferBudget.addStats(stats);
+        return stats;
+    }
+
+    /**
+     * Executes a single COS request against the preferred healthy endpoint of this store and records its latency. If the endpoint
+     * fails with a network or server error, requests that carry no payload are transparently retried on the next healthy endpoint.
+     * The request first waits for the {@link COSRequestScheduler} to admit it; that wait is not part of the recorded latency.
+     * If the request fails in a way the {@link COSRetryPolicy} deems transient and safe to repeat, it is sent again after a backoff,
+     * during which it does not hold on to its admission. Failovers and retries together are bounded by the maximum retries of the
+     * policy.
+     *
+     * @param key   the object key (or prefix) the request targets, used for the slow request log
+     * @param bytes the number of payload bytes sent with the request, or 0 if not applicable
+     */
+    <T> T execute(Operation operation, OperationPurpose purpose, String key, long bytes, Function<COSClient, T> request) {
+        return execute(operation, purpose, key, bytes, operation.hasPayload == false, retryPolicy.newBudget(), request);
+    }
+
+    /**
+     * Like {@link #execute(Operation, OperationPurpose, String, long, Function)} for a request with a payload that the given function
+     * rewinds before every attempt, so that it can be sent again, even to another endpoint.
+     */
+    <T> T executeReplayable(Operation operation, OperationPurpose purpose, String key, long bytes, Function<COSClient, T> request) {
+        return execute(operation, purpose, key, bytes, true, retryPolicy.newBudget(), request);
+    }
+
+    /**
+     * Sends a request, retrying and failing over as long as the given budget, which the request shares with the other layers that
+     * may send it again, has retries left.
+     */
+    private <T> T execute(Operation operation, OperationPurpose purpose, String key, long bytes, boolean replayable,
+                          COSRetryPolicy.Budget budget, Function<COSClient, T> request) {
+        for (int retry = 0; ; retry++) {
+            try {
+                final Releasable admission = scheduler.acquire(operation, purpose);
+                try {
+                    final T response = executeAdmitted(operation, purpose, key, bytes, replayable, budget, request);
+                    scheduler.onCompleted(operation, purpose, bytes, null);
+                    return response;
+                } catch (RuntimeException e) {
+                    scheduler.onCompleted(operation, purpose, bytes, e);
+                    throw e;
+                } finally {
+                    admission.close();
+                }
+            } catch (RuntimeException e) {
+                if (replayable == false || COSRetryPolicy.isRetryable(operation, e) == false || budget.tryConsume() == false) {
+                    throw e;
+                }
+                final int attempt = retry + 1;
+                logger.debug(() -> "retrying [" + operation.getKey() + "] on [" + key + "] after failed attempt [" + attempt + "]", e);
+                retryPolicy.onRetry(operation, retry, e);
+            }
+        }
+    }
+
+    private <T> T executeAdmitted(Operation operation, OperationPurpose purpose, String key, long bytes, boolean replayable,
+                                  COSRetryPolicy.Budget budget, Function<COSClient, T> request) {
+        final long startNanos = System.nanoTime();
+        String requestId = null;
+        COSEndpoints.Endpoint endpoint = endpoints.select();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                final COSClient client = endpoint.client();
+                try {
+                    final T response = SocketAccess.doPrivileged(() -> request.apply(client));
+                    endpoints.onSuccess(endpoint);
+                    requestId = COSRequestStats.requestId(response);
+                    return response;
+                } catch (RuntimeException e) {
+                    if (e instanceof CosServiceException) {
+                        requestId = ((CosServiceException) e).getRequestId();
+                    }
+                    if (endpoints.onFailure(endpoint, e) == false || replayable == false || attempt >= endpoints.size()
+                            || (operation.idempotent == false && COSRetryPolicy.isRejected(e) == false)
+                            || budget.tryConsume() == false) {
+                        throw e;
+                    }
+                    final COSEndpoints.Endpoint next = endpoints.selectHealthy();
+                    if (next == null) {
+                        throw e;
+                    }
+                    logger.debug("failing over [{}] on [{}] from endpoint [{}] to [{}]", operation.getKey(), key, endpoint, next);
+                    endpoints.onFailover();
+                    endpoint = next;
+                }
+            }
+        } finally {
+            requestStats.record(operation, purpose, key, bytes, requestId, System.nanoTime() - startNanos);
+        }
+    }
+
+    <T> T execute(Operation operation, OperationPurpose purpose, String key, Function<COSClient, T> request) {
+        return execute(operation, purpose, key, 0L, request);
+    }
+
+    void executeVoid(Operation operation, OperationPurpose purpose, String key, Consumer<COSClient> request) {
+        execute(operation, purpose, key, 0L, c -> {
+            request.accept(c);
+            return null;
+        });
+    }
+
+    /**
+     * Sends a GET request, hedged if hedged reads are enabled for this store.
+     *
+     * @param request creates the request, called once per attempt since concurrent attempts must not share a request
+     */
+    COSObject getObject(OperationPurpose purpose, String key, Supplier<GetObjectRequest> request) throws IOException {
+        return getObject(purpose, key, retryPolicy.newBudget(), request);
+    }
+
+    /**
+     * Like {@link #getObject(OperationPurpose, String, Supplier)}, retrying within the given budget of a read that may also spend it
+     * on reopening its download.
+     */
+    COSObject getObject(OperationPurpose purpose, String key, COSRetryPolicy.Budget budget, Supplier<GetObjectRequest> request)
+            throws IOException {
+        return hedgedReads.getObject(() -> execute(Operation.GET_OBJECT, purpose, key, 0L, true, budget,
+                client -> client.getObject(request.get())));
+    }
+
+    COSReadCoalescer readCoalescer() {
+        return readCoalescer;
+    }
+
+    COSReadLength readLength() {
+        return readLength;
+    }
+
+    /**
+     * Returns the client-side encryption of the blobs of this store, or {@code null} if blobs are stored in plaintext.
+     */
+    @Nullable
+    COSEncryption encryption() {
+        return encryption;
+    }
+
+    /**
+     * Returns the journal data blobs are deleted through, or {@code null} if deletions are not deferred.
+     */
+    @Nullable
+    COSDeletionJournal deletionJournal() {
+        return deletionJournal;
+    }
+
+    /**
+     * Returns how streamed metadata blobs are appended, or {@code null} if they are written as multipart uploads.
+     */
+    @Nullable
+    COSAppendWrites appendWrites() {
+        return appendWrites;
+    }
+
+    /**
+     * Returns the cache of listings and metadata blobs of a readonly repository, or {@code null} if reads are not cached.
+     */
+    @Nullable
+    COSReadOnlyCache readOnlyCache() {
+        return readOnlyCache;
+    }
+
+    COSRequestScheduler scheduler() {
+        return scheduler;
+    }
+
+    COSStallWatchdog stallWatchdog() {
+        return stallWatchdog;
+    }
+
+    COSRequestStats requestStats() {
+        return requestStats;
+    }
+
+    COSResumableUploads resumableUploads() {
+        return resumableUploads;
+    }
+
+    COSRetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Aborts the retained multipart uploads nobody came back for within the resume time to live, releasing the storage of their parts.
+     */
+    void abortExpiredUploads(OperationPurpose purpose) {
+        abortUploads(purpose, resumableUploads.removeExpired());
+    }
+
+    void abortUploads(OperationPurpose purpose, List<COSResumableUploads.Upload> uploads) {
+        for (COSResumableUploads.Upload upload : uploads) {
+            try {
+                executeVoid(Operation.ABORT_MULTIPART_UPLOAD, purpose, upload.blobKey(), client -> client.abortMultipartUpload(
+                        new AbortMultipartUploadRequest(bucket(upload.blobKey()), upload.blobKey(), upload.uploadId())));
+            } catch (Exception e) {
+                logger.warn(() -> "failed to abort retained multipart upload [" + upload.uploadId() + "] of [" + upload.blobKey() + "]", e);
+            }
+        }
     }
 
     @Override
     public void close() {
-        SocketAccess.doPrivilegedVoid(() -> client.shutdown());
+        try {
+            abortUploads(OperationPurpose.SNAPSHOT_DATA, resumableUploads.removeAll());
+            if (appendWrites != null) {
+                try {
+                    deleteKeys(OperationPurpose.SNAPSHOT_METADATA, appendWrites.drainPublished().iterator());
+                } catch (Exception e) {
+                    logger.warn("failed to delete the temporary keys of appended metadata blobs", e);
+                }
+            }
+        } finally {
+            endpoints.close();
+        }
     }
 
+    /**
+     * Returns the client of the endpoint requests are currently sent to.
+     */
     public COSClient client() {
-        return client;
+        return endpoints.select().client();
     }
 
+    /**
+     * The primary bucket of the repository, which holds every blob but the data blobs of a striped repository.
+     */
     public String bucket() {
         return bucket;
     }
+
+    /**
+     * Returns the bucket that holds the blob with the given key. A striped repository spreads its data blobs, whose names start with
+     * {@link BlobStoreRepository#UPLOADED_DATA_BLOB_PREFIX}, over its data buckets by a hash of their key, all other blobs live in the
+     * primary bucket.
+     */
+    String bucket(String key) {
+        if (dataBuckets.isEmpty() || isDataBlob(key) == false) {
+            return bucket;
+        }
+        return dataBuckets.get(Math.floorMod(Murmur3HashFunction.hash(key), dataBuckets.size()));
+    }
+
+    /**
+     * Returns every bucket that holds blobs of the repository, the primary one first.
+     */
+    List<String> buckets() {
+        if (dataBuckets.isEmpty()) {
+            return List.of(bucket);
+        }
+        final List<String> buckets = new ArrayList<>(dataBuckets.size() + 1);
+        buckets.add(bucket);
+        for (String dataBucket : dataBuckets) {
+            if (buckets.contains(dataBucket) == false) {
+                buckets.add(dataBucket);
+            }
+        }
+        return buckets;
+    }
+
+    static boolean isDataBlob(String key) {
+        return key.startsWith(BlobStoreRepository.UPLOADED_DATA_BLOB_PREFIX, key.lastIndexOf('/') + 1);
+    }
     
     public BigArrays bigArrays() {
         return bigArrays;
     }
+
+    /**
+     * The node-wide budget that buffers from {@link #bigArrays()} must be reserved from, see {@link COSBufferBudget}.
+     */
+    COSBufferBudget bufferBudget() {
+        return bufferBudget;
+    }
+
+    /**
+     * The {@code x-cos-traffic-limit} of a request that transfers blob content for the given purpose, in bits per second, or
+     * {@code 0} if it is not limited, see {@link COSTrafficLimits}.
+     */
+    int trafficLimit(OperationPurpose purpose, boolean upload) {
+        return trafficLimits.limit(purpose, upload);
+    }
     
     public long bufferSizeInBytes() {
         return bufferSize.getBytes();
     }
+
+    /**
+     * The COS API calls issued by this blob store, used as the keys of {@link #stats()}.
+     */
+    enum Operation {
+        HEAD_OBJECT("HeadObject", false, true),
+        GET_OBJECT("GetObject", false, true),
+        LIST_OBJECTS("ListObjects", false, true),
+        PUT_OBJECT("PutObject", true, true),
+        // a repeated initiation at worst leaves an upload without parts behind, which takes no storage
+        INITIATE_MULTIPART_UPLOAD("InitiateMultipartUpload", false, true),
+        UPLOAD_PART("UploadPart", true, true),
+        LIST_PARTS("ListParts", false, true),
+        COMPLETE_MULTIPART_UPLOAD("CompleteMultipartUpload", false, false),
+        ABORT_MULTIPART_UPLOAD("AbortMultipartUpload", false, true),
+        DELETE_OBJECTS("DeleteObjects", false, true),
+        // an append that took effect moved the position of the object, sending it again fails or appends the buffer twice
+        APPEND_OBJECT("AppendObject", true, false),
+        COPY_OBJECT("CopyObject", false, true);
+
+        private final String key;
+
+        /**
+         * Whether the request streams a body that may already be consumed when it fails, so it cannot simply be sent again.
+         */
+        private final boolean hasPayload;
+
+        /**
+         * Whether sending the request again after it may have taken effect leaves the repository as if it was sent once. A
+         * {@code CompleteMultipartUpload} is not: if it took effect, the upload is gone and a second one fails. Neither is an
+         * {@code AppendObject}, which is sent for a position.
+         */
+        private final boolean idempotent;
+
+        Operation(String key, boolean hasPayload, boolean idempotent) {
+            this.key = key;
+            this.hasPayload = hasPayload;
+            this.idempotent = idempotent;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        boolean isIdempotent() {
+            return idempotent;
+        }
+    }
+
+    /**
+     * Collects what a store is made of, defaulting to the disabled variant of every optional component.
+     */
+    static final class Builder {
+
+        private final COSEndpoints endpoints;
+        private final String bucket;
+        private final ByteSizeValue bufferSize;
+        private final BigArrays bigArrays;
+        private List<String> dataBuckets = List.of();
+        private COSBufferBudget bufferBudget = COSBufferBudget.UNLIMITED;
+        private COSTrafficLimits trafficLimits = COSTrafficLimits.UNLIMITED;
+        private TimeValue slowRequestThreshold = TimeValue.MINUS_ONE;
+        private TimeValue multipartResumeTtl = TimeValue.ZERO;
+        private COSRetryPolicy retryPolicy = COSRetryPolicy.NONE;
+        private COSHedgedReads hedgedReads = COSHedgedReads.DISABLED;
+        private COSReadCoalescer readCoalescer = COSReadCoalescer.DISABLED;
+        private COSReadLength readLength = COSReadLength.DEFAULT;
+        @Nullable
+        private COSEncryption encryption;
+        @Nullable
+        private COSDeletionJournal deletionJournal;
+        @Nullable
+        private COSAppendWrites appendWrites;
+        @Nullable
+        private COSReadOnlyCache readOnlyCache;
+        private COSStallWatchdog stallWatchdog = COSStallWatchdog.DISABLED;
+        private COSRequestScheduler scheduler = COSRequestScheduler.DISABLED;
+        private COSConsistencyProbe consistencyProbe = new COSConsistencyProbe();
+
+        private Builder(COSEndpoints endpoints, String bucket, ByteSizeValue bufferSize, BigArrays bigArrays) {
+            this.endpoints = endpoints;
+            this.bucket = bucket;
+            this.bufferSize = bufferSize;
+            this.bigArrays = bigArrays;
+        }
+
+        Builder dataBuckets(List<String> dataBuckets) {
+            this.dataBuckets = dataBuckets;
+            return this;
+        }
+
+        Builder bufferBudget(COSBufferBudget bufferBudget) {
+            this.bufferBudget = bufferBudget;
+            return this;
+        }
+
+        Builder trafficLimits(COSTrafficLimits trafficLimits) {
+            this.trafficLimits = trafficLimits;
+            return this;
+        }
+
+        Builder slowRequestThreshold(TimeValue slowRequestThreshold) {
+            this.slowRequestThreshold = slowRequestThreshold;
+            return this;
+        }
+
+        Builder multipartResumeTtl(TimeValue multipartResumeTtl) {
+            this.multipartResumeTtl = multipartResumeTtl;
+            return this;
+        }
+
+        Builder retryPolicy(COSRetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        Builder hedgedReads(COSHedgedReads hedgedReads) {
+            this.hedgedReads = hedgedReads;
+            return this;
+        }
+
+        Builder readCoalescer(COSReadCoalescer readCoalescer) {
+            this.readCoalescer = readCoalescer;
+            return this;
+        }
+
+        Builder readLength(COSReadLength readLength) {
+            this.readLength = readLength;
+            return this;
+        }
+
+        Builder encryption(@Nullable COSEncryption encryption) {
+            this.encryption = encryption;
+            return this;
+        }
+
+        Builder deletionJournal(@Nullable COSDeletionJournal deletionJournal) {
+            this.deletionJournal = deletionJournal;
+            return this;
+        }
+
+        Builder appendWrites(@Nullable COSAppendWrites appendWrites) {
+            this.appendWrites = appendWrites;
+            return this;
+        }
+
+        Builder readOnlyCache(@Nullable COSReadOnlyCache readOnlyCache) {
+            this.readOnlyCache = readOnlyCache;
+            return this;
+        }
+
+        Builder stallWatchdog(COSStallWatchdog stallWatchdog) {
+            this.stallWatchdog = stallWatchdog;
+            return this;
+        }
+
+        Builder scheduler(COSRequestScheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        Builder consistencyProbe(COSConsistencyProbe consistencyProbe) {
+            this.consistencyProbe = consistencyProbe;
+            return this;
+        }
+
+        COSBlobStore build() {
+            return new COSBlobStore(this);
+        }
+    }
 }
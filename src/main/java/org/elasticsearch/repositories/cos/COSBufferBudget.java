@@ -0,0 +1,171 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.core.Nullable;
+import org.elasticsearch.core.Releasable;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the memory of the buffers that uploads and downloads stage their data in, across all COS repositories of the node.
+ * <p>
+ * A buffer is reserved before it is allocated: the reservation gets the preferred size if the budget allows, or as much as is left
+ * if that is at least the minimum size the caller can work with, e.g. a smaller part size of a multipart upload. Otherwise the caller
+ * waits until other reservations are released. Reservations are also held back while the request circuit breaker has no room for
+ * them, so that staging buffers do not push other requests over the breaker limit. A reservation on its own is always granted if
+ * nothing else is reserved, even if it exceeds the budget.
+ */
+final class COSBufferBudget {
+
+    static final COSBufferBudget UNLIMITED = new COSBufferBudget(0L, null);
+
+    /**
+     * How often a reservation that waits for room in the circuit breaker checks again, since the breaker does not notify.
+     */
+    private static final long BREAKER_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private final long limit;
+    @Nullable
+    private final CircuitBreaker breaker;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // guarded by lock
+    private long used;
+    private int waiting;
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder shrunk = new LongAdder();
+
+    /**
+     * @param limit   the number of bytes that can be reserved at the same time, or {@code 0} for no limit
+     * @param breaker the circuit breaker whose remaining room also limits reservations, if any
+     */
+    COSBufferBudget(long limit, @Nullable CircuitBreaker breaker) {
+        this.limit = limit;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Reserves between {@code minBytes} and {@code preferredBytes} bytes, waiting as long as not even {@code minBytes} are left.
+     */
+    Reservation reserve(long preferredBytes, long minBytes) throws InterruptedIOException {
+        assert 0L < minBytes && minBytes <= preferredBytes : minBytes + " vs " + preferredBytes;
+        if (limit <= 0L && breaker == null) {
+            return new Reservation(0L, preferredBytes);
+        }
+        long startNanos = 0L;
+        lock.lock();
+        try {
+            while (true) {
+                final long granted = grantable(preferredBytes, minBytes);
+                if (granted > 0L) {
+                    used += granted;
+                    if (granted < preferredBytes) {
+                        shrunk.increment();
+                    }
+                    return new Reservation(granted, granted);
+                }
+                if (startNanos == 0L) {
+                    startNanos = System.nanoTime();
+                    waits.increment();
+                }
+                waiting++;
+                try {
+                    released.awaitNanos(BREAKER_CHECK_INTERVAL_NANOS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for [" + minBytes + "] bytes of buffer budget");
+                } finally {
+                    waiting--;
+                }
+            }
+        } finally {
+            lock.unlock();
+            if (startNanos != 0L) {
+                waitNanos.add(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    private long grantable(long preferredBytes, long minBytes) {
+        assert lock.isHeldByCurrentThread();
+        if (used == 0L) {
+            // always let a single reservation through, otherwise one that exceeds the budget would wait forever
+            return Math.max(minBytes, Math.min(preferredBytes, available()));
+        }
+        final long granted = Math.min(preferredBytes, available());
+        return granted >= minBytes ? granted : 0L;
+    }
+
+    private long available() {
+        long available = limit > 0L ? limit - used : Long.MAX_VALUE;
+        if (breaker != null && breaker.getLimit() > 0L) {
+            available = Math.min(available, breaker.getLimit() - breaker.getUsed());
+        }
+        return available;
+    }
+
+    private void release(long bytes) {
+        lock.lock();
+        try {
+            used -= bytes;
+            assert used >= 0L : used;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        lock.lock();
+        try {
+            stats.put("buffer_budget.used_bytes", used);
+            stats.put("buffer_budget.waiting", (long) waiting);
+        } finally {
+            lock.unlock();
+        }
+        stats.put("buffer_budget.limit_bytes", limit);
+        stats.put("buffer_budget.waits", waits.sum());
+        stats.put("buffer_budget.wait_time_millis", TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()));
+        stats.put("buffer_budget.shrunk_reservations", shrunk.sum());
+    }
+
+    /**
+     * Bytes reserved for a buffer, returned to the budget on {@link #close()}.
+     */
+    final class Reservation implements Releasable {
+
+        private final long reserved;
+        private final long bytes;
+        private boolean closed;
+
+        private Reservation(long reserved, long bytes) {
+            this.reserved = reserved;
+            this.bytes = bytes;
+        }
+
+        /**
+         * The size the buffer may grow to.
+         */
+        long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            if (closed == false) {
+                closed = true;
+                if (reserved > 0L) {
+                    release(reserved);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.auth.AnonymousCOSCredentials;
+import com.qcloud.cos.auth.COSCredentials;
+import com.qcloud.cos.auth.COSSigner;
+import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.http.HttpMethodName;
+import com.qcloud.cos.utils.UrlEncoderUtils;
+import org.elasticsearch.common.hash.MessageDigests;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Signs requests like {@link COSSigner} does, but with less work per request. The SDK derives the sign key, an HMAC-SHA1 of the secret
+ * key and the key time, and looks up a new {@link Mac} and {@link java.security.MessageDigest} for every request. This signer aligns
+ * the key time of the requests it signs to windows of {@link #KEY_TIME_WINDOW_MILLIS}, so that the sign key only has to be derived
+ * once per window, and keeps one {@link Mac} per thread. The key time is widened by less than a window: its start moves back to the
+ * start of the window and its end forward to the end of one, a signature is never valid for less time than the SDK asked for.
+ */
+final class COSCachingSigner extends COSSigner {
+
+    static final long KEY_TIME_WINDOW_MILLIS = 60_000L;
+
+    private static final String HMAC_SHA1 = "HmacSHA1";
+
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC_SHA1);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA1 is not available", e);
+        }
+    });
+
+    private final LongSupplier currentTimeMillis;
+
+    private volatile boolean ciWorkflowRequest;
+
+    // the sign key derived last, requests of the same window share it
+    private volatile SignKey signKey;
+
+    COSCachingSigner(LongSupplier currentTimeMillis) {
+        this.currentTimeMillis = currentTimeMillis;
+    }
+
+    @Override
+    public void setCIWorkflowRequest(Boolean ciWorkflowRequest) {
+        super.setCIWorkflowRequest(ciWorkflowRequest);
+        this.ciWorkflowRequest = ciWorkflowRequest;
+    }
+
+    /**
+     * Called by {@link #sign} with the end of the key time, aligns the key time to the window it falls into.
+     */
+    @Override
+    public String buildAuthorizationStr(HttpMethodName methodName, String resourcePath, Map<String, String> headers,
+                                        Map<String, String> params, COSCredentials cred, Date expiredTime, Boolean signHost) {
+        final long now = currentTimeMillis.getAsLong();
+        final long start = now - Math.floorMod(now, KEY_TIME_WINDOW_MILLIS);
+        final long end = expiredTime.getTime() + Math.floorMod(-expiredTime.getTime(), KEY_TIME_WINDOW_MILLIS);
+        return buildAuthorizationStr(methodName, resourcePath, headers, params, cred, new Date(start), new Date(end), signHost);
+    }
+
+    @Override
+    public String buildAuthorizationStr(HttpMethodName methodName, String resourcePath, Map<String, String> headers,
+                                        Map<String, String> params, COSCredentials cred, Date startTime, Date endTime,
+                                        Boolean signHost) {
+        if (cred instanceof AnonymousCOSCredentials) {
+            return null;
+        }
+        if (ciWorkflowRequest) {
+            resourcePath = resourcePath.split("\\?")[0];
+        }
+        final TreeMap<String, String> signedHeaders = encodeSorted(signedHeaders(headers, signHost));
+        final TreeMap<String, String> signedParams = encodeSorted(params);
+        final String keyTime = (startTime.getTime() / 1000 + getLocalTimeDelta()) + ";"
+                + (endTime.getTime() / 1000 + getLocalTimeDelta());
+
+        final String httpString = methodName.toString().toLowerCase(Locale.ROOT) + "\n" + resourcePath + "\n"
+                + formatMap(signedParams) + "\n" + formatMap(signedHeaders) + "\n";
+        final String stringToSign = "sha1\n" + keyTime + "\n"
+                + MessageDigests.toHexString(MessageDigests.sha1().digest(httpString.getBytes(StandardCharsets.UTF_8))) + "\n";
+        final String signature = hmacSha1Hex(signKey(cred.getCOSSecretKey(), keyTime), stringToSign);
+
+        return "q-sign-algorithm=sha1&q-ak=" + cred.getCOSAccessKeyId() + "&q-sign-time=" + keyTime + "&q-key-time=" + keyTime
+                + "&q-header-list=" + String.join(";", signedHeaders.keySet()) + "&q-url-param-list="
+                + String.join(";", signedParams.keySet()) + "&q-signature=" + signature;
+    }
+
+    private String signKey(String secretKey, String keyTime) {
+        final SignKey current = signKey;
+        if (current != null && current.keyTime.equals(keyTime) && current.secretKey.equals(secretKey)) {
+            return current.key;
+        }
+        final SignKey derived = new SignKey(secretKey, keyTime, hmacSha1Hex(secretKey, keyTime));
+        signKey = derived;
+        return derived.key;
+    }
+
+    private Map<String, String> signedHeaders(Map<String, String> headers, Boolean signHost) {
+        boolean hasHost = false;
+        final Map<String, String> signedHeaders = new HashMap<>();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            final String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.equals("host")) {
+                hasHost = true;
+            }
+            if (needSignedHeader(name)) {
+                signedHeaders.put(name, header.getValue());
+            }
+        }
+        if (hasHost == false && signHost) {
+            throw new CosClientException(String.format(Locale.ROOT, "buildAuthorization missing header: host. %s", headers));
+        }
+        return signedHeaders;
+    }
+
+    private static TreeMap<String, String> encodeSorted(Map<String, String> members) {
+        final TreeMap<String, String> encoded = new TreeMap<>();
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            if (member.getKey() == null) {
+                continue;
+            }
+            final String value = member.getValue() == null ? "" : member.getValue().trim();
+            encoded.put(UrlEncoderUtils.encode(member.getKey().trim()).toLowerCase(Locale.ROOT), UrlEncoderUtils.encode(value));
+        }
+        return encoded;
+    }
+
+    private static String formatMap(Map<String, String> members) {
+        final StringBuilder builder = new StringBuilder();
+        boolean first = true;
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            if (first) {
+                first = false;
+            } else {
+                builder.append('&');
+            }
+            builder.append(member.getKey()).append('=').append(member.getValue());
+        }
+        return builder.toString();
+    }
+
+    private static String hmacSha1Hex(String key, String value) {
+        final Mac mac = MAC.get();
+        try {
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), HMAC_SHA1));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("failed to initialize HMAC-SHA1", e);
+        }
+        return MessageDigests.toHexString(mac.doFinal(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private record SignKey(String secretKey, String keyTime, String key) {
+    }
+}
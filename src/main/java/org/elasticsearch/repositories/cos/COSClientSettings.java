@@ -1,9 +1,16 @@
 package org.elasticsearch.repositories.cos;
 
+import org.elasticsearch.common.settings.SecureSetting;
 import org.elasticsearch.common.settings.SecureString;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static org.elasticsearch.common.settings.Setting.*;
 
@@ -45,4 +52,47 @@ public class COSClientSettings {
             byteSizeSetting(PREFIX + "chunk_size", MAX_CHUNK_SIZE, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE,
                     Setting.Property.NodeScope, Setting.Property.Dynamic);
     public static final Setting<String> END_POINT = Setting.simpleString(PREFIX + "end_point", "", Property.NodeScope, Property.Dynamic);
+    /**
+     * Ordered list of endpoints to fail over between, e.g. the internal, the public and the global acceleration endpoint of the
+     * region. Takes precedence over {@link #END_POINT}.
+     */
+    public static final Setting<List<String>> END_POINTS = listSetting(PREFIX + "end_points", Collections.emptyList(),
+            Function.identity(), Property.NodeScope, Property.Dynamic);
+    /**
+     * How long an endpoint that failed with a network or server error is skipped before it is tried again. Doubles with every
+     * further consecutive failure.
+     */
+    public static final Setting<TimeValue> END_POINT_RETRY_INTERVAL = timeSetting(PREFIX + "end_point_retry_interval",
+            new TimeValue(30, TimeUnit.SECONDS), new TimeValue(0, TimeUnit.MILLISECONDS), Property.NodeScope, Property.Dynamic);
+    /**
+     * Base64 encoded 128, 192 or 256 bit AES key, kept in the keystore and read when the node starts. Repositories with
+     * {@link COSRepository#ENCRYPT_SETTING} encrypt every blob on the client with a data key of its own that is wrapped with this
+     * master key, see {@link COSEncryption}. Must not be changed or removed while such a repository holds blobs.
+     */
+    public static final Setting<SecureString> ENCRYPTION_MASTER_KEY = SecureSetting.secureString(PREFIX + "encryption_master_key", null);
+
+    /**
+     * The memory all COS repositories of the node may use for the buffers they stage uploads and downloads in, as an absolute size or
+     * as a percentage of the heap, see {@link COSBufferBudget}. Set to {@code 0} for no limit other than the request circuit breaker.
+     */
+    public static final Setting<ByteSizeValue> BUFFER_BUDGET =
+            memorySizeSetting(PREFIX + "buffer_budget", "10%", Property.NodeScope);
+
+    /**
+     * Bandwidth cap of every request that uploads blob content for the operation purpose the setting is named after, e.g.
+     * {@code cos.client.upload_traffic_limit.snapshot_data: 20mb} for 20MB per second, see {@link COSTrafficLimits}. {@code 0} means
+     * no cap, caps below 100KB per second are raised to that.
+     */
+    public static final Setting.AffixSetting<ByteSizeValue> UPLOAD_TRAFFIC_LIMIT = trafficLimitSetting(PREFIX + "upload_traffic_limit.");
+    /**
+     * Bandwidth cap of every request that downloads blob content for the operation purpose the setting is named after, like
+     * {@link #UPLOAD_TRAFFIC_LIMIT}.
+     */
+    public static final Setting.AffixSetting<ByteSizeValue> DOWNLOAD_TRAFFIC_LIMIT =
+            trafficLimitSetting(PREFIX + "download_traffic_limit.");
+
+    private static Setting.AffixSetting<ByteSizeValue> trafficLimitSetting(String prefix) {
+        return prefixKeySetting(prefix, key -> byteSizeSetting(key, ByteSizeValue.ZERO, ByteSizeValue.ZERO,
+                ByteSizeValue.ofBytes(COSTrafficLimits.MAX_BITS_PER_SECOND / Byte.SIZE), Property.NodeScope, Property.Dynamic));
+    }
 }
@@ -0,0 +1,130 @@
+package org.elasticsearch.repositories.cos;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.blobstore.support.BlobMetadata;
+import org.elasticsearch.common.bytes.BytesArray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Checks that the bucket behind a repository is strongly consistent, i.e. that a blob can be read and is listed right after it was
+ * written, that an overwrite is visible right away and that a deleted blob is gone from reads and listings.
+ * <p>
+ * The cooldown after finalizing a snapshot in the legacy repository format only guards against eventual consistency, so it can be
+ * skipped once the probe passed.
+ */
+final class COSConsistencyProbe {
+
+    private static final Logger logger = LogManager.getLogger(COSConsistencyProbe.class);
+
+    static final int ROUNDS = 3;
+
+    private static final String BLOB_NAME = "probe";
+
+    enum Result {
+        NOT_RUN,
+        PASSED,
+        FAILED
+    }
+
+    private volatile Result result = Result.NOT_RUN;
+
+    boolean passed() {
+        return result == Result.PASSED;
+    }
+
+    Result result() {
+        return result;
+    }
+
+    /**
+     * Runs the probe against the (empty) container returned by the given supplier and deletes the container afterwards. The probe is
+     * advisory, so it never throws: if the container cannot even be created, the probe fails and the cooldown is kept.
+     */
+    void run(Supplier<BlobContainer> containerSupplier, Random random) {
+        final BlobContainer container;
+        try {
+            container = containerSupplier.get();
+        } catch (Exception e) {
+            result = Result.FAILED;
+            logger.warn("consistency probe could not be started, keeping the cooldown after snapshot operations", e);
+            return;
+        }
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                probe(container, random);
+            }
+            result = Result.PASSED;
+            logger.debug("consistency probe of [{}] passed", container.path());
+        } catch (Exception e) {
+            result = Result.FAILED;
+            logger.warn(() -> "consistency probe of [" + container.path() + "] failed, keeping the cooldown after snapshot operations", e);
+        } finally {
+            try {
+                container.delete(OperationPurpose.REPOSITORY_ANALYSIS);
+            } catch (Exception e) {
+                logger.warn(() -> "failed to clean up consistency probe container [" + container.path() + "]", e);
+            }
+        }
+    }
+
+    private static void probe(BlobContainer container, Random random) throws IOException {
+        final byte[] written = randomBytes(random);
+        container.writeBlob(OperationPurpose.REPOSITORY_ANALYSIS, BLOB_NAME, new BytesArray(written), false);
+        checkRead(container, written, "read-after-write");
+        final BlobMetadata listed = container.listBlobs(OperationPurpose.REPOSITORY_ANALYSIS).get(BLOB_NAME);
+        if (listed == null || listed.length() != written.length) {
+            throw new IOException("list-after-write inconsistency, listed " + listed + " after writing [" + written.length + "] bytes");
+        }
+
+        final byte[] overwritten = randomBytes(random);
+        container.writeBlob(OperationPurpose.REPOSITORY_ANALYSIS, BLOB_NAME, new BytesArray(overwritten), false);
+        checkRead(container, overwritten, "read-after-overwrite");
+
+        container.deleteBlobsIgnoringIfNotExists(OperationPurpose.REPOSITORY_ANALYSIS, Collections.singletonList(BLOB_NAME).iterator());
+        final Map<String, BlobMetadata> remaining = container.listBlobs(OperationPurpose.REPOSITORY_ANALYSIS);
+        if (remaining.containsKey(BLOB_NAME)) {
+            throw new IOException("list-after-delete inconsistency, deleted blob is still listed");
+        }
+        try (InputStream stream = container.readBlob(OperationPurpose.REPOSITORY_ANALYSIS, BLOB_NAME)) {
+            stream.readAllBytes();
+            throw new IOException("read-after-delete inconsistency, deleted blob can still be read");
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+    }
+
+    private static void checkRead(BlobContainer container, byte[] expected, String check) throws IOException {
+        final byte[] read;
+        try (InputStream stream = container.readBlob(OperationPurpose.REPOSITORY_ANALYSIS, BLOB_NAME)) {
+            read = stream.readAllBytes();
+        } catch (NoSuchFileException e) {
+            throw new IOException(check + " inconsistency, blob not found", e);
+        }
+        if (Arrays.equals(expected, read) == false) {
+            throw new IOException(check + " inconsistency, read [" + read.length + "] bytes that differ from the [" + expected.length
+                    + "] bytes written");
+        }
+    }
+
+    private static byte[] randomBytes(Random random) {
+        final byte[] bytes = new byte[1 + random.nextInt(1024)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    void addStats(Map<String, Long> stats) {
+        stats.put("consistency_probe.completed", result == Result.NOT_RUN ? 0L : 1L);
+        stats.put("consistency_probe.passed", result == Result.PASSED ? 1L : 0L);
+    }
+}
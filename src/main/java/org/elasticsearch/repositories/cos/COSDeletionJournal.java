@@ -0,0 +1,237 @@
+package org.elasticsearch.repositories.cos;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.RefCountingRunnable;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.util.concurrent.ThrottledTaskRunner;
+import org.elasticsearch.core.Releasable;
+import org.elasticsearch.core.TimeValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Defers the deletion of data blobs: their keys are written to segment blobs of a journal in the repository and the deletion returns
+ * right away, so that deleting a snapshot takes the same time however many blobs it frees. Data blobs have unique names that are never
+ * written again, so deleting them later cannot hit a newer blob.
+ * <p>
+ * The journal is drained in the background, after every append and periodically, which also picks up segments a previous master left
+ * behind. A drain reads the oldest segments, coalesces their keys into full {@code DeleteObjects} batches per bucket, runs the batches
+ * concurrently and deletes the segments once all their keys are gone. A failed drain leaves its segments in place to be drained again,
+ * deleting a blob twice does no harm.
+ */
+final class COSDeletionJournal {
+
+    private static final Logger logger = LogManager.getLogger(COSDeletionJournal.class);
+
+    /**
+     * The folder below the base path of the repository that holds the journal.
+     */
+    static final String FOLDER_NAME = "deletion-journal";
+
+    static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * How often the master drains the journal besides after every append.
+     */
+    static final TimeValue DRAIN_INTERVAL = TimeValue.timeValueMinutes(1);
+
+    /**
+     * The most keys a single segment holds, larger appends are split over several segments.
+     */
+    static final int MAX_KEYS_PER_SEGMENT = 100_000;
+
+    /**
+     * The most segments a single drain reads, so that its memory stays bounded.
+     */
+    static final int MAX_SEGMENTS_PER_DRAIN = 10;
+
+    private final BlobPath path;
+    private final ThrottledTaskRunner runner;
+    private final Executor executor;
+    private final LongSupplier currentTimeMillis;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean drainAgain = new AtomicBoolean();
+
+    private final LongAdder journaledKeys = new LongAdder();
+    private final LongAdder deletedKeys = new LongAdder();
+    private final LongAdder drainedSegments = new LongAdder();
+    private final LongAdder failedDrains = new LongAdder();
+
+    COSDeletionJournal(BlobPath path, int concurrency, Executor executor, LongSupplier currentTimeMillis) {
+        this.path = path;
+        this.runner = new ThrottledTaskRunner("cos-deletion-journal", concurrency, executor);
+        this.executor = executor;
+        this.currentTimeMillis = currentTimeMillis;
+    }
+
+    /**
+     * Records the data blobs among the given keys in the journal and starts draining it.
+     *
+     * @return the keys that are not data blobs, which the caller has to delete itself
+     */
+    Iterator<String> append(COSBlobStore blobStore, OperationPurpose purpose, Iterator<String> keys) throws IOException {
+        final List<String> remaining = new ArrayList<>();
+        final List<String> segment = new ArrayList<>();
+        final BlobContainer container = blobStore.blobContainer(path);
+        int segments = 0;
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (COSBlobStore.isDataBlob(key) == false) {
+                remaining.add(key);
+                continue;
+            }
+            segment.add(key);
+            if (segment.size() == MAX_KEYS_PER_SEGMENT) {
+                writeSegment(container, purpose, segment);
+                segment.clear();
+                segments++;
+            }
+        }
+        if (segment.isEmpty() == false) {
+            writeSegment(container, purpose, segment);
+            segments++;
+        }
+        if (segments > 0) {
+            drain(blobStore);
+        }
+        return remaining.iterator();
+    }
+
+    private void writeSegment(BlobContainer container, OperationPurpose purpose, List<String> keys) throws IOException {
+        // segments sort by the time they were written, so the oldest are drained first
+        final String name = SEGMENT_PREFIX + String.format(Locale.ROOT, "%019d", currentTimeMillis.getAsLong()) + "-"
+                + UUIDs.randomBase64UUID();
+        container.writeBlob(purpose, name, new BytesArray(String.join("\n", keys).getBytes(StandardCharsets.UTF_8)), true);
+        journaledKeys.add(keys.size());
+        logger.debug("journaled deletion of [{}] blobs in [{}]", keys.size(), name);
+    }
+
+    /**
+     * Starts draining the journal in the background unless a drain is running already, in which case that drain runs again once done.
+     */
+    void drain(COSBlobStore blobStore) {
+        if (draining.compareAndSet(false, true) == false) {
+            drainAgain.set(true);
+            return;
+        }
+        drainAgain.set(false);
+        executor.execute(() -> {
+            try {
+                drainSegments(blobStore);
+            } catch (Exception e) {
+                onDrainCompleted(blobStore, e, false);
+            }
+        });
+    }
+
+    private void onDrainCompleted(COSBlobStore blobStore, Exception failure, boolean more) {
+        if (failure != null) {
+            failedDrains.increment();
+            logger.warn(() -> "failed to drain the deletion journal at [" + path + "], retrying later", failure);
+        }
+        draining.set(false);
+        if (more || drainAgain.get()) {
+            drain(blobStore);
+        }
+    }
+
+    /**
+     * Reads the oldest segments of the journal and deletes their blobs, then the segments themselves.
+     */
+    private void drainSegments(COSBlobStore blobStore) throws IOException {
+        final BlobContainer container = blobStore.blobContainer(path);
+        final TreeSet<String> names =
+                new TreeSet<>(container.listBlobsByPrefix(OperationPurpose.SNAPSHOT_METADATA, SEGMENT_PREFIX).keySet());
+        final List<String> segments = new ArrayList<>();
+        final Map<String, List<String>> keysByBucket = new HashMap<>();
+        for (String name : names) {
+            if (segments.size() == MAX_SEGMENTS_PER_DRAIN) {
+                break;
+            }
+            final String content;
+            try (InputStream in = container.readBlob(OperationPurpose.SNAPSHOT_METADATA, name)) {
+                content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            for (String key : content.split("\n")) {
+                if (key.isEmpty() == false) {
+                    keysByBucket.computeIfAbsent(blobStore.bucket(key), b -> new ArrayList<>()).add(key);
+                }
+            }
+            segments.add(name);
+        }
+        final boolean more = names.size() > segments.size();
+
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        try (RefCountingRunnable refs = new RefCountingRunnable(() -> {
+            if (failure.get() == null && segments.isEmpty() == false) {
+                try {
+                    container.deleteBlobsIgnoringIfNotExists(OperationPurpose.SNAPSHOT_METADATA, segments.iterator());
+                    drainedSegments.add(segments.size());
+                    logger.debug("drained [{}] segments of the deletion journal at [{}]", segments.size(), path);
+                } catch (Exception e) {
+                    recordFailure(failure, e);
+                }
+            }
+            onDrainCompleted(blobStore, failure.get(), more && failure.get() == null);
+        })) {
+            for (List<String> keys : keysByBucket.values()) {
+                for (int from = 0; from < keys.size(); from += COSBlobStore.MAX_BULK_DELETES) {
+                    final List<String> batch = keys.subList(from, Math.min(keys.size(), from + COSBlobStore.MAX_BULK_DELETES));
+                    final Releasable ref = refs.acquire();
+                    runner.enqueueTask(new ActionListener<>() {
+                        @Override
+                        public void onResponse(Releasable releasable) {
+                            try (releasable; ref) {
+                                blobStore.deleteKeys(OperationPurpose.SNAPSHOT_DATA, batch.iterator());
+                                deletedKeys.add(batch.size());
+                            } catch (Exception e) {
+                                recordFailure(failure, e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            try (ref) {
+                                recordFailure(failure, e);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private static void recordFailure(AtomicReference<Exception> failure, Exception e) {
+        if (failure.compareAndSet(null, e) == false) {
+            failure.get().addSuppressed(e);
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        stats.put("deletion_journal.journaled_keys", journaledKeys.sum());
+        stats.put("deletion_journal.deleted_keys", deletedKeys.sum());
+        stats.put("deletion_journal.drained_segments", drainedSegments.sum());
+        stats.put("deletion_journal.failed_drains", failedDrains.sum());
+    }
+}
@@ -0,0 +1,502 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.core.TimeValue;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Client-side envelope encryption of blobs with AES-GCM.
+ * <p>
+ * Every blob gets a random data key, stored in the blob header wrapped (AES-GCM encrypted) with the repository master key. The
+ * content follows as a sequence of {@link #FRAME_SIZE} plaintext frames, each encrypted and authenticated on its own with the nonce
+ * {@code nonce prefix || frame index} and a flag marking the last frame as additional data, so frames can neither be reordered nor
+ * the blob be truncated unnoticed. Since every frame decrypts independently a ranged read only needs the header and the frames it
+ * touches, and since the layout is fixed the encrypted length of a blob follows from its plaintext length and vice versa.
+ * <pre>
+ * header: "COSE" | version (1) | frame size (4) | nonce prefix (4) | key IV (12) | wrapped data key (32 + 16 tag)
+ * frames: ciphertext (FRAME_SIZE, the last one 0..FRAME_SIZE) + tag (16), at least one frame
+ * </pre>
+ * The frame size is fixed rather than configurable because listing blobs derives their plaintext size without reading the headers.
+ */
+final class COSEncryption {
+
+    static final int FRAME_SIZE = 64 * 1024;
+    static final int TAG_LENGTH = 16;
+    static final int ENCRYPTED_FRAME_SIZE = FRAME_SIZE + TAG_LENGTH;
+
+    private static final byte[] MAGIC = "COSE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int NONCE_PREFIX_LENGTH = 4;
+    private static final int IV_LENGTH = 12;
+    private static final int DATA_KEY_LENGTH = 32;
+    private static final int HEADER_AAD_LENGTH = MAGIC.length + 1 + Integer.BYTES + NONCE_PREFIX_LENGTH;
+    static final int HEADER_LENGTH = HEADER_AAD_LENGTH + IV_LENGTH + DATA_KEY_LENGTH + TAG_LENGTH;
+
+    private static final byte[] NOT_LAST_FRAME = new byte[]{0};
+    private static final byte[] LAST_FRAME = new byte[]{1};
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final SecretKey masterKey;
+    private final SecureRandom random = new SecureRandom();
+
+    // headers of recently read data blobs, so that ranged reads of the same blob do not need to fetch the header every time; only
+    // data blobs are written once and never overwritten, so only their header cannot change behind the back of this node
+    private final Cache<String, Header> headers = CacheBuilder.<String, Header>builder()
+            .setMaximumWeight(10_000)
+            .setExpireAfterAccess(TimeValue.timeValueMinutes(10))
+            .build();
+
+    COSEncryption(byte[] masterKey) {
+        if (masterKey.length != 16 && masterKey.length != 24 && masterKey.length != 32) {
+            throw new IllegalArgumentException("encryption master key must be 128, 192 or 256 bits long but was ["
+                    + masterKey.length * 8 + "] bits");
+        }
+        this.masterKey = new SecretKeySpec(masterKey, "AES");
+    }
+
+    /**
+     * Returns the length of a blob with the given plaintext length once encrypted.
+     */
+    static long encryptedLength(long plaintextLength) {
+        return HEADER_LENGTH + plaintextLength + frameCount(plaintextLength) * TAG_LENGTH;
+    }
+
+    /**
+     * Returns the plaintext length of an encrypted blob of the given length, or the given length itself if it cannot be the length of
+     * an encrypted blob.
+     */
+    static long plaintextLength(long encryptedLength) {
+        final long body = encryptedLength - HEADER_LENGTH;
+        if (body < TAG_LENGTH) {
+            return encryptedLength;
+        }
+        final long fullFrames = body / ENCRYPTED_FRAME_SIZE;
+        final long remainder = body % ENCRYPTED_FRAME_SIZE;
+        if (remainder == 0) {
+            return fullFrames * FRAME_SIZE;
+        }
+        if (remainder < TAG_LENGTH) {
+            return encryptedLength;
+        }
+        return fullFrames * FRAME_SIZE + remainder - TAG_LENGTH;
+    }
+
+    static long frameCount(long plaintextLength) {
+        return Math.max(1L, (plaintextLength + FRAME_SIZE - 1) / FRAME_SIZE);
+    }
+
+    /**
+     * Returns the offset of the given frame within an encrypted blob.
+     */
+    static long frameOffset(long frameIndex) {
+        return HEADER_LENGTH + frameIndex * ENCRYPTED_FRAME_SIZE;
+    }
+
+    /**
+     * Returns a stream of the encrypted form of the given plaintext stream of the given length.
+     */
+    InputStream encrypt(InputStream plaintext, long length) throws IOException {
+        return new EncryptingInputStream(newHeader(), plaintext, length);
+    }
+
+    /**
+     * Returns a stream that encrypts everything written to it into the given stream. The last frame is written on
+     * {@link EncryptingOutputStream#close()}, which does not close the given stream.
+     */
+    EncryptingOutputStream encrypt(OutputStream out) throws IOException {
+        return new EncryptingOutputStream(newHeader(), out);
+    }
+
+    /**
+     * Returns a stream of the plaintext of a whole encrypted blob.
+     */
+    InputStream decrypt(String blobKey, InputStream encrypted) throws IOException {
+        final Header header = readHeader(encrypted);
+        cacheHeader(blobKey, header);
+        return new DecryptingInputStream(header, encrypted, 0L, 0L, false);
+    }
+
+    /**
+     * Returns the cached header of the given blob, or {@code null} if it is not cached. Only the headers of data blobs are cached,
+     * see {@link COSBlobStore#isDataBlob}.
+     */
+    Header cachedHeader(String blobKey) {
+        return COSBlobStore.isDataBlob(blobKey) ? headers.get(blobKey) : null;
+    }
+
+    void cacheHeader(String blobKey, Header header) {
+        if (COSBlobStore.isDataBlob(blobKey)) {
+            headers.put(blobKey, header);
+        }
+    }
+
+    /**
+     * Forgets the cached header of a blob that is overwritten or deleted.
+     */
+    void invalidate(String blobKey) {
+        headers.invalidate(blobKey);
+    }
+
+    /**
+     * Returns a stream of the plaintext of a range of frames of an encrypted blob.
+     *
+     * @param frames     the encrypted frames, starting at {@code firstFrame} and ending at or before the end of the blob
+     * @param skip       the number of plaintext bytes of the first frame to skip
+     */
+    InputStream decryptFrames(Header header, InputStream frames, long firstFrame, long skip) {
+        return new DecryptingInputStream(header, frames, firstFrame, skip, true);
+    }
+
+    Header readHeader(InputStream in) throws IOException {
+        final byte[] bytes = in.readNBytes(HEADER_LENGTH);
+        if (bytes.length < HEADER_LENGTH || Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length) == false) {
+            throw new IOException("blob is not encrypted or its header is corrupted");
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, MAGIC.length, HEADER_LENGTH - MAGIC.length);
+        final byte version = buffer.get();
+        final int frameSize = buffer.getInt();
+        if (version != VERSION || frameSize != FRAME_SIZE) {
+            throw new IOException("unsupported encryption format version [" + version + "] with frame size [" + frameSize + "]");
+        }
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        buffer.get(noncePrefix);
+        final byte[] iv = new byte[IV_LENGTH];
+        buffer.get(iv);
+        try {
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, iv));
+            cipher.updateAAD(bytes, 0, HEADER_AAD_LENGTH);
+            final byte[] dataKey = cipher.doFinal(bytes, HEADER_AAD_LENGTH + IV_LENGTH, DATA_KEY_LENGTH + TAG_LENGTH);
+            return new Header(new SecretKeySpec(dataKey, "AES"), noncePrefix, bytes);
+        } catch (AEADBadTagException e) {
+            throw new IOException("failed to unwrap the data key of the blob, was it encrypted with a different master key?", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("failed to unwrap the data key of the blob", e);
+        }
+    }
+
+    private Header newHeader() throws IOException {
+        final byte[] dataKey = new byte[DATA_KEY_LENGTH];
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        final byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(dataKey);
+        random.nextBytes(noncePrefix);
+        random.nextBytes(iv);
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        buffer.put(MAGIC).put(VERSION).putInt(FRAME_SIZE).put(noncePrefix).put(iv);
+        try {
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, iv));
+            cipher.updateAAD(buffer.array(), 0, HEADER_AAD_LENGTH);
+            buffer.put(cipher.doFinal(dataKey));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("failed to wrap data key", e);
+        }
+        assert buffer.remaining() == 0;
+        return new Header(new SecretKeySpec(dataKey, "AES"), noncePrefix, buffer.array());
+    }
+
+    /**
+     * The data key and nonce prefix of a blob, together with the encoded header they were read from or will be written as.
+     */
+    static final class Header {
+        private final SecretKey dataKey;
+        private final byte[] noncePrefix;
+        private final byte[] bytes;
+
+        private Header(SecretKey dataKey, byte[] noncePrefix, byte[] bytes) {
+            this.dataKey = dataKey;
+            this.noncePrefix = noncePrefix;
+            this.bytes = bytes;
+        }
+
+        private void initFrame(Cipher cipher, int mode, long frameIndex, boolean lastFrame) throws GeneralSecurityException {
+            final byte[] nonce = ByteBuffer.allocate(IV_LENGTH).put(noncePrefix).putLong(frameIndex).array();
+            cipher.init(mode, dataKey, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, nonce));
+            cipher.updateAAD(lastFrame ? LAST_FRAME : NOT_LAST_FRAME);
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    }
+
+    /**
+     * Encrypts a plaintext stream of known length frame by frame as it is read.
+     */
+    private static final class EncryptingInputStream extends InputStream {
+        private final Header header;
+        private final InputStream plaintext;
+        private final long length;
+        private final long frameCount;
+        private final Cipher cipher = newCipher();
+        private final byte[] plainFrame = new byte[FRAME_SIZE];
+        private byte[] buffer;
+        private int position;
+        private int limit;
+        private long frameIndex = -1L;
+
+        EncryptingInputStream(Header header, InputStream plaintext, long length) {
+            this.header = header;
+            this.plaintext = plaintext;
+            this.length = length;
+            this.frameCount = frameCount(length);
+            this.buffer = header.bytes;
+            this.limit = header.bytes.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && nextFrame() == false) {
+                return -1;
+            }
+            final int read = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        private boolean nextFrame() throws IOException {
+            if (frameIndex + 1 >= frameCount) {
+                return false;
+            }
+            frameIndex++;
+            final boolean lastFrame = frameIndex == frameCount - 1;
+            final int plainLength = lastFrame ? Math.toIntExact(length - frameIndex * FRAME_SIZE) : FRAME_SIZE;
+            final int read = plaintext.readNBytes(plainFrame, 0, plainLength);
+            if (read < plainLength) {
+                throw new EOFException("expected [" + length + "] bytes but stream ended after [" + (frameIndex * FRAME_SIZE + read) + "]");
+            }
+            if (buffer == header.bytes) {
+                buffer = new byte[ENCRYPTED_FRAME_SIZE];
+            }
+            try {
+                header.initFrame(cipher, Cipher.ENCRYPT_MODE, frameIndex, lastFrame);
+                limit = cipher.doFinal(plainFrame, 0, plainLength, buffer, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("failed to encrypt frame [" + frameIndex + "]", e);
+            }
+            position = 0;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            plaintext.close();
+        }
+    }
+
+    /**
+     * Encrypts everything written to it frame by frame. A full frame is only encrypted once more data follows, so that the last frame
+     * can be marked as such when the stream is closed.
+     */
+    static final class EncryptingOutputStream extends OutputStream {
+        private final Header header;
+        private final OutputStream out;
+        private final Cipher cipher = newCipher();
+        private final byte[] plainFrame = new byte[FRAME_SIZE];
+        private final byte[] encryptedFrame = new byte[ENCRYPTED_FRAME_SIZE];
+        private int buffered;
+        private long frameIndex;
+        private boolean headerWritten;
+        private boolean closed;
+
+        private EncryptingOutputStream(Header header, OutputStream out) {
+            this.header = header;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            while (len > 0) {
+                if (buffered == FRAME_SIZE) {
+                    writeFrame(false);
+                }
+                final int copied = Math.min(len, FRAME_SIZE - buffered);
+                System.arraycopy(b, off, plainFrame, buffered, copied);
+                buffered += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        private void writeFrame(boolean lastFrame) throws IOException {
+            if (headerWritten == false) {
+                out.write(header.bytes);
+                headerWritten = true;
+            }
+            final int encryptedLength;
+            try {
+                header.initFrame(cipher, Cipher.ENCRYPT_MODE, frameIndex, lastFrame);
+                encryptedLength = cipher.doFinal(plainFrame, 0, buffered, encryptedFrame, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("failed to encrypt frame [" + frameIndex + "]", e);
+            }
+            out.write(encryptedFrame, 0, encryptedLength);
+            frameIndex++;
+            buffered = 0;
+        }
+
+        /**
+         * Writes the last frame. Does not close the underlying stream.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed == false) {
+                closed = true;
+                writeFrame(true);
+            }
+        }
+    }
+
+    /**
+     * Decrypts and authenticates a sequence of frames, either of a whole blob (after its header) or of a range of frames of it.
+     */
+    private static final class DecryptingInputStream extends InputStream {
+        private final Header header;
+        private final InputStream in;
+        private final boolean ranged;
+        private final Cipher cipher = newCipher();
+        // one byte more than a frame, to tell whether another frame follows
+        private final byte[] encrypted = new byte[ENCRYPTED_FRAME_SIZE + 1];
+        private int encryptedLength;
+        private final byte[] plain = new byte[FRAME_SIZE];
+        private int position;
+        private int limit;
+        private long frameIndex;
+        private long skip;
+        private boolean lastFrameSeen;
+
+        DecryptingInputStream(Header header, InputStream in, long firstFrame, long skip, boolean ranged) {
+            this.header = header;
+            this.in = in;
+            this.frameIndex = firstFrame;
+            this.skip = skip;
+            this.ranged = ranged;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (nextFrame() == false) {
+                    return -1;
+                }
+            }
+            final int read = Math.min(len, limit - position);
+            System.arraycopy(plain, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        private boolean nextFrame() throws IOException {
+            if (lastFrameSeen) {
+                return false;
+            }
+            while (encryptedLength < encrypted.length) {
+                final int read = in.read(encrypted, encryptedLength, encrypted.length - encryptedLength);
+                if (read == -1) {
+                    break;
+                }
+                encryptedLength += read;
+            }
+            if (encryptedLength == 0) {
+                if (ranged) {
+                    return false;
+                }
+                throw new IOException("encrypted blob is truncated after frame [" + (frameIndex - 1) + "]");
+            }
+            if (encryptedLength < TAG_LENGTH) {
+                throw new IOException("encrypted frame [" + frameIndex + "] is truncated");
+            }
+            final boolean moreFrames = encryptedLength > ENCRYPTED_FRAME_SIZE;
+            final int frameLength = Math.min(encryptedLength, ENCRYPTED_FRAME_SIZE);
+            if (moreFrames) {
+                limit = decrypt(frameLength, false);
+            } else if (ranged && frameLength == ENCRYPTED_FRAME_SIZE) {
+                // a full frame at the end of a range may or may not be the last frame of the blob
+                int decrypted;
+                try {
+                    decrypted = decrypt(frameLength, false);
+                } catch (IOException e) {
+                    decrypted = decrypt(frameLength, true);
+                    lastFrameSeen = true;
+                }
+                limit = decrypted;
+            } else {
+                limit = decrypt(frameLength, true);
+                lastFrameSeen = true;
+            }
+            if (moreFrames) {
+                encrypted[0] = encrypted[ENCRYPTED_FRAME_SIZE];
+                encryptedLength = 1;
+            } else {
+                encryptedLength = 0;
+            }
+            frameIndex++;
+            position = (int) Math.min(skip, limit);
+            skip -= position;
+            return true;
+        }
+
+        private int decrypt(int frameLength, boolean lastFrame) throws IOException {
+            try {
+                header.initFrame(cipher, Cipher.DECRYPT_MODE, frameIndex, lastFrame);
+                return cipher.doFinal(encrypted, 0, frameLength, plain, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("failed to decrypt frame [" + frameIndex + "] of encrypted blob", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
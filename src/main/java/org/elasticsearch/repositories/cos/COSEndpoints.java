@@ -0,0 +1,172 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.exception.CosServiceException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.core.TimeValue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The ordered list of COS endpoints (for example the internal VPC endpoint, the public endpoint and the global acceleration endpoint)
+ * a repository may talk to, one {@link COSClient} each, together with their health.
+ * <p>
+ * Requests go to the first endpoint in the list that is healthy. An endpoint that fails a request with a network error or a 5xx
+ * response is skipped for the configured retry interval, doubled for every further consecutive failure up to
+ * {@link #MAX_BACKOFF_MULTIPLIER} times, after which it gets live traffic again. If every endpoint is unhealthy the one that is due
+ * to be retried first is used, so requests are never refused outright.
+ */
+final class COSEndpoints {
+
+    private static final Logger logger = LogManager.getLogger(COSEndpoints.class);
+
+    static final int MAX_BACKOFF_MULTIPLIER = 16;
+
+    private final List<Endpoint> endpoints;
+    private final long retryIntervalNanos;
+    private final LongSupplier nanoTime;
+    private final LongAdder failovers = new LongAdder();
+
+    COSEndpoints(List<Endpoint> endpoints, TimeValue retryInterval, LongSupplier nanoTime) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("at least one endpoint is required");
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.retryIntervalNanos = retryInterval.nanos();
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Returns the endpoint the next request should be sent to.
+     */
+    Endpoint select() {
+        final Endpoint healthy = selectHealthy();
+        if (healthy != null) {
+            return healthy;
+        }
+        Endpoint candidate = endpoints.get(0);
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.unhealthyUntilNanos - candidate.unhealthyUntilNanos < 0) {
+                candidate = endpoint;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Returns the first healthy endpoint, or {@code null} if all of them are currently skipped.
+     */
+    Endpoint selectHealthy() {
+        final long now = nanoTime.getAsLong();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isHealthy(now)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    void onSuccess(Endpoint endpoint) {
+        if (endpoint.consecutiveFailures.get() != 0) {
+            if (endpoint.consecutiveFailures.getAndSet(0) != 0) {
+                logger.info("COS endpoint [{}] recovered", endpoint.name);
+            }
+        }
+    }
+
+    /**
+     * Reports a failed request to the given endpoint.
+     *
+     * @return whether the failure was blamed on the endpoint, in which case it is now skipped for a while
+     */
+    boolean onFailure(Endpoint endpoint, Exception e) {
+        if (isEndpointFailure(e) == false) {
+            if (e instanceof CosServiceException) {
+                // the endpoint answered, so it is reachable
+                onSuccess(endpoint);
+            }
+            return false;
+        }
+        endpoint.failures.increment();
+        final int consecutiveFailures = endpoint.consecutiveFailures.incrementAndGet();
+        final long backoffNanos = retryIntervalNanos * Math.min(1L << Math.min(consecutiveFailures - 1, 30), MAX_BACKOFF_MULTIPLIER);
+        endpoint.unhealthyUntilNanos = nanoTime.getAsLong() + backoffNanos;
+        if (endpoints.size() > 1) {
+            logger.warn(() -> "COS endpoint [" + endpoint.name + "] failed [" + consecutiveFailures + "] time(s) in a row, skipping it for ["
+                    + TimeValue.timeValueNanos(backoffNanos) + "]", e);
+        }
+        return true;
+    }
+
+    void onFailover() {
+        failovers.increment();
+    }
+
+    int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Network errors and server side errors point at a degraded access point; anything else (missing objects, permissions, bad
+     * requests) would fail the same way on every endpoint.
+     */
+    static boolean isEndpointFailure(Exception e) {
+        if (e instanceof CosServiceException) {
+            return ((CosServiceException) e).getStatusCode() >= 500;
+        }
+        return e instanceof CosClientException && ExceptionsHelper.unwrap(e, IOException.class) != null;
+    }
+
+    void addStats(Map<String, Long> stats) {
+        final long now = nanoTime.getAsLong();
+        for (Endpoint endpoint : endpoints) {
+            stats.put("endpoint." + endpoint.name + ".healthy", endpoint.isHealthy(now) ? 1L : 0L);
+            stats.put("endpoint." + endpoint.name + ".failures", endpoint.failures.sum());
+        }
+        stats.put("endpoint.failovers", failovers.sum());
+    }
+
+    void close() {
+        for (Endpoint endpoint : endpoints) {
+            SocketAccess.doPrivilegedVoid(endpoint.client::shutdown);
+        }
+    }
+
+    static final class Endpoint {
+        private final String name;
+        private final COSClient client;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final LongAdder failures = new LongAdder();
+        private volatile long unhealthyUntilNanos;
+
+        Endpoint(String name, COSClient client) {
+            this.name = name;
+            this.client = client;
+        }
+
+        String name() {
+            return name;
+        }
+
+        COSClient client() {
+            return client;
+        }
+
+        private boolean isHealthy(long nowNanos) {
+            return consecutiveFailures.get() == 0 || nowNanos - unhealthyUntilNanos >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.model.COSObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Cuts the tail latency of object downloads by hedging: a GET that has not returned its response headers within a high percentile of
+ * the recently observed time to first byte is sent a second time, the first response wins and the other one is aborted as soon as it
+ * arrives.
+ * <p>
+ * Hedges are paid for from a token bucket that every GET tops up by the configured budget ratio, so no more than that fraction of
+ * requests is ever duplicated, even while COS is slow across the board. The delay is taken from the time to first byte of successful
+ * requests that were not hedges themselves, recorded in windows of at most {@link #WINDOW_SAMPLES} requests and {@link #WINDOW_NANOS},
+ * of which only the current and the previous one count, so that the delay recovers after a slow period. Hedging only starts once a
+ * window holds enough requests to derive a meaningful delay from.
+ * <p>
+ * A request blocked in the client cannot be released, so a request that may be hedged runs on the executor while the calling thread
+ * waits for the first response. A request that cannot be hedged, because there is no delay to go by yet or the budget is used up,
+ * runs on the calling thread.
+ */
+final class COSHedgedReads {
+
+    private static final Logger logger = LogManager.getLogger(COSHedgedReads.class);
+
+    static final COSHedgedReads DISABLED = new COSHedgedReads(null, 100.0, 0.0);
+
+    /**
+     * Number of observed requests needed before the latency distribution is trusted to pick a hedging delay.
+     */
+    static final long MIN_SAMPLES = 100L;
+
+    /**
+     * The most requests and the longest time recorded into one window of the latency distribution.
+     */
+    static final long WINDOW_SAMPLES = 1000L;
+    static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    // a hedge costs one token, i.e. TOKEN_SCALE units of the bucket
+    private static final long TOKEN_SCALE = 1000L;
+    private static final long MAX_TOKENS = 10L * TOKEN_SCALE;
+
+    private final Executor executor;
+    private final double percentile;
+    private final long depositPerRequest;
+    private final LongSupplier nanoTime;
+    private final AtomicLong tokens = new AtomicLong();
+
+    private volatile Window currentWindow;
+    private volatile Window previousWindow;
+
+    private final LongAdder hedgedRequests = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    /**
+     * @param executor   runs the requests that may be hedged while the calling thread waits for the first response
+     * @param percentile the percentile of the recent time to first byte after which a request is hedged
+     * @param budget     the fraction of requests that may be hedged
+     */
+    COSHedgedReads(Executor executor, double percentile, double budget) {
+        this(executor, percentile, budget, System::nanoTime);
+    }
+
+    COSHedgedReads(Executor executor, double percentile, double budget, LongSupplier nanoTime) {
+        this.executor = executor;
+        this.percentile = percentile;
+        this.depositPerRequest = Math.round(budget * TOKEN_SCALE);
+        this.nanoTime = nanoTime;
+        this.currentWindow = new Window(nanoTime.getAsLong());
+        this.previousWindow = currentWindow;
+    }
+
+    boolean isEnabled() {
+        return executor != null && depositPerRequest > 0L;
+    }
+
+    /**
+     * Returns the response of the given request, hedging it if it is slower than the given percentile of the recent time to first
+     * byte.
+     */
+    COSObject getObject(Supplier<COSObject> request) throws IOException {
+        if (isEnabled() == false) {
+            return request.get();
+        }
+        tokens.accumulateAndGet(depositPerRequest, (current, deposit) -> Math.min(current + deposit, MAX_TOKENS));
+        final long delayMicros = delayMicros();
+        if (delayMicros < 0L || tokens.get() < TOKEN_SCALE) {
+            return timed(request);
+        }
+        final Race race = new Race();
+        race.start(request);
+        try {
+            if (race.await(TimeUnit.MICROSECONDS.toNanos(Math.max(1L, delayMicros))) == false) {
+                if (tryAcquireToken()) {
+                    hedgedRequests.increment();
+                    race.start(request);
+                } else {
+                    budgetExhausted.increment();
+                }
+            }
+            race.await(Long.MAX_VALUE);
+            return race.result();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            race.abandon();
+            throw new InterruptedIOException("interrupted while waiting for a COS response");
+        }
+    }
+
+    /**
+     * Returns the delay after which a request is hedged, or {@code -1} if too few requests were recorded recently.
+     */
+    private long delayMicros() {
+        final Window current = currentWindow;
+        if (current.responseTimes.count() >= MIN_SAMPLES) {
+            return current.responseTimes.percentile(percentile);
+        }
+        final Window previous = previousWindow;
+        if (previous != current && previous.responseTimes.count() >= MIN_SAMPLES) {
+            return previous.responseTimes.percentile(percentile);
+        }
+        return -1L;
+    }
+
+    private COSObject timed(Supplier<COSObject> request) {
+        final long startNanos = nanoTime.getAsLong();
+        final COSObject response = request.get();
+        onFirstByte(nanoTime.getAsLong() - startNanos);
+        return response;
+    }
+
+    /**
+     * Records the time to first byte of a successful request that was not a hedge.
+     */
+    void onFirstByte(long tookNanos) {
+        final long now = nanoTime.getAsLong();
+        Window window = currentWindow;
+        if (window.responseTimes.count() >= WINDOW_SAMPLES || now - window.startNanos >= WINDOW_NANOS) {
+            synchronized (this) {
+                if (currentWindow == window) {
+                    previousWindow = window;
+                    currentWindow = new Window(now);
+                }
+                window = currentWindow;
+            }
+        }
+        window.responseTimes.record(TimeUnit.NANOSECONDS.toMicros(tookNanos));
+    }
+
+    private boolean tryAcquireToken() {
+        while (true) {
+            final long current = tokens.get();
+            if (current < TOKEN_SCALE) {
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN_SCALE)) {
+                return true;
+            }
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        if (isEnabled()) {
+            stats.put("hedged_reads.hedged", hedgedRequests.sum());
+            stats.put("hedged_reads.won", hedgesWon.sum());
+            stats.put("hedged_reads.budget_exhausted", budgetExhausted.sum());
+        }
+    }
+
+    /**
+     * Identical requests racing for the first response.
+     */
+    private final class Race {
+        private int started;
+        private int finished;
+        private COSObject winner;
+        private int winnerIndex;
+        private boolean abandoned;
+        private final List<RuntimeException> failures = new ArrayList<>();
+
+        void start(Supplier<COSObject> request) {
+            final int index;
+            synchronized (this) {
+                index = started++;
+            }
+            executor.execute(() -> {
+                final COSObject response;
+                try {
+                    response = index == 0 ? timed(request) : request.get();
+                } catch (RuntimeException e) {
+                    onFailure(e);
+                    return;
+                }
+                onResponse(index, response);
+            });
+        }
+
+        private void onResponse(int index, COSObject response) {
+            synchronized (this) {
+                finished++;
+                if (winner == null && abandoned == false) {
+                    winner = response;
+                    winnerIndex = index;
+                    notifyAll();
+                    return;
+                }
+            }
+            // another request won or nobody waits any longer, do not read the rest of this response
+            abort(response);
+        }
+
+        private synchronized void onFailure(RuntimeException e) {
+            finished++;
+            failures.add(e);
+            notifyAll();
+        }
+
+        /**
+         * Waits until a response arrived or all started requests failed.
+         *
+         * @return whether the race is decided
+         */
+        synchronized boolean await(long timeoutNanos) throws InterruptedException {
+            final long deadline = System.nanoTime() + timeoutNanos;
+            while (isDecided() == false) {
+                final long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        private boolean isDecided() {
+            return winner != null || finished == started;
+        }
+
+        synchronized COSObject result() {
+            if (winner != null) {
+                if (winnerIndex > 0) {
+                    hedgesWon.increment();
+                }
+                return winner;
+            }
+            final RuntimeException failure = failures.get(0);
+            for (int i = 1; i < failures.size(); i++) {
+                failure.addSuppressed(failures.get(i));
+            }
+            throw failure;
+        }
+
+        void abandon() {
+            final COSObject response;
+            synchronized (this) {
+                abandoned = true;
+                response = winner;
+                winner = null;
+            }
+            if (response != null) {
+                abort(response);
+            }
+        }
+    }
+
+    private record Window(long startNanos, LatencyHistogram responseTimes) {
+        Window(long startNanos) {
+            this(startNanos, new LatencyHistogram());
+        }
+    }
+
+    private static void abort(COSObject response) {
+        try {
+            response.getObjectContent().abort();
+        } catch (Exception e) {
+            logger.debug("failed to abort losing COS response", e);
+        }
+        IOUtils.closeWhileHandlingException(response);
+    }
+}
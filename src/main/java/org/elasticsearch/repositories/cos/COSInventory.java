@@ -0,0 +1,147 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.xcontent.json.JsonXContent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a COS bucket inventory: a {@code manifest.json} that names the CSV files, gzipped or not, which together list the objects
+ * of the bucket with the columns given by the {@code fileSchema} of the manifest.
+ */
+final class COSInventory {
+
+    /**
+     * Opens the inventory files by their key, which is the bucket for a real inventory and a local folder in tests.
+     */
+    @FunctionalInterface
+    interface Source {
+        InputStream open(String key) throws IOException;
+    }
+
+    /**
+     * Receives the objects listed by an inventory.
+     */
+    @FunctionalInterface
+    interface ObjectConsumer {
+        void accept(String key, long size) throws IOException;
+    }
+
+    private final Source source;
+    private final List<String> files;
+    private final int keyColumn;
+    private final int sizeColumn;
+
+    private COSInventory(Source source, List<String> files, int keyColumn, int sizeColumn) {
+        this.source = source;
+        this.files = files;
+        this.keyColumn = keyColumn;
+        this.sizeColumn = sizeColumn;
+    }
+
+    /**
+     * Reads the manifest with the given key.
+     */
+    @SuppressWarnings("unchecked")
+    static COSInventory open(Source source, String manifestKey) throws IOException {
+        final Map<String, Object> manifest;
+        try (InputStream stream = source.open(manifestKey)) {
+            manifest = XContentHelper.convertToMap(JsonXContent.jsonXContent, stream, false);
+        }
+        final Object format = manifest.get("fileFormat");
+        if ("CSV".equalsIgnoreCase(String.valueOf(format)) == false) {
+            throw new IllegalArgumentException("inventory [" + manifestKey + "] has unsupported format [" + format + "], only CSV "
+                    + "inventories can be read");
+        }
+        final List<String> schema = new ArrayList<>();
+        for (String column : String.valueOf(manifest.get("fileSchema")).split(",")) {
+            schema.add(column.trim().toLowerCase(Locale.ROOT));
+        }
+        final int keyColumn = schema.indexOf("key");
+        final int sizeColumn = schema.indexOf("size");
+        if (keyColumn < 0 || sizeColumn < 0) {
+            throw new IllegalArgumentException("inventory [" + manifestKey + "] does not list the key and the size of objects, its schema "
+                    + "is " + schema);
+        }
+        final List<String> files = new ArrayList<>();
+        final Object fileList = manifest.get("files");
+        if (fileList instanceof List == false) {
+            throw new IllegalArgumentException("inventory [" + manifestKey + "] does not list any files");
+        }
+        for (Object file : (List<Object>) fileList) {
+            files.add(String.valueOf(((Map<String, Object>) file).get("key")));
+        }
+        return new COSInventory(source, files, keyColumn, sizeColumn);
+    }
+
+    /**
+     * Passes every object of the inventory to the consumer, reading one line at a time.
+     */
+    void forEachObject(ObjectConsumer consumer) throws IOException {
+        for (String file : files) {
+            try (InputStream stream = source.open(file);
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(
+                         file.endsWith(".gz") ? new GZIPInputStream(stream) : stream, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    final List<String> columns = parseLine(line);
+                    if (columns.size() <= Math.max(keyColumn, sizeColumn)) {
+                        throw new IOException("inventory file [" + file + "] has malformed line [" + line + "]");
+                    }
+                    final long size;
+                    try {
+                        size = Long.parseLong(columns.get(sizeColumn));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("inventory file [" + file + "] has malformed line [" + line + "]", e);
+                    }
+                    // keys are URL encoded so that they can not clash with the separators
+                    consumer.accept(URLDecoder.decode(columns.get(keyColumn), StandardCharsets.UTF_8), size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a CSV line into its values, removing the quotes around them.
+     */
+    static List<String> parseLine(String line) {
+        final List<String> values = new ArrayList<>();
+        final StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+}
@@ -0,0 +1,180 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.exception.CosServiceException;
+import com.qcloud.cos.model.ObjectMetadata;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.repositories.cos.COSBlobStore.Operation;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Deletes the blobs of a repository that are no longer referenced, finding them in a bucket inventory instead of listing the
+ * bucket. Every candidate the inventory yields is confirmed with a HEAD request before it is deleted, since the inventory may be
+ * outdated: candidates that are gone already are skipped, and so are candidates modified more recently than the minimum age, which
+ * might belong to a snapshot that started after the repository data was loaded. Candidates are deleted in batches of
+ * {@link #BATCH_SIZE}, and only while no snapshot operation runs on the repository.
+ */
+final class COSInventoryCleanup {
+
+    private static final Logger logger = LogManager.getLogger(COSInventoryCleanup.class);
+
+    static final int BATCH_SIZE = 1000;
+
+    private final COSBlobStore blobStore;
+    private final String indicesPrefix;
+    private final COSBlobReferences references;
+    private final long minAgeMillis;
+    private final LongSupplier currentTimeMillis;
+    private final BooleanSupplier repositoryIdle;
+    private final boolean dryRun;
+
+    COSInventoryCleanup(COSBlobStore blobStore, BlobPath basePath, COSBlobReferences references, long minAgeMillis,
+                        LongSupplier currentTimeMillis, BooleanSupplier repositoryIdle, boolean dryRun) {
+        this.blobStore = blobStore;
+        this.indicesPrefix = basePath.add("indices").buildAsString();
+        this.references = references;
+        this.minAgeMillis = minAgeMillis;
+        this.currentTimeMillis = currentTimeMillis;
+        this.repositoryIdle = repositoryIdle;
+        this.dryRun = dryRun;
+    }
+
+    Result run(COSInventory inventory) throws IOException {
+        ensureIdle();
+        final Result result = new Result(dryRun);
+        final List<String> batch = new ArrayList<>(BATCH_SIZE);
+        inventory.forEachObject((key, size) -> {
+            result.inventoryObjects++;
+            if (key.startsWith(indicesPrefix) && references.isStale(key.substring(indicesPrefix.length()))) {
+                result.candidates++;
+                batch.add(key);
+                if (batch.size() == BATCH_SIZE) {
+                    processBatch(batch, result);
+                    batch.clear();
+                }
+            }
+        });
+        processBatch(batch, result);
+        logger.debug("inventory cleanup below [{}] done: {}", indicesPrefix, result);
+        return result;
+    }
+
+    private void processBatch(List<String> candidates, Result result) throws IOException {
+        final List<String> confirmed = new ArrayList<>(candidates.size());
+        long confirmedBytes = 0L;
+        final long maxLastModified = currentTimeMillis.getAsLong() - minAgeMillis;
+        for (String key : candidates) {
+            final ObjectMetadata metadata;
+            try {
+                metadata = blobStore.execute(Operation.HEAD_OBJECT, OperationPurpose.SNAPSHOT_DATA, key,
+                        client -> client.getObjectMetadata(blobStore.bucket(key), key));
+            } catch (CosServiceException e) {
+                if (e.getStatusCode() == 404) {
+                    result.notFound++;
+                    continue;
+                }
+                throw new IOException("failed to confirm stale blob [" + key + "]", e);
+            }
+            if (metadata.getLastModified() == null || metadata.getLastModified().getTime() > maxLastModified) {
+                result.tooRecent++;
+                continue;
+            }
+            confirmed.add(key);
+            confirmedBytes += metadata.getContentLength();
+        }
+        if (confirmed.isEmpty()) {
+            return;
+        }
+        if (dryRun == false) {
+            ensureIdle();
+            blobStore.blobContainer(BlobPath.EMPTY).deleteBlobsIgnoringIfNotExists(OperationPurpose.SNAPSHOT_DATA, confirmed.iterator());
+        }
+        result.deleted += confirmed.size();
+        result.deletedBytes += confirmedBytes;
+    }
+
+    private void ensureIdle() {
+        if (repositoryIdle.getAsBoolean() == false) {
+            throw new IllegalStateException("cannot clean up [" + indicesPrefix + "] while snapshot operations are running on the "
+                    + "repository");
+        }
+    }
+
+    /**
+     * The outcome of a cleanup. In a dry run the blobs counted as deleted are the ones that would have been deleted.
+     */
+    static final class Result implements Writeable, ToXContentObject {
+
+        private final boolean dryRun;
+        private long inventoryObjects;
+        private long candidates;
+        private long notFound;
+        private long tooRecent;
+        private long deleted;
+        private long deletedBytes;
+
+        Result(boolean dryRun) {
+            this.dryRun = dryRun;
+        }
+
+        Result(StreamInput in) throws IOException {
+            this.dryRun = in.readBoolean();
+            this.inventoryObjects = in.readVLong();
+            this.candidates = in.readVLong();
+            this.notFound = in.readVLong();
+            this.tooRecent = in.readVLong();
+            this.deleted = in.readVLong();
+            this.deletedBytes = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeBoolean(dryRun);
+            out.writeVLong(inventoryObjects);
+            out.writeVLong(candidates);
+            out.writeVLong(notFound);
+            out.writeVLong(tooRecent);
+            out.writeVLong(deleted);
+            out.writeVLong(deletedBytes);
+        }
+
+        long candidates() {
+            return candidates;
+        }
+
+        long deleted() {
+            return deleted;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            return builder.startObject()
+                    .field("dry_run", dryRun)
+                    .field("inventory_objects", inventoryObjects)
+                    .field("candidates", candidates)
+                    .field("not_found", notFound)
+                    .field("too_recent", tooRecent)
+                    .field("deleted", deleted)
+                    .field("deleted_bytes", deletedBytes)
+                    .endObject();
+        }
+
+        @Override
+        public String toString() {
+            return "inventory_objects=" + inventoryObjects + ", candidates=" + candidates + ", not_found=" + notFound
+                    + ", too_recent=" + tooRecent + ", deleted=" + deleted + ", deleted_bytes=" + deletedBytes + ", dry_run=" + dryRun;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Merges small ranged reads of the same blob that arrive within a short window into a single GET.
+ * <p>
+ * The first read of a range opens a fetch and waits for the window to pass; reads of the same blob arriving meanwhile whose range is
+ * within the maximum gap of the fetch join it, growing its range up to the maximum fetch size. Reads that are fully covered by a fetch
+ * that is already in flight simply share it. Once the fetch completes every reader gets a stream over its slice of the downloaded
+ * bytes.
+ */
+final class COSReadCoalescer {
+
+    static final COSReadCoalescer DISABLED = new COSReadCoalescer(TimeValue.ZERO, ByteSizeValue.ZERO, ByteSizeValue.ZERO);
+
+    /**
+     * Reads of at most this fraction of the maximum fetch size are coalesced, larger ones are better served by a GET of their own.
+     */
+    static final int MAX_READ_FRACTION = 8;
+
+    /**
+     * Downloads the given range of a blob.
+     */
+    @FunctionalInterface
+    interface RangeReader {
+        byte[] read(OperationPurpose purpose, String blobKey, long start, long endInclusive) throws IOException;
+    }
+
+    private final long windowNanos;
+    private final long maxGap;
+    private final long maxFetchSize;
+
+    // the open and in-flight fetches by blob key, guarded by this
+    private final Map<String, List<Fetch>> fetches = new HashMap<>();
+
+    private final LongAdder coalescedReads = new LongAdder();
+    private final LongAdder sharedReads = new LongAdder();
+    private final LongAdder fetchCount = new LongAdder();
+
+    COSReadCoalescer(TimeValue window, ByteSizeValue maxGap, ByteSizeValue maxFetchSize) {
+        this.windowNanos = window.nanos();
+        this.maxGap = maxGap.getBytes();
+        this.maxFetchSize = maxFetchSize.getBytes();
+    }
+
+    /**
+     * Whether a read of the given length goes through this coalescer.
+     */
+    boolean accepts(long length) {
+        return windowNanos > 0L && length > 0L && length <= maxFetchSize / MAX_READ_FRACTION;
+    }
+
+    InputStream read(OperationPurpose purpose, String blobKey, long position, int length, RangeReader reader) throws IOException {
+        assert accepts(length) : length;
+        final long end = Math.addExact(position, length);
+        final Fetch fetch;
+        final boolean leader;
+        synchronized (this) {
+            coalescedReads.increment();
+            final List<Fetch> blobFetches = fetches.computeIfAbsent(blobKey, k -> new ArrayList<>());
+            Fetch joined = null;
+            for (Fetch candidate : blobFetches) {
+                if (candidate.start <= position && end <= candidate.end) {
+                    joined = candidate;
+                    break;
+                }
+            }
+            if (joined == null) {
+                for (Fetch candidate : blobFetches) {
+                    if (candidate.open && candidate.canMerge(position, end)) {
+                        candidate.start = Math.min(candidate.start, position);
+                        candidate.end = Math.max(candidate.end, end);
+                        joined = candidate;
+                        notifyAll();
+                        break;
+                    }
+                }
+            }
+            if (joined != null) {
+                sharedReads.increment();
+                fetch = joined;
+                leader = false;
+            } else {
+                fetch = new Fetch(position, end);
+                blobFetches.add(fetch);
+                leader = true;
+            }
+        }
+        if (leader) {
+            runFetch(purpose, blobKey, fetch, reader);
+        }
+        return fetch.await(position, length);
+    }
+
+    private void runFetch(OperationPurpose purpose, String blobKey, Fetch fetch, RangeReader reader) {
+        try {
+            synchronized (this) {
+                final long deadline = System.nanoTime() + windowNanos;
+                long remaining;
+                while (fetch.end - fetch.start < maxFetchSize && (remaining = deadline - System.nanoTime()) > 0L) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                fetch.open = false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                fetch.open = false;
+            }
+            fetch.onFailure(new InterruptedIOException("interrupted while coalescing reads of [" + blobKey + "]"));
+            remove(blobKey, fetch);
+            return;
+        }
+        fetchCount.increment();
+        try {
+            fetch.onResponse(reader.read(purpose, blobKey, fetch.start, fetch.end - 1));
+        } catch (Exception e) {
+            fetch.onFailure(e);
+        } finally {
+            remove(blobKey, fetch);
+        }
+    }
+
+    private synchronized void remove(String blobKey, Fetch fetch) {
+        final List<Fetch> blobFetches = fetches.get(blobKey);
+        blobFetches.remove(fetch);
+        if (blobFetches.isEmpty()) {
+            fetches.remove(blobKey);
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        if (windowNanos > 0L) {
+            stats.put("coalesced_reads.reads", coalescedReads.sum());
+            stats.put("coalesced_reads.shared", sharedReads.sum());
+            stats.put("coalesced_reads.fetches", fetchCount.sum());
+        }
+    }
+
+    /**
+     * A single GET serving one or more reads. Its range is only extended while it is open, under the coalescer's lock.
+     */
+    private final class Fetch {
+        private long start;
+        private long end;
+        private boolean open = true;
+
+        private boolean done;
+        private byte[] bytes;
+        private Exception failure;
+
+        Fetch(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean canMerge(long position, long readEnd) {
+            return position <= end + maxGap && readEnd >= start - maxGap
+                    && Math.max(end, readEnd) - Math.min(start, position) <= maxFetchSize;
+        }
+
+        synchronized void onResponse(byte[] response) {
+            bytes = response;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void onFailure(Exception e) {
+            failure = e;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the fetch to complete and returns the requested slice of it, which may be shorter than requested if the blob ends
+         * before the end of the range.
+         */
+        InputStream await(long position, int length) throws IOException {
+            final byte[] response;
+            synchronized (this) {
+                try {
+                    while (done == false) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for coalesced read");
+                }
+                if (failure != null) {
+                    // every reader gets an exception of its own, they are not safe to share between threads
+                    if (failure instanceof NoSuchFileException) {
+                        final NoSuchFileException e = new NoSuchFileException(failure.getMessage());
+                        e.initCause(failure);
+                        throw e;
+                    }
+                    throw new IOException("coalesced read of range [" + start + "-" + end + "] failed", failure);
+                }
+                response = bytes;
+            }
+            final int offset = Math.toIntExact(position - start);
+            final int available = Math.max(0, Math.min(length, response.length - offset));
+            return new ByteArrayInputStream(response, Math.min(offset, response.length), available);
+        }
+    }
+}
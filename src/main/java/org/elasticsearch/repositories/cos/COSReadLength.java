@@ -0,0 +1,108 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The length of the ranges the containers of a repository ask their readers to request, see
+ * {@link BlobContainer#readBlobPreferredLength()}. The length is either fixed or adapts to the link: every GET costs its time to first
+ * byte before any data flows, so the length is chosen such that this overhead stays at the target share of the time a range takes,
+ * i.e. {@code length = firstByte * throughput * (1 - target) / target}. Both are moving averages over recent downloads, the time to
+ * first byte includes the time a request waits for the {@link COSRequestScheduler}, which a longer range amortizes just the same. The
+ * fixed length is used until enough downloads have been observed.
+ */
+final class COSReadLength {
+
+    static final COSReadLength DEFAULT = new COSReadLength(new ByteSizeValue(32, ByteSizeUnit.MB), false, 5.0);
+
+    static final long MIN_ADAPTIVE_LENGTH = new ByteSizeValue(1, ByteSizeUnit.MB).getBytes();
+    static final long MAX_ADAPTIVE_LENGTH = new ByteSizeValue(1, ByteSizeUnit.GB).getBytes();
+
+    /**
+     * Downloads shorter than this say more about their time to first byte than about the throughput and are not sampled for it.
+     */
+    static final long MIN_THROUGHPUT_SAMPLE_BYTES = new ByteSizeValue(1, ByteSizeUnit.MB).getBytes();
+
+    /**
+     * How many samples of both kinds are needed before the length adapts.
+     */
+    static final int MIN_SAMPLES = 10;
+
+    private static final double ALPHA = 0.1;
+
+    private final long fixedLength;
+    private final boolean adaptive;
+    private final double overheadTarget;
+
+    // moving averages, guarded by this
+    private double firstByteNanos;
+    private long firstByteSamples;
+    private double bytesPerNano;
+    private long throughputSamples;
+
+    /**
+     * @param overheadPercent the share of the time of a range its time to first byte should take, in percent
+     */
+    COSReadLength(ByteSizeValue fixedLength, boolean adaptive, double overheadPercent) {
+        this.fixedLength = fixedLength.getBytes();
+        this.adaptive = adaptive;
+        this.overheadTarget = overheadPercent / 100.0;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Records the time a GET took until its response headers arrived.
+     */
+    void onFirstByte(long nanos) {
+        if (adaptive) {
+            synchronized (this) {
+                firstByteNanos = firstByteSamples++ == 0 ? nanos : firstByteNanos + ALPHA * (nanos - firstByteNanos);
+            }
+        }
+    }
+
+    /**
+     * Records a download of the given number of bytes that took the given time from its first to its last byte.
+     */
+    void onTransfer(long bytes, long nanos) {
+        if (adaptive && bytes >= MIN_THROUGHPUT_SAMPLE_BYTES && nanos > 0L) {
+            final double sample = (double) bytes / nanos;
+            synchronized (this) {
+                bytesPerNano = throughputSamples++ == 0 ? sample : bytesPerNano + ALPHA * (sample - bytesPerNano);
+            }
+        }
+    }
+
+    long preferredLength() {
+        if (adaptive == false) {
+            return fixedLength;
+        }
+        final double length;
+        synchronized (this) {
+            if (firstByteSamples < MIN_SAMPLES || throughputSamples < MIN_SAMPLES) {
+                return fixedLength;
+            }
+            length = firstByteNanos * bytesPerNano * (1.0 - overheadTarget) / overheadTarget;
+        }
+        // whole megabytes, so that the ranges of a blob line up while the length moves
+        final long rounded = (long) Math.ceil(length / MIN_ADAPTIVE_LENGTH) * MIN_ADAPTIVE_LENGTH;
+        return Math.max(MIN_ADAPTIVE_LENGTH, Math.min(MAX_ADAPTIVE_LENGTH, rounded));
+    }
+
+    void addStats(Map<String, Long> stats) {
+        stats.put("read_length.preferred_bytes", preferredLength());
+        if (adaptive) {
+            synchronized (this) {
+                stats.put("read_length.first_byte_micros", TimeUnit.NANOSECONDS.toMicros((long) firstByteNanos));
+                stats.put("read_length.bytes_per_second", (long) (bytesPerNano * TimeUnit.SECONDS.toNanos(1)));
+            }
+        }
+    }
+}
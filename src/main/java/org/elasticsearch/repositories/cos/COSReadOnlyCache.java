@@ -0,0 +1,208 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.blobstore.support.BlobMetadata;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.CheckedFunction;
+import org.elasticsearch.core.Nullable;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.core.Tuple;
+import org.elasticsearch.repositories.blobstore.BlobStoreRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches what restores and mounts read from a repository registered as readonly, since nothing but the cluster that writes to it
+ * changes its contents:
+ * <ul>
+ *     <li>listings are reused for the configured time to live, or until {@code index.latest} changed;</li>
+ *     <li>{@code index.latest} is served from memory for the time to live and then revalidated with a GET conditional on its ETag,
+ *     which costs a request but no download while the repository did not change;</li>
+ *     <li>other metadata blobs are never overwritten under the same name, they are kept as long as they fit into the cache.</li>
+ * </ul>
+ */
+final class COSReadOnlyCache {
+
+    /**
+     * The most blob names and child containers kept across all cached listings.
+     */
+    static final int MAX_LISTED_ENTRIES = 100_000;
+
+    /**
+     * Blobs larger than the cache size divided by this are read but not cached, so that one large blob does not evict all others.
+     */
+    static final int MAX_BLOB_FRACTION = 16;
+
+    private final long ttlNanos;
+    private final int maxBlobSize;
+    private final LongSupplier nanoTime;
+
+    private final Cache<String, Listing> listings = CacheBuilder.<String, Listing>builder()
+            .setMaximumWeight(MAX_LISTED_ENTRIES)
+            .weigher((key, listing) -> listing.size() + 1L)
+            .build();
+    private final Cache<String, BytesReference> blobs;
+
+    // bumped whenever the listings are invalidated, so that a listing that was sent before is not cached afterwards
+    private long epoch;
+    @Nullable
+    private LatestIndex latestIndex;
+
+    private final LongAdder listingHits = new LongAdder();
+    private final LongAdder listingMisses = new LongAdder();
+    private final LongAdder blobHits = new LongAdder();
+    private final LongAdder blobMisses = new LongAdder();
+    private final LongAdder latestIndexHits = new LongAdder();
+    private final LongAdder latestIndexNotModified = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    COSReadOnlyCache(TimeValue ttl, ByteSizeValue size, LongSupplier nanoTime) {
+        this.ttlNanos = ttl.nanos();
+        this.maxBlobSize = Math.toIntExact(Math.min(Integer.MAX_VALUE - 1, size.getBytes() / MAX_BLOB_FRACTION));
+        this.nanoTime = nanoTime;
+        this.blobs = CacheBuilder.<String, BytesReference>builder()
+                .setMaximumWeight(size.getBytes())
+                .weigher((key, bytes) -> bytes.length())
+                .build();
+    }
+
+    /**
+     * Whether a blob read with the given purpose is metadata that is never overwritten, which excludes {@code index.latest} and the
+     * data blobs.
+     */
+    static boolean isImmutableMetadata(OperationPurpose purpose, String blobName) {
+        return purpose == OperationPurpose.SNAPSHOT_METADATA
+                && blobName.equals(BlobStoreRepository.INDEX_LATEST_BLOB) == false
+                && blobName.startsWith(BlobStoreRepository.UPLOADED_DATA_BLOB_PREFIX) == false;
+    }
+
+    /**
+     * Returns the blobs of the listing with the given key, listing them if they are not cached or expired.
+     */
+    Map<String, BlobMetadata> blobs(String key, CheckedSupplier<Map<String, BlobMetadata>, IOException> lister) throws IOException {
+        return new HashMap<>(listing("blobs:" + key, lister));
+    }
+
+    /**
+     * Returns the names of the child containers of the container with the given key, listing them if they are not cached or expired.
+     */
+    Set<String> children(String key, CheckedSupplier<Set<String>, IOException> lister) throws IOException {
+        return new HashSet<>(listing("children:" + key, lister));
+    }
+
+    private <T> T listing(String key, CheckedSupplier<T, IOException> lister) throws IOException {
+        final Listing cached = listings.get(key);
+        if (cached != null && nanoTime.getAsLong() - cached.listedNanos < ttlNanos) {
+            listingHits.increment();
+            @SuppressWarnings("unchecked")
+            final T value = (T) cached.value;
+            return value;
+        }
+        listingMisses.increment();
+        final long listedEpoch;
+        synchronized (this) {
+            listedEpoch = epoch;
+        }
+        final long listedNanos = nanoTime.getAsLong();
+        final T value = lister.get();
+        final int size = value instanceof Map<?, ?> ? ((Map<?, ?>) value).size() : ((Set<?>) value).size();
+        synchronized (this) {
+            if (listedEpoch == epoch) {
+                listings.put(key, new Listing(value, size, listedNanos));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reads a blob that is never overwritten, from the cache if it was read before. The content of the stream is cached once it is
+     * read if it is small enough, otherwise the stream is passed on.
+     */
+    InputStream readImmutable(String key, CheckedSupplier<InputStream, IOException> reader) throws IOException {
+        final BytesReference cached = blobs.get(key);
+        if (cached != null) {
+            blobHits.increment();
+            return cached.streamInput();
+        }
+        blobMisses.increment();
+        final InputStream stream = reader.get();
+        final byte[] head;
+        try {
+            head = stream.readNBytes(maxBlobSize + 1);
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        if (head.length > maxBlobSize) {
+            return new SequenceInputStream(new BytesArray(head).streamInput(), stream);
+        }
+        stream.close();
+        final BytesReference bytes = new BytesArray(head);
+        blobs.put(key, bytes);
+        return bytes.streamInput();
+    }
+
+    /**
+     * Returns the stored content of {@code index.latest}. Within the time to live of the last time it was read, it is returned from
+     * memory, afterwards {@code fetch} is called with the ETag it was last read with and returns either {@code null} if it did not
+     * change or its new ETag and content, in which case all listings are invalidated.
+     */
+    BytesReference readLatestIndex(CheckedFunction<String, Tuple<String, BytesReference>, IOException> fetch) throws IOException {
+        final LatestIndex current;
+        synchronized (this) {
+            current = latestIndex;
+        }
+        if (current != null && nanoTime.getAsLong() - current.validatedNanos < ttlNanos) {
+            latestIndexHits.increment();
+            return current.bytes;
+        }
+        final long validatedNanos = nanoTime.getAsLong();
+        final Tuple<String, BytesReference> fetched = fetch.apply(current == null ? null : current.eTag);
+        synchronized (this) {
+            if (fetched == null) {
+                assert current != null : "index.latest not modified although it was not read before";
+                latestIndexNotModified.increment();
+                latestIndex = new LatestIndex(current.eTag, current.bytes, validatedNanos);
+                return current.bytes;
+            }
+            if (current != null && fetched.v1() != null && fetched.v1().equals(current.eTag) == false) {
+                // a new generation of the repository was written, whatever was listed before may be gone or incomplete
+                epoch++;
+                listings.invalidateAll();
+                invalidations.increment();
+            }
+            latestIndex = fetched.v1() == null ? null : new LatestIndex(fetched.v1(), fetched.v2(), validatedNanos);
+            return fetched.v2();
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        stats.put("readonly_cache.listing_hits", listingHits.sum());
+        stats.put("readonly_cache.listing_misses", listingMisses.sum());
+        stats.put("readonly_cache.blob_hits", blobHits.sum());
+        stats.put("readonly_cache.blob_misses", blobMisses.sum());
+        stats.put("readonly_cache.blob_bytes", blobs.weight());
+        stats.put("readonly_cache.index_latest_hits", latestIndexHits.sum());
+        stats.put("readonly_cache.index_latest_not_modified", latestIndexNotModified.sum());
+        stats.put("readonly_cache.invalidations", invalidations.sum());
+    }
+
+    private record Listing(Object value, int size, long listedNanos) {
+    }
+
+    private record LatestIndex(String eTag, BytesReference bytes, long validatedNanos) {
+    }
+}
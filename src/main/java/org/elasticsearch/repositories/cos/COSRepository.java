@@ -5,10 +5,16 @@ import org.apache.logging.log4j.Logger;
 import org.elasticsearch.Version;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.SnapshotDeletionsInProgress;
+import org.elasticsearch.cluster.SnapshotsInProgress;
 import org.elasticsearch.cluster.metadata.RepositoryMetadata;
+import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.UUIDs;
 import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
 import org.elasticsearch.common.logging.DeprecationCategory;
 import org.elasticsearch.common.logging.DeprecationLogger;
 import org.elasticsearch.common.settings.SecureString;
@@ -16,6 +22,7 @@ import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.util.concurrent.ListenableFuture;
+import org.elasticsearch.core.Nullable;
 import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.snapshots.SnapshotDeleteListener;
@@ -31,11 +38,17 @@ import org.elasticsearch.snapshots.SnapshotsService;
 import org.elasticsearch.threadpool.Scheduler;
 import org.elasticsearch.threadpool.ThreadPool;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 public class COSRepository extends MeteredBlobStoreRepository {
     private static final Logger logger = LogManager.getLogger(COSRepository.class);
@@ -47,6 +60,8 @@ public class COSRepository extends MeteredBlobStoreRepository {
     private final ByteSizeValue chunkSize;
     private final COSService service;
     private final String bucket;
+
+    private final List<String> dataBuckets;
     private final ByteSizeValue bufferSize;
 
     /**
@@ -60,6 +75,15 @@ public class COSRepository extends MeteredBlobStoreRepository {
      */
     static final Setting<String> BASE_PATH_SETTING = Setting.simpleString("base_path");
     static final Setting<String> BUCKET_SETTING = Setting.simpleString("bucket");
+
+    /**
+     * Buckets the data blobs ({@code __*}) of the repository are spread over by a hash of their key, to scale beyond the request rate
+     * and bandwidth limits of a single bucket. Metadata stays in {@link #BUCKET_SETTING}, which may be listed here as well. The buckets
+     * must be in the same region and the list must not change while the repository holds data. Empty by default, i.e. all blobs are
+     * stored in the primary bucket.
+     */
+    static final Setting<List<String>> DATA_BUCKETS_SETTING = Setting.listSetting("data_buckets", Collections.emptyList(),
+            Function.identity());
     
     /**
      * Maximum size of files that can be uploaded using a single upload request.
@@ -118,19 +142,293 @@ public class COSRepository extends MeteredBlobStoreRepository {
             new TimeValue(3, TimeUnit.MINUTES),
             new TimeValue(0, TimeUnit.MILLISECONDS),
             Setting.Property.Dynamic);
+
+    /**
+     * Requests to COS (and object downloads, measured from the request until the stream is closed) that take at least this long are
+     * logged together with their COS request id, key and transferred bytes. Set to {@code -1} to disable the slow request log.
+     */
+    static final Setting<TimeValue> SLOW_REQUEST_THRESHOLD_SETTING = Setting.timeSetting(
+            "slow_request_threshold",
+            new TimeValue(30, TimeUnit.SECONDS),
+            TimeValue.MINUS_ONE);
+
+    /**
+     * How long a multipart upload that failed part-way is kept, so that a retry of the same blob can continue from the parts already
+     * stored in COS instead of sending the whole blob again. Uploads that are not resumed in time are aborted. Set to {@code 0} to
+     * abort failed uploads immediately.
+     */
+    static final Setting<TimeValue> MULTIPART_RESUME_TTL_SETTING = Setting.timeSetting(
+            "multipart_resume_ttl",
+            new TimeValue(1, TimeUnit.HOURS),
+            new TimeValue(0, TimeUnit.MILLISECONDS));
+
+    /**
+     * How many times a request that failed in a way that may be transient, including a part whose Content-MD5 did not match, is sent
+     * again, with exponential backoff, before it fails, see {@link COSRetryPolicy}. Failovers to another endpoint and reopened downloads count against the same limit, the COS
+     * client does not retry by itself. Set to {@code 0} to fail on the first error.
+     */
+    static final Setting<Integer> MAX_RETRIES_SETTING = Setting.intSetting("max_retries", 3, 0);
+
+    /**
+     * Key of the {@code manifest.json} of a CSV bucket inventory of the repository bucket, relative to the bucket. Used by the
+     * inventory cleanup API to find unreferenced blobs without listing the bucket, see {@link COSInventoryCleanup}.
+     */
+    static final Setting<String> INVENTORY_MANIFEST_SETTING = Setting.simpleString("inventory_manifest");
+
+    /**
+     * Whether every blob of the repository is encrypted on the client with {@link COSClientSettings#ENCRYPTION_MASTER_KEY}, which must
+     * then be in the keystore of every node. Must be enabled on an empty repository and never be disabled afterwards.
+     */
+    static final Setting<Boolean> ENCRYPT_SETTING = Setting.boolSetting("encrypt", false);
+
+    /**
+     * Whether object downloads are hedged: a GET that has not returned its response headers within
+     * {@link #HEDGED_READS_PERCENTILE_SETTING} of the recent response times is sent a second time and the first response wins.
+     */
+    static final Setting<Boolean> HEDGED_READS_SETTING = Setting.boolSetting("hedged_reads", false);
+
+    /**
+     * The percentile of recent GET response times after which a download is hedged. Defaults to 95.
+     */
+    static final Setting<Double> HEDGED_READS_PERCENTILE_SETTING = Setting.doubleSetting("hedged_reads_percentile", 95.0, 50.0, 100.0);
+
+    /**
+     * The fraction of downloads that may be hedged at most. Defaults to 0.05, i.e. 5% extra GET requests.
+     */
+    static final Setting<Double> HEDGED_READS_BUDGET_SETTING = Setting.doubleSetting("hedged_reads_budget", 0.05, 0.0, 1.0);
+
+    /**
+     * Whether small ranged reads of the same blob that arrive close together are merged into a single GET whose response is split
+     * back between them. Reads of at most an eighth of {@link #COALESCE_READS_MAX_SIZE_SETTING} are eligible.
+     */
+    static final Setting<Boolean> COALESCE_READS_SETTING = Setting.boolSetting("coalesce_reads", false);
+
+    /**
+     * How long the first read of a range waits for further reads to merge with. Defaults to 5ms.
+     */
+    static final Setting<TimeValue> COALESCE_READS_WINDOW_SETTING = Setting.timeSetting(
+            "coalesce_reads_window",
+            new TimeValue(5, TimeUnit.MILLISECONDS),
+            new TimeValue(1, TimeUnit.MILLISECONDS));
+
+    /**
+     * The largest gap between two ranges that are still merged; the bytes in between are downloaded and discarded. Defaults to 256kb.
+     */
+    static final Setting<ByteSizeValue> COALESCE_READS_MAX_GAP_SETTING = Setting.byteSizeSetting(
+            "coalesce_reads_max_gap",
+            new ByteSizeValue(256, ByteSizeUnit.KB),
+            ByteSizeValue.ZERO,
+            new ByteSizeValue(16, ByteSizeUnit.MB));
+
+    /**
+     * The largest range downloaded for merged reads, which is held in memory until all of its readers got their slice. Defaults to 8mb.
+     */
+    static final Setting<ByteSizeValue> COALESCE_READS_MAX_SIZE_SETTING = Setting.byteSizeSetting(
+            "coalesce_reads_max_size",
+            new ByteSizeValue(8, ByteSizeUnit.MB),
+            new ByteSizeValue(64, ByteSizeUnit.KB),
+            new ByteSizeValue(64, ByteSizeUnit.MB));
+
+    /**
+     * The length of the ranges readers of the repository request, e.g. when searchable snapshots fill their cache. Defaults to 32mb.
+     */
+    static final Setting<ByteSizeValue> READ_PREFERRED_LENGTH_SETTING = Setting.byteSizeSetting(
+            "read_preferred_length",
+            new ByteSizeValue(32, ByteSizeUnit.MB),
+            new ByteSizeValue(1, ByteSizeUnit.MB),
+            new ByteSizeValue(5, ByteSizeUnit.GB));
+
+    /**
+     * Whether the length of the ranges readers request follows the observed time to first byte and throughput of downloads instead of
+     * {@link #READ_PREFERRED_LENGTH_SETTING}, which is only used until enough downloads have been observed.
+     */
+    static final Setting<Boolean> ADAPTIVE_READ_LENGTH_SETTING = Setting.boolSetting("adaptive_read_length", false);
+
+    /**
+     * The share of the time of a range its time to first byte should take when the length adapts, in percent. Defaults to 5.
+     */
+    static final Setting<Double> ADAPTIVE_READ_OVERHEAD_SETTING = Setting.doubleSetting("adaptive_read_overhead", 5.0, 1.0, 50.0);
+
+    /**
+     * How long a single read from an object download may block without receiving any bytes before the download is considered stalled,
+     * aborted and reopened at the offset it reached. Defaults to {@code 0}, i.e. no limit.
+     */
+    static final Setting<TimeValue> STALLED_READ_TIMEOUT_SETTING = Setting.timeSetting(
+            "stalled_read_timeout",
+            TimeValue.ZERO,
+            TimeValue.ZERO);
+
+    /**
+     * The lowest throughput an object download may sustain over {@link #STALLED_READ_WINDOW_SETTING} of reading before it is considered
+     * stalled, aborted and reopened at the offset it reached. Defaults to {@code 0}, i.e. no limit.
+     */
+    static final Setting<ByteSizeValue> STALLED_READ_MIN_THROUGHPUT_SETTING = Setting.byteSizeSetting(
+            "stalled_read_min_throughput",
+            ByteSizeValue.ZERO,
+            ByteSizeValue.ZERO,
+            new ByteSizeValue(1, ByteSizeUnit.GB));
+
+    /**
+     * The time spent reading over which the throughput of a download is measured. Defaults to 30s.
+     */
+    static final Setting<TimeValue> STALLED_READ_WINDOW_SETTING = Setting.timeSetting(
+            "stalled_read_window",
+            new TimeValue(30, TimeUnit.SECONDS),
+            new TimeValue(1, TimeUnit.SECONDS));
+
+    /**
+     * The number of COS requests this repository sends at a time. Further requests queue and are admitted by priority: metadata first,
+     * then reads of data, then everything else (mainly uploads). Defaults to {@code 0}, i.e. requests are never queued.
+     */
+    static final Setting<Integer> MAX_CONCURRENT_REQUESTS_SETTING = Setting.intSetting("max_concurrent_requests", 0, 0);
+
+    /**
+     * The number of snapshot and cluster state metadata requests sent at a time, within {@link #MAX_CONCURRENT_REQUESTS_SETTING}.
+     * Defaults to {@code 0}, i.e. no limit of their own.
+     */
+    static final Setting<Integer> MAX_CONCURRENT_METADATA_REQUESTS_SETTING = Setting.intSetting("max_concurrent_metadata_requests", 0, 0);
+
+    /**
+     * The number of data downloads sent at a time, within {@link #MAX_CONCURRENT_REQUESTS_SETTING}. Defaults to {@code 0}, i.e. no
+     * limit of their own.
+     */
+    static final Setting<Integer> MAX_CONCURRENT_READ_REQUESTS_SETTING = Setting.intSetting("max_concurrent_read_requests", 0, 0);
+
+    /**
+     * The number of other requests, mainly data uploads, sent at a time within {@link #MAX_CONCURRENT_REQUESTS_SETTING}. Setting it
+     * below the overall limit keeps slots free for metadata and reads while a large snapshot is uploaded. Defaults to {@code 0},
+     * i.e. no limit of their own.
+     */
+    static final Setting<Integer> MAX_CONCURRENT_BULK_REQUESTS_SETTING = Setting.intSetting("max_concurrent_bulk_requests", 0, 0);
+
+    /**
+     * Whether the number of data reads and of bulk requests sent at a time adapts to the goodput and the throttling observed, between
+     * {@link #ADAPTIVE_CONCURRENCY_MIN_SETTING} and {@link #ADAPTIVE_CONCURRENCY_MAX_SETTING}, see {@link COSAdaptiveConcurrency}. The
+     * limits of their own cap the adapted ones. Defaults to false.
+     */
+    static final Setting<Boolean> ADAPTIVE_CONCURRENCY_SETTING = Setting.boolSetting("adaptive_concurrency", false);
+
+    /**
+     * The number of data reads and of bulk requests sent at a time that {@link #ADAPTIVE_CONCURRENCY_SETTING} starts at and never goes
+     * below. Defaults to 2.
+     */
+    static final Setting<Integer> ADAPTIVE_CONCURRENCY_MIN_SETTING = Setting.intSetting("adaptive_concurrency_min", 2, 1);
+
+    /**
+     * The number of data reads and of bulk requests sent at a time that {@link #ADAPTIVE_CONCURRENCY_SETTING} never goes beyond.
+     * Defaults to 64.
+     */
+    static final Setting<Integer> ADAPTIVE_CONCURRENCY_MAX_SETTING = Setting.intSetting("adaptive_concurrency_max", 64, 1);
+
+    /**
+     * Whether the master probes the bucket for read-after-write and list-after-write consistency before the first snapshot finalization
+     * that would wait for the {@link #COOLDOWN_PERIOD}, which is skipped once the probe passed since it only guards against eventual
+     * consistency. Repositories in the current format and repositories without a cooldown are never probed. Defaults to true.
+     */
+    static final Setting<Boolean> CONSISTENCY_PROBE_SETTING = Setting.boolSetting("consistency_probe", true);
+
+    /**
+     * Whether the data blobs that snapshot deletions and cleanups free are recorded in a journal in the repository and deleted in the
+     * background by the master, instead of while the deletion waits, see {@link COSDeletionJournal}. Defaults to false.
+     */
+    static final Setting<Boolean> DEFERRED_DELETES_SETTING = Setting.boolSetting("deferred_deletes", false);
+
+    /**
+     * How many {@code DeleteObjects} requests draining the deletion journal sends at the same time. Defaults to 4.
+     */
+    static final Setting<Integer> DEFERRED_DELETES_CONCURRENCY_SETTING = Setting.intSetting("deferred_deletes_concurrency", 4, 1, 64);
+
+    /**
+     * Whether streamed metadata blobs that outgrow {@link #APPEND_BUFFER_SIZE_SETTING} are written as appendable objects instead of
+     * multipart uploads, see {@link COSAppendWrites}. Not supported in buckets with versioning enabled. Defaults to false.
+     */
+    static final Setting<Boolean> APPEND_METADATA_WRITES_SETTING = Setting.boolSetting("append_metadata_writes", false);
+
+    /**
+     * The size of each append of a streamed metadata blob if {@link #APPEND_METADATA_WRITES_SETTING} is set, smaller blobs are written
+     * with a single request. Defaults to 4mb.
+     */
+    static final Setting<ByteSizeValue> APPEND_BUFFER_SIZE_SETTING = Setting.byteSizeSetting("append_buffer_size",
+            new ByteSizeValue(4, ByteSizeUnit.MB), new ByteSizeValue(64, ByteSizeUnit.KB), MAX_PART_SIZE_USING_MULTIPART);
+
+    /**
+     * Whether a repository registered as readonly caches listings, {@code index.latest} and the other metadata blobs it reads, see
+     * {@link COSReadOnlyCache}. New snapshots show up only once {@link #READONLY_CACHE_TTL_SETTING} passed. Defaults to false.
+     */
+    static final Setting<Boolean> READONLY_CACHE_SETTING = Setting.boolSetting("readonly_cache", false);
+
+    /**
+     * How long {@link #READONLY_CACHE_SETTING} reuses a listing or {@code index.latest} before it lists or revalidates again.
+     * Defaults to 1m.
+     */
+    static final Setting<TimeValue> READONLY_CACHE_TTL_SETTING = Setting.timeSetting("readonly_cache_ttl", TimeValue.timeValueMinutes(1),
+            TimeValue.ZERO);
+
+    /**
+     * How many bytes of metadata blobs {@link #READONLY_CACHE_SETTING} keeps in memory, blobs larger than a sixteenth of it are not
+     * cached. Defaults to 32mb.
+     */
+    static final Setting<ByteSizeValue> READONLY_CACHE_SIZE_SETTING = Setting.byteSizeSetting("readonly_cache_size",
+            new ByteSizeValue(32, ByteSizeUnit.MB), ByteSizeValue.ZERO, new ByteSizeValue(1, ByteSizeUnit.GB));
+
     /**
      * Time period to delay repository operations by after finalizing or deleting a snapshot.
      * See {@link #COOLDOWN_PERIOD} for details.
      */
     private final TimeValue coolDown;
 
+    private final TimeValue slowRequestThreshold;
+
+    private final TimeValue multipartResumeTtl;
+
+
+    private final boolean hedgedReads;
+
+    @Nullable
+    private final COSEncryption encryption;
+
+    private final COSBufferBudget bufferBudget;
+
+    private final COSTrafficLimits trafficLimits;
+
+    private final ClusterService clusterService;
+
     private final Executor snapshotExecutor;
 
+    private final boolean masterEligible;
+
+    private final COSConsistencyProbe consistencyProbe = new COSConsistencyProbe();
+    private final AtomicBoolean consistencyProbeStarted = new AtomicBoolean();
+
+    @Nullable
+    private final COSDeletionJournal deletionJournal;
+
+    @Nullable
+    private final COSAppendWrites appendWrites;
+
+    /**
+     * The periodic drain of the deletion journal, if deletions are deferred.
+     */
+    private final AtomicReference<Scheduler.Cancellable> journalDrain = new AtomicReference<>();
+
+    /**
+     * The periodic check of the stall watchdog of the blob store, if it is enabled.
+     */
+    private final AtomicReference<Scheduler.Cancellable> stallCheck = new AtomicReference<>();
+
+    /**
+     * The storage accounting that was started last, if any.
+     */
+    private final AtomicReference<COSStorageAccounting> storageAccounting = new AtomicReference<>();
+
     COSRepository(RepositoryMetadata metadata,
                   NamedXContentRegistry namedXContentRegistry,
                   COSService cos,
                   final ClusterService clusterService,
                   final BigArrays bigArrays,
+                  final COSBufferBudget bufferBudget,
+                  final COSTrafficLimits trafficLimits,
+                  @Nullable final byte[] encryptionMasterKey,
                   final RecoverySettings recoverySettings) {
         super(metadata,
                 namedXContentRegistry,
@@ -140,7 +438,11 @@ public class COSRepository extends MeteredBlobStoreRepository {
                 buildBasePath(metadata),
                 buildLocation(metadata));
         this.service = cos;
+        this.bufferBudget = bufferBudget;
+        this.trafficLimits = trafficLimits;
+        this.clusterService = clusterService;
         this.snapshotExecutor = threadPool().executor(ThreadPool.Names.SNAPSHOT);
+        this.masterEligible = DiscoveryNode.isMasterNode(clusterService.getSettings());
 
         String bucket = COSClientSettings.BUCKET.get(metadata.settings());
         if (!Strings.hasLength(bucket)) {
@@ -151,10 +453,12 @@ public class COSRepository extends MeteredBlobStoreRepository {
         // qcloud-sdk-v5 app_id directly joined with bucket name
         if (appId.length() > 0) {
             this.bucket = bucket + "-" + appId;
+            this.dataBuckets = DATA_BUCKETS_SETTING.get(metadata.settings()).stream().map(b -> b + "-" + appId).toList();
             deprecationLogger.critical(DeprecationCategory.SECURITY, "cos_repository_secret_settings",
                     "cos repository bucket already contain app_id, and app_id will not be supported for the cos repository in future releases");
         } else {
             this.bucket = bucket;
+            this.dataBuckets = DATA_BUCKETS_SETTING.get(metadata.settings());
         }
 
         if (basePath.startsWith("/")) {
@@ -173,11 +477,37 @@ public class COSRepository extends MeteredBlobStoreRepository {
         this.bufferSize = BUFFER_SIZE_SETTING.get(metadata.settings());
 
         coolDown = COOLDOWN_PERIOD.get(metadata.settings());
+        slowRequestThreshold = SLOW_REQUEST_THRESHOLD_SETTING.get(metadata.settings());
+        multipartResumeTtl = MULTIPART_RESUME_TTL_SETTING.get(metadata.settings());
+        hedgedReads = HEDGED_READS_SETTING.get(metadata.settings());
+        encryption = buildEncryption(metadata, encryptionMasterKey);
+        deletionJournal = DEFERRED_DELETES_SETTING.get(metadata.settings())
+                ? new COSDeletionJournal(this.basePath.add(COSDeletionJournal.FOLDER_NAME),
+                        DEFERRED_DELETES_CONCURRENCY_SETTING.get(metadata.settings()), snapshotExecutor, threadPool::absoluteTimeInMillis)
+                : null;
+        appendWrites = APPEND_METADATA_WRITES_SETTING.get(metadata.settings())
+                ? new COSAppendWrites(APPEND_BUFFER_SIZE_SETTING.get(metadata.settings()), this.basePath.add(COSAppendWrites.FOLDER_NAME))
+                : null;
 
         logger.trace("using bucket [{}], base_path [{}], chunk_size [{}], compress [{}]", bucket,
                 basePath, chunkSize, compress);
     }
     
+    private static COSEncryption buildEncryption(RepositoryMetadata metadata, @Nullable byte[] masterKey) {
+        if (ENCRYPT_SETTING.get(metadata.settings()) == false) {
+            return null;
+        }
+        if (masterKey == null) {
+            throw new RepositoryException(metadata.name(), "encryption requires the secure setting ["
+                    + COSClientSettings.ENCRYPTION_MASTER_KEY.getKey() + "] in the keystore");
+        }
+        try {
+            return new COSEncryption(masterKey);
+        } catch (IllegalArgumentException e) {
+            throw new RepositoryException(metadata.name(), "invalid encryption master key: " + e.getMessage());
+        }
+    }
+
     private static Map<String, String> buildLocation(RepositoryMetadata metadata) {
         return Map.of("base_path", BASE_PATH_SETTING.get(metadata.settings()),
                 "bucket", BUCKET_SETTING.get(metadata.settings()));
@@ -191,8 +521,33 @@ public class COSRepository extends MeteredBlobStoreRepository {
     
     @Override
     public void finalizeSnapshot(final FinalizeSnapshotContext finalizeSnapshotContext) {
+        if (SnapshotsService.useShardGenerations(finalizeSnapshotContext.repositoryMetaVersion()) == false
+                && CONSISTENCY_PROBE_SETTING.get(metadata.settings()) && coolDown.millis() > 0L
+                && consistencyProbeStarted.compareAndSet(false, true)) {
+            // the first finalization that would wait for the cooldown decides whether it is needed, by then the repository is started
+            snapshotExecutor.execute(ActionRunnable.wrap(finalizeSnapshotContext, l -> {
+                runConsistencyProbe();
+                doFinalizeSnapshot(finalizeSnapshotContext);
+            }));
+        } else {
+            doFinalizeSnapshot(finalizeSnapshotContext);
+        }
+    }
+
+    private void runConsistencyProbe() {
+        // resolving the blob store may fail as well, the probe records that as a failure instead of failing the finalization
+        consistencyProbe.run(() -> blobStore().blobContainer(basePath().add("tests-cos-consistency-" + UUIDs.randomBase64UUID())),
+                new Random());
+        if (consistencyProbe.passed()) {
+            logger.info("repository [{}] passed the consistency probe, snapshot operations will not wait for the [{}] cooldown period",
+                    metadata.name(), coolDown);
+        }
+    }
+
+    private void doFinalizeSnapshot(final FinalizeSnapshotContext finalizeSnapshotContext) {
         final FinalizeSnapshotContext wrappedFinalizeContext;
-        if (SnapshotsService.useShardGenerations(finalizeSnapshotContext.repositoryMetaVersion()) == false) {
+        if (SnapshotsService.useShardGenerations(finalizeSnapshotContext.repositoryMetaVersion()) == false
+                && consistencyProbe.passed() == false) {
             final ListenableFuture<Void> metadataDone = new ListenableFuture<>();
             wrappedFinalizeContext = new FinalizeSnapshotContext(
                     finalizeSnapshotContext.updatedShardGenerations(),
@@ -254,9 +609,148 @@ public class COSRepository extends MeteredBlobStoreRepository {
     }
     
     
+    @Override
+    protected void doStart() {
+        super.doStart();
+        if (deletionJournal != null && masterEligible && isReadOnly() == false) {
+            // picks up what a previous master left in the journal, and what failed to drain before
+            final Scheduler.Cancellable existing = journalDrain.getAndSet(threadPool.scheduleWithFixedDelay(() -> {
+                if (clusterService.state().nodes().isLocalNodeElectedMaster()) {
+                    deletionJournal.drain((COSBlobStore) blobStore());
+                }
+            }, COSDeletionJournal.DRAIN_INTERVAL, snapshotExecutor));
+            assert existing == null : "repository started twice";
+        }
+    }
+
+    /**
+     * Starts computing the storage used by every index of the repository and completes the listener with the computation right away,
+     * or with the one that is still running if there is one.
+     */
+    void startStorageAccounting(int concurrency, ActionListener<COSStorageAccounting> listener) {
+        final COSStorageAccounting running = storageAccounting.get();
+        if (running != null && running.state() == COSStorageAccounting.State.RUNNING) {
+            listener.onResponse(running);
+            return;
+        }
+        final Executor executor = threadPool.executor(ThreadPool.Names.SNAPSHOT_META);
+        getRepositoryData(executor, listener.delegateFailureAndWrap((l, repositoryData) -> {
+            final COSStorageAccounting accounting = new COSStorageAccounting((COSBlobStore) blobStore(), basePath(), repositoryData,
+                    concurrency, executor, threadPool::absoluteTimeInMillis);
+            final COSStorageAccounting previous = storageAccounting.get();
+            if ((previous == null || previous.state() != COSStorageAccounting.State.RUNNING)
+                    && storageAccounting.compareAndSet(previous, accounting)) {
+                accounting.start();
+                l.onResponse(accounting);
+            } else {
+                l.onResponse(storageAccounting.get());
+            }
+        }));
+    }
+
+    /**
+     * Returns the storage accounting that was started last, whether it is still running or not.
+     */
+    @Nullable
+    COSStorageAccounting storageAccounting() {
+        return storageAccounting.get();
+    }
+
+    /**
+     * Returns the detailed statistics of the blob store of this repository on this node, or nothing if it was not used yet.
+     */
+    Map<String, Long> detailedStats() {
+        final COSBlobStore blobStore = (COSBlobStore) getBlobStore();
+        return blobStore == null ? Map.of() : blobStore.detailedStats();
+    }
+
+    /**
+     * Returns the key of the bucket inventory manifest to clean up from, the given one or the one of
+     * {@link #INVENTORY_MANIFEST_SETTING} if none is given, failing if there is none or if blobs would be deleted from a readonly
+     * repository.
+     */
+    String inventoryManifest(@Nullable String manifestKey, boolean dryRun) {
+        final String manifest = Strings.hasText(manifestKey) ? manifestKey : INVENTORY_MANIFEST_SETTING.get(metadata.settings());
+        if (Strings.hasText(manifest) == false) {
+            throw new IllegalArgumentException("no inventory manifest given for repository [" + metadata.name() + "]");
+        }
+        if (dryRun == false && isReadOnly()) {
+            throw new RepositoryException(metadata.name(), "cannot clean up a readonly repository");
+        }
+        return manifest;
+    }
+
+    /**
+     * Deletes the blobs of the repository that the given repository data no longer references, finding them in the given bucket
+     * inventory. Runs on the master node, registered as a repository cleanup in the cluster state unless it is a dry run, see
+     * {@link TransportCOSInventoryCleanupAction}.
+     */
+    COSInventoryCleanup.Result cleanupFromInventory(RepositoryData repositoryData, String manifest, TimeValue minAge, boolean dryRun)
+            throws IOException {
+        final COSBlobStore blobStore = (COSBlobStore) blobStore();
+        final COSInventory inventory = COSInventory.open(
+                key -> new CosRetryingInputStream(OperationPurpose.SNAPSHOT_METADATA, blobStore, key), manifest);
+        return new COSInventoryCleanup(blobStore, basePath(), new COSBlobReferences(repositoryData), minAge.millis(),
+                threadPool::absoluteTimeInMillis, this::isIdle, dryRun).run(inventory);
+    }
+
+    /**
+     * Whether no snapshot is created or deleted on this repository. The cleanup that asks is registered in the cluster state itself,
+     * which keeps new snapshot operations from starting until it is done.
+     */
+    private boolean isIdle() {
+        final ClusterState state = clusterService.state();
+        return SnapshotsInProgress.get(state).forRepo(metadata.name()).isEmpty()
+                && SnapshotDeletionsInProgress.get(state).getEntries().stream().noneMatch(e -> e.repository().equals(metadata.name()));
+    }
+
     @Override
     protected COSBlobStore createBlobStore() {
-        return new COSBlobStore(this.service.getClient(), this.bucket, this.bufferSize, this.bigArrays);
+        final COSHedgedReads hedgedReads = this.hedgedReads
+                ? new COSHedgedReads(threadPool.generic(), HEDGED_READS_PERCENTILE_SETTING.get(metadata.settings()),
+                        HEDGED_READS_BUDGET_SETTING.get(metadata.settings()))
+                : COSHedgedReads.DISABLED;
+        final COSReadCoalescer readCoalescer = COALESCE_READS_SETTING.get(metadata.settings())
+                ? new COSReadCoalescer(COALESCE_READS_WINDOW_SETTING.get(metadata.settings()),
+                        COALESCE_READS_MAX_GAP_SETTING.get(metadata.settings()), COALESCE_READS_MAX_SIZE_SETTING.get(metadata.settings()))
+                : COSReadCoalescer.DISABLED;
+        final COSStallWatchdog stallWatchdog = new COSStallWatchdog(STALLED_READ_TIMEOUT_SETTING.get(metadata.settings()),
+                STALLED_READ_MIN_THROUGHPUT_SETTING.get(metadata.settings()), STALLED_READ_WINDOW_SETTING.get(metadata.settings()),
+                System::nanoTime);
+        if (stallWatchdog.isEnabled()) {
+            final Scheduler.Cancellable existing = stallCheck.getAndSet(
+                    threadPool.scheduleWithFixedDelay(stallWatchdog::check, COSStallWatchdog.CHECK_INTERVAL, threadPool.generic()));
+            assert existing == null : "blob store created twice";
+        }
+        return COSBlobStore.builder(this.service.getEndpoints(), this.bucket, this.bufferSize, this.bigArrays)
+                .dataBuckets(this.dataBuckets)
+                .bufferBudget(this.bufferBudget)
+                .trafficLimits(this.trafficLimits)
+                .slowRequestThreshold(this.slowRequestThreshold)
+                .multipartResumeTtl(this.multipartResumeTtl)
+                .retryPolicy(new COSRetryPolicy(MAX_RETRIES_SETTING.get(metadata.settings())))
+                .hedgedReads(hedgedReads)
+                .readCoalescer(readCoalescer)
+                .readLength(new COSReadLength(READ_PREFERRED_LENGTH_SETTING.get(metadata.settings()),
+                        ADAPTIVE_READ_LENGTH_SETTING.get(metadata.settings()), ADAPTIVE_READ_OVERHEAD_SETTING.get(metadata.settings())))
+                .encryption(this.encryption)
+                .deletionJournal(this.deletionJournal)
+                .appendWrites(this.appendWrites)
+                .readOnlyCache(READONLY_CACHE_SETTING.get(metadata.settings()) && isReadOnly()
+                        ? new COSReadOnlyCache(READONLY_CACHE_TTL_SETTING.get(metadata.settings()),
+                                READONLY_CACHE_SIZE_SETTING.get(metadata.settings()), System::nanoTime)
+                        : null)
+                .stallWatchdog(stallWatchdog.isEnabled() ? stallWatchdog : COSStallWatchdog.DISABLED)
+                .scheduler(new COSRequestScheduler(MAX_CONCURRENT_REQUESTS_SETTING.get(metadata.settings()),
+                        MAX_CONCURRENT_METADATA_REQUESTS_SETTING.get(metadata.settings()),
+                        MAX_CONCURRENT_READ_REQUESTS_SETTING.get(metadata.settings()),
+                        MAX_CONCURRENT_BULK_REQUESTS_SETTING.get(metadata.settings()),
+                        ADAPTIVE_CONCURRENCY_SETTING.get(metadata.settings())
+                                ? new COSAdaptiveConcurrency(ADAPTIVE_CONCURRENCY_MIN_SETTING.get(metadata.settings()),
+                                        ADAPTIVE_CONCURRENCY_MAX_SETTING.get(metadata.settings()), System::nanoTime)
+                                : null))
+                .consistencyProbe(consistencyProbe)
+                .build();
     }
 
     @Override
@@ -277,6 +771,14 @@ public class COSRepository extends MeteredBlobStoreRepository {
             logger.debug("Repository [{}] closed during cool-down period", metadata.name());
             cancellable.cancel();
         }
+        final Scheduler.Cancellable stallCheck = this.stallCheck.getAndSet(null);
+        if (stallCheck != null) {
+            stallCheck.cancel();
+        }
+        final Scheduler.Cancellable journalDrain = this.journalDrain.getAndSet(null);
+        if (journalDrain != null) {
+            journalDrain.cancel();
+        }
         super.doClose();
     }
 
@@ -1,36 +1,71 @@
 package org.elasticsearch.repositories.cos;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.metadata.RepositoryMetadata;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.SecureString;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.features.NodeFeature;
 import org.elasticsearch.repositories.RepositoriesMetrics;
+import org.elasticsearch.repositories.RepositoriesService;
 import org.elasticsearch.xcontent.NamedXContentRegistry;
 import org.elasticsearch.env.Environment;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.indices.recovery.RecoverySettings;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.RepositoryPlugin;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.repositories.Repository;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 
 /**
  * Created by Ethan-Zhang on 30/03/2018.
  */
-public class COSRepositoryPlugin extends Plugin implements RepositoryPlugin {
+public class COSRepositoryPlugin extends Plugin implements RepositoryPlugin, ActionPlugin {
 
     static {
         Logger.getLogger("org.apache.http.wire").setLevel(Level.INFO);
     }
+
+    private final SetOnce<RepositoriesService> repositoriesService = new SetOnce<>();
+
     protected COSService createStorageService(RepositoryMetadata metaData) {
         return new COSService(metaData);
     }
 
+    /**
+     * Builds the buffer budget shared by all COS repositories of the node, bounded by the request circuit breaker of the given big
+     * arrays if they have one.
+     */
+    static COSBufferBudget createBufferBudget(Settings settings, BigArrays bigArrays) {
+        final CircuitBreakerService breakerService = bigArrays.breakerService();
+        return new COSBufferBudget(COSClientSettings.BUFFER_BUDGET.get(settings).getBytes(),
+                breakerService == null ? null : breakerService.getBreaker(CircuitBreaker.REQUEST));
+    }
+
     @Override
     public Map<String, Repository.Factory> getRepositories(final Environment env,
                                                            final NamedXContentRegistry namedXContentRegistry,
@@ -38,15 +73,60 @@ public class COSRepositoryPlugin extends Plugin implements RepositoryPlugin {
                                                            final BigArrays bigArrays,
                                                            final RecoverySettings recoverySettings,
                                                            final RepositoriesMetrics repositoriesMetrics) {
+        final COSBufferBudget bufferBudget = createBufferBudget(env.settings(), bigArrays);
+        final COSTrafficLimits trafficLimits = COSTrafficLimits.create(env.settings(), clusterService.getClusterSettings());
+        final byte[] encryptionMasterKey = readEncryptionMasterKey(env.settings());
         return Collections.singletonMap(COSRepository.TYPE,
-                (metadata) -> new COSRepository(metadata, namedXContentRegistry,
-                        createStorageService(metadata), clusterService, bigArrays, recoverySettings));
+                (metadata) -> new COSRepository(metadata, namedXContentRegistry, createStorageService(metadata), clusterService,
+                        bigArrays, bufferBudget, trafficLimits, encryptionMasterKey, recoverySettings));
+    }
+
+    /**
+     * Reads the encryption master key from the keystore, which is only open while the node starts, or returns {@code null} if it is
+     * not set.
+     */
+    static byte[] readEncryptionMasterKey(Settings settings) {
+        if (COSClientSettings.ENCRYPTION_MASTER_KEY.exists(settings) == false) {
+            return null;
+        }
+        try (SecureString masterKey = COSClientSettings.ENCRYPTION_MASTER_KEY.get(settings)) {
+            return Base64.getDecoder().decode(masterKey.toString());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("[" + COSClientSettings.ENCRYPTION_MASTER_KEY.getKey() + "] is not valid Base64", e);
+        }
+    }
+
+    @Override
+    public Collection<?> createComponents(PluginServices services) {
+        repositoriesService.set(services.repositoriesService());
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return List.of(new ActionHandler<>(TransportCOSInventoryCleanupAction.TYPE, TransportCOSInventoryCleanupAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings,
+                                             NamedWriteableRegistry namedWriteableRegistry,
+                                             RestController restController,
+                                             ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings,
+                                             SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster,
+                                             Predicate<NodeFeature> clusterSupportsFeature) {
+        return Arrays.asList(new RestCOSStorageAccountingAction(repositoriesService::get),
+                new RestCOSInventoryCleanupAction(), new RestCOSStatsAction(repositoriesService::get));
     }
 
     @Override
     public List<Setting<?>> getSettings() {
         return Arrays.asList(COSClientSettings.REGION, COSClientSettings.ACCESS_KEY_ID, COSClientSettings.ACCESS_KEY_SECRET,
                 COSClientSettings.APP_ID, COSClientSettings.BUCKET,
-                COSClientSettings.BASE_PATH, COSClientSettings.COMPRESS, COSClientSettings.CHUNK_SIZE, COSClientSettings.END_POINT);
+                COSClientSettings.BASE_PATH, COSClientSettings.COMPRESS, COSClientSettings.CHUNK_SIZE, COSClientSettings.END_POINT,
+                COSClientSettings.END_POINTS, COSClientSettings.END_POINT_RETRY_INTERVAL, COSClientSettings.ENCRYPTION_MASTER_KEY,
+                COSClientSettings.BUFFER_BUDGET, COSClientSettings.UPLOAD_TRAFFIC_LIMIT, COSClientSettings.DOWNLOAD_TRAFFIC_LIMIT);
     }
 }
\ No newline at end of file
@@ -0,0 +1,243 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.exception.CosClientException;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.core.Nullable;
+import org.elasticsearch.core.Releasable;
+import org.elasticsearch.repositories.cos.COSBlobStore.Operation;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits COS requests by class, so that the bulk upload of a large snapshot cannot starve the metadata requests the master needs to
+ * finalize snapshots, or the reads of a restore.
+ * <p>
+ * At most the configured number of requests run at a time, and each class may additionally be limited on its own. Whenever a request
+ * completes, the freed slot goes to the waiting request of the highest priority class that is still below its own limit; requests of
+ * the same class are admitted in order of arrival. Only the request itself is covered: the body of a download is streamed after it
+ * was admitted.
+ * <p>
+ * The limits of reads and bulk requests may also adapt to the throughput and the throttling observed, see
+ * {@link COSAdaptiveConcurrency}; the configured limits then cap the adapted ones.
+ */
+final class COSRequestScheduler {
+
+    static final COSRequestScheduler DISABLED = new COSRequestScheduler(0, 0, 0, 0, null);
+
+    private static final Releasable NOOP = () -> {};
+
+    /**
+     * The classes of requests, in order of priority.
+     */
+    enum RequestClass {
+        /**
+         * Snapshot and cluster state metadata, read and written by the master to finalize and delete snapshots.
+         */
+        METADATA,
+        /**
+         * Downloads and existence checks of data, e.g. by restores and searchable snapshots.
+         */
+        READS,
+        /**
+         * Everything else, mainly uploads of snapshot data, listings and deletes.
+         */
+        BULK
+    }
+
+    static RequestClass classify(Operation operation, OperationPurpose purpose) {
+        if (purpose == OperationPurpose.SNAPSHOT_METADATA || purpose == OperationPurpose.CLUSTER_STATE) {
+            return RequestClass.METADATA;
+        }
+        if (operation == Operation.GET_OBJECT || operation == Operation.HEAD_OBJECT) {
+            return RequestClass.READS;
+        }
+        return RequestClass.BULK;
+    }
+
+    private final int maxRequests;
+    private final int[] limits;
+    @Nullable
+    private final COSAdaptiveConcurrency adaptiveConcurrency;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition[] conditions;
+    // all guarded by lock
+    private int running;
+    private final int[] active;
+    private final int[] waiting;
+    private final int[] granted;
+    private final long[] waits;
+    private final long[] waitNanos;
+
+    /**
+     * @param maxRequests the number of requests that may run at a time, or {@code 0} to admit every request immediately
+     * @param maxMetadata the limit of {@link RequestClass#METADATA} requests, or {@code 0} for no limit of their own
+     * @param maxReads    the limit of {@link RequestClass#READS} requests, or {@code 0} for no limit of their own
+     * @param maxBulk     the limit of {@link RequestClass#BULK} requests, or {@code 0} for no limit of their own
+     * @param adaptiveConcurrency adapts the limits of reads and bulk requests, if set; {@code maxRequests} may then be {@code 0} for
+     *                            no overall limit
+     */
+    COSRequestScheduler(int maxRequests, int maxMetadata, int maxReads, int maxBulk, @Nullable COSAdaptiveConcurrency adaptiveConcurrency) {
+        this.maxRequests = maxRequests;
+        this.adaptiveConcurrency = adaptiveConcurrency;
+        this.limits = new int[]{
+                maxMetadata > 0 ? maxMetadata : Integer.MAX_VALUE,
+                maxReads > 0 ? maxReads : Integer.MAX_VALUE,
+                maxBulk > 0 ? maxBulk : Integer.MAX_VALUE};
+        final int classes = RequestClass.values().length;
+        this.conditions = new Condition[classes];
+        for (int i = 0; i < classes; i++) {
+            conditions[i] = lock.newCondition();
+        }
+        this.active = new int[classes];
+        this.waiting = new int[classes];
+        this.granted = new int[classes];
+        this.waits = new long[classes];
+        this.waitNanos = new long[classes];
+    }
+
+    boolean isEnabled() {
+        return maxRequests > 0 || adaptiveConcurrency != null;
+    }
+
+    /**
+     * Waits until a request of the given kind may run.
+     *
+     * @return releases the slot of the request once it completed
+     */
+    Releasable acquire(Operation operation, OperationPurpose purpose) {
+        if (isEnabled() == false) {
+            return NOOP;
+        }
+        final int requestClass = classify(operation, purpose).ordinal();
+        lock.lock();
+        try {
+            if (waiting[requestClass] == 0 && canRun(requestClass)) {
+                admit(requestClass);
+                return () -> release(requestClass);
+            }
+            final long startNanos = System.nanoTime();
+            waiting[requestClass]++;
+            try {
+                while (granted[requestClass] == 0) {
+                    conditions[requestClass].await();
+                }
+                granted[requestClass]--;
+            } catch (InterruptedException e) {
+                if (granted[requestClass] >= waiting[requestClass]) {
+                    // a slot was handed to this class that nobody else waits for anymore
+                    granted[requestClass]--;
+                    active[requestClass]--;
+                    running--;
+                    dispatch();
+                }
+                Thread.currentThread().interrupt();
+                throw new CosClientException("interrupted while waiting to send a COS request", e);
+            } finally {
+                waiting[requestClass]--;
+                waits[requestClass]++;
+                waitNanos[requestClass] += System.nanoTime() - startNanos;
+            }
+            return () -> release(requestClass);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canRun(int requestClass) {
+        return (maxRequests == 0 || running < maxRequests) && active[requestClass] < limit(requestClass);
+    }
+
+    private int limit(int requestClass) {
+        if (adaptiveConcurrency == null) {
+            return limits[requestClass];
+        }
+        return Math.min(limits[requestClass], adaptiveConcurrency.limit(RequestClass.values()[requestClass]));
+    }
+
+    /**
+     * Reports the outcome of an attempt of a request that holds its slot, so that the limits can adapt to it.
+     *
+     * @param bytes   the bytes the request sent
+     * @param failure the failure of the attempt, or {@code null} if it succeeded
+     */
+    void onCompleted(Operation operation, OperationPurpose purpose, long bytes, @Nullable Exception failure) {
+        if (adaptiveConcurrency == null) {
+            return;
+        }
+        final int requestClass = classify(operation, purpose).ordinal();
+        lock.lock();
+        try {
+            final boolean saturated = waiting[requestClass] > granted[requestClass] || active[requestClass] >= limit(requestClass);
+            if (adaptiveConcurrency.onCompleted(RequestClass.values()[requestClass], bytes, failure, saturated)) {
+                dispatch();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reports the bytes of a completed download, which it received after it released its slot.
+     */
+    void onTransfer(Operation operation, OperationPurpose purpose, long bytes) {
+        if (adaptiveConcurrency != null) {
+            adaptiveConcurrency.onTransfer(classify(operation, purpose), bytes);
+        }
+    }
+
+    private void admit(int requestClass) {
+        active[requestClass]++;
+        running++;
+    }
+
+    private void release(int requestClass) {
+        lock.lock();
+        try {
+            active[requestClass]--;
+            running--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands free slots to waiting requests, highest priority class first.
+     */
+    private void dispatch() {
+        for (int requestClass = 0; requestClass < conditions.length; requestClass++) {
+            while (waiting[requestClass] > granted[requestClass] && canRun(requestClass)) {
+                admit(requestClass);
+                granted[requestClass]++;
+                conditions[requestClass].signal();
+            }
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        if (isEnabled() == false) {
+            return;
+        }
+        if (adaptiveConcurrency != null) {
+            adaptiveConcurrency.addStats(stats);
+        }
+        lock.lock();
+        try {
+            for (RequestClass requestClass : RequestClass.values()) {
+                final int i = requestClass.ordinal();
+                final String prefix = "scheduler." + requestClass.name().toLowerCase(Locale.ROOT) + ".";
+                stats.put(prefix + "active", (long) active[i]);
+                stats.put(prefix + "queued", (long) (waiting[i] - granted[i]));
+                stats.put(prefix + "waits", waits[i]);
+                stats.put(prefix + "wait_time_millis", TimeUnit.NANOSECONDS.toMillis(waitNanos[i]));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.model.COSObject;
+import com.qcloud.cos.model.CompleteMultipartUploadResult;
+import com.qcloud.cos.model.CosServiceResult;
+import com.qcloud.cos.model.PutObjectResult;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.core.TimeValue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tracks the latency of every request a {@link COSBlobStore} sends to COS, broken down by {@link COSBlobStore.Operation} and
+ * {@link OperationPurpose}, and logs requests that take longer than the configured slow request threshold.
+ * <p>
+ * The request counts are published through {@link COSBlobStore#stats()} and therefore show up in the
+ * {@code _nodes/_repositories_metering} API, the latency distributions through {@link COSBlobStore#detailedStats()}.
+ */
+final class COSRequestStats {
+
+    private static final Logger logger = LogManager.getLogger(COSRequestStats.class);
+
+    private static final OperationPurpose[] PURPOSES = OperationPurpose.values();
+    private static final COSBlobStore.Operation[] OPERATIONS = COSBlobStore.Operation.values();
+
+    private final long slowRequestThresholdNanos;
+
+    // one latency histogram (in microseconds) per operation and purpose, created on first use
+    private final AtomicReferenceArray<LatencyHistogram> histograms =
+            new AtomicReferenceArray<>(OPERATIONS.length * PURPOSES.length);
+
+    COSRequestStats(TimeValue slowRequestThreshold) {
+        this.slowRequestThresholdNanos = slowRequestThreshold.nanos() < 0 ? Long.MAX_VALUE : slowRequestThreshold.nanos();
+    }
+
+    /**
+     * Records a completed (successful or failed) request.
+     *
+     * @param bytes     the number of payload bytes sent or received, or 0 if not applicable
+     * @param requestId the COS request id of the response, if one was received
+     */
+    void record(COSBlobStore.Operation operation, OperationPurpose purpose, String key, long bytes, String requestId, long tookNanos) {
+        histogram(operation, purpose).record(TimeUnit.NANOSECONDS.toMicros(tookNanos));
+        logIfSlow(operation, purpose, key, bytes, requestId, tookNanos);
+    }
+
+    /**
+     * Logs a request or a streamed transfer that took longer than the slow request threshold without recording its latency. Used
+     * for object downloads whose body is consumed long after the request itself returned.
+     */
+    void logIfSlow(COSBlobStore.Operation operation, OperationPurpose purpose, String key, long bytes, String requestId, long tookNanos) {
+        if (tookNanos >= slowRequestThresholdNanos) {
+            logger.warn("slow COS request [{}] for purpose [{}] on [{}] with request id [{}] transferring [{}] bytes took [{}]",
+                    operation.getKey(), purpose.getKey(), key, requestId, bytes, TimeValue.timeValueNanos(tookNanos));
+        }
+    }
+
+    LatencyHistogram histogram(COSBlobStore.Operation operation, OperationPurpose purpose) {
+        final int index = operation.ordinal() * PURPOSES.length + purpose.ordinal();
+        final LatencyHistogram existing = histograms.get(index);
+        if (existing != null) {
+            return existing;
+        }
+        histograms.compareAndSet(index, null, new LatencyHistogram());
+        return histograms.get(index);
+    }
+
+    /**
+     * Returns the request count per operation, as expected by the repositories metering API.
+     */
+    Map<String, Long> counts() {
+        final Map<String, Long> results = new HashMap<>();
+        for (COSBlobStore.Operation operation : OPERATIONS) {
+            long operationCount = 0L;
+            for (OperationPurpose purpose : PURPOSES) {
+                final LatencyHistogram histogram = histograms.get(operation.ordinal() * PURPOSES.length + purpose.ordinal());
+                if (histogram != null) {
+                    operationCount += histogram.count();
+                }
+            }
+            results.put(operation.getKey(), operationCount);
+        }
+        return results;
+    }
+
+    /**
+     * Adds the latency distribution of every operation and purpose that saw at least one request, keyed as
+     * {@code <operation>.<purpose>.<statistic>} with latencies in microseconds.
+     */
+    void addStats(Map<String, Long> stats) {
+        for (COSBlobStore.Operation operation : OPERATIONS) {
+            for (OperationPurpose purpose : PURPOSES) {
+                final LatencyHistogram histogram = histograms.get(operation.ordinal() * PURPOSES.length + purpose.ordinal());
+                if (histogram == null || histogram.count() == 0L) {
+                    continue;
+                }
+                final long count = histogram.count();
+                final String prefix = operation.getKey() + "." + purpose.getKey() + ".";
+                stats.put(prefix + "count", count);
+                stats.put(prefix + "avg_micros", histogram.sum() / count);
+                stats.put(prefix + "p50_micros", histogram.percentile(50.0));
+                stats.put(prefix + "p90_micros", histogram.percentile(90.0));
+                stats.put(prefix + "p99_micros", histogram.percentile(99.0));
+                stats.put(prefix + "max_micros", histogram.max());
+            }
+        }
+    }
+
+    /**
+     * Extracts the COS request id from a response object, if it carries one.
+     */
+    static String requestId(Object response) {
+        if (response instanceof CosServiceResult) {
+            return ((CosServiceResult) response).getRequestId();
+        } else if (response instanceof PutObjectResult) {
+            return ((PutObjectResult) response).getRequestId();
+        } else if (response instanceof CompleteMultipartUploadResult) {
+            return ((CompleteMultipartUploadResult) response).getRequestId();
+        } else if (response instanceof COSObject) {
+            return ((COSObject) response).getObjectMetadata().getRequestId();
+        }
+        return null;
+    }
+}
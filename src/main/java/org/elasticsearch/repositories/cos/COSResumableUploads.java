@@ -0,0 +1,175 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.core.TimeValue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the upload ids of multipart uploads that failed part-way, so that a later attempt to upload the same blob with the same size
+ * can list the parts COS already holds and only send the missing ones, instead of starting over. Parts only match if they are cut the
+ * same way, so an upload is retained with its part size, which the next attempt uses whatever its buffers would allow otherwise.
+ * <p>
+ * An upload is retained by the writer that failed and claimed back (and thereby removed) by the next writer of the same blob.
+ * Uploads that are not claimed within the time to live are handed out by {@link #removeExpired()} so they can be aborted.
+ */
+final class COSResumableUploads {
+
+    private final long ttlNanos;
+    private final LongSupplier nanoTime;
+    private final Map<Key, Upload> uploads = new ConcurrentHashMap<>();
+
+    private final LongAdder resumedUploads = new LongAdder();
+    private final LongAdder skippedParts = new LongAdder();
+    private final LongAdder expiredUploads = new LongAdder();
+
+    COSResumableUploads(TimeValue ttl, LongSupplier nanoTime) {
+        this.ttlNanos = ttl.nanos();
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Whether failed uploads should be retained at all; if not they are aborted right away.
+     */
+    boolean isEnabled() {
+        return ttlNanos > 0L;
+    }
+
+    /**
+     * Returns the part size of a fresh retained upload of the given blob without claiming it, or {@code -1} if there is none.
+     */
+    long retainedPartSize(String blobKey, long blobSize) {
+        final Upload upload = uploads.get(new Key(blobKey, blobSize));
+        return upload == null || isExpired(upload, nanoTime.getAsLong()) ? -1L : upload.partSize;
+    }
+
+    /**
+     * Returns a retained upload of the given blob and removes it, or {@code null} if there is none that is still fresh.
+     */
+    Upload claim(String blobKey, long blobSize) {
+        final Upload upload = uploads.remove(new Key(blobKey, blobSize));
+        if (upload == null) {
+            return null;
+        }
+        if (isExpired(upload, nanoTime.getAsLong())) {
+            // put it back so that it is aborted with the other expired uploads
+            uploads.putIfAbsent(new Key(blobKey, blobSize), upload);
+            return null;
+        }
+        return upload;
+    }
+
+    /**
+     * Retains a failed upload for a later attempt.
+     *
+     * @return an upload of the same blob that was retained concurrently and is now displaced, or {@code null}
+     */
+    Upload retain(String blobKey, long blobSize, long partSize, String uploadId) {
+        assert isEnabled();
+        return uploads.put(new Key(blobKey, blobSize), new Upload(blobKey, uploadId, partSize, nanoTime.getAsLong()));
+    }
+
+    void onResumed(int partsSkipped) {
+        resumedUploads.increment();
+        skippedParts.add(partsSkipped);
+    }
+
+    /**
+     * Removes and returns every retained upload that outlived the time to live.
+     */
+    List<Upload> removeExpired() {
+        final long now = nanoTime.getAsLong();
+        final List<Upload> expired = new ArrayList<>();
+        for (Iterator<Upload> iterator = uploads.values().iterator(); iterator.hasNext(); ) {
+            final Upload upload = iterator.next();
+            if (isExpired(upload, now)) {
+                iterator.remove();
+                expired.add(upload);
+            }
+        }
+        expiredUploads.add(expired.size());
+        return expired;
+    }
+
+    /**
+     * Removes and returns every retained upload, used when the store is closed.
+     */
+    List<Upload> removeAll() {
+        final List<Upload> all = new ArrayList<>();
+        for (Iterator<Upload> iterator = uploads.values().iterator(); iterator.hasNext(); ) {
+            all.add(iterator.next());
+            iterator.remove();
+        }
+        return all;
+    }
+
+    private boolean isExpired(Upload upload, long nowNanos) {
+        return nowNanos - upload.retainedAtNanos >= ttlNanos;
+    }
+
+    void addStats(Map<String, Long> stats) {
+        stats.put("multipart.retained_uploads", (long) uploads.size());
+        stats.put("multipart.resumed_uploads", resumedUploads.sum());
+        stats.put("multipart.skipped_parts", skippedParts.sum());
+        stats.put("multipart.expired_uploads", expiredUploads.sum());
+    }
+
+    static final class Upload {
+        private final String blobKey;
+        private final String uploadId;
+        private final long partSize;
+        private final long retainedAtNanos;
+
+        Upload(String blobKey, String uploadId, long partSize, long retainedAtNanos) {
+            this.blobKey = blobKey;
+            this.uploadId = uploadId;
+            this.partSize = partSize;
+            this.retainedAtNanos = retainedAtNanos;
+        }
+
+        String blobKey() {
+            return blobKey;
+        }
+
+        String uploadId() {
+            return uploadId;
+        }
+
+        long partSize() {
+            return partSize;
+        }
+    }
+
+    private static final class Key {
+        private final String blobKey;
+        private final long blobSize;
+
+        Key(String blobKey, long blobSize) {
+            this.blobKey = blobKey;
+            this.blobSize = blobSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return blobSize == key.blobSize && blobKey.equals(key.blobKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(blobKey, blobSize);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.exception.CosServiceException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.Randomness;
+
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which failed COS requests are sent again, and how long to wait before. A failure is retried if it may be transient and
+ * sending the request again cannot do harm:
+ * <ul>
+ *     <li>requests COS rejected before acting on them (throttling, {@code 503}) or that never reached it are always retried;</li>
+ *     <li>network errors, server errors and request timeouts are only retried for idempotent operations, a
+ *     {@code CompleteMultipartUpload} that failed this way may well have completed the upload;</li>
+ *     <li>anything else, like missing objects or denied access, would fail the same way on every attempt.</li>
+ * </ul>
+ * Requests that stream a body are only sent again by callers that can rewind it, see {@link COSBlobStore#executeReplayable}.
+ * <p>
+ * This policy is the only place a failed request is sent again: the COS client itself does not retry (see {@link COSService}), and
+ * each logical request draws its retries, failovers to another endpoint and reopened downloads from a single {@link Budget}.
+ */
+final class COSRetryPolicy {
+
+    static final COSRetryPolicy NONE = new COSRetryPolicy(0);
+
+    static final long BASE_DELAY_MILLIS = 100L;
+
+    private final int maxRetries;
+    private final Map<COSBlobStore.Operation, LongAdder> retries = new EnumMap<>(COSBlobStore.Operation.class);
+
+    COSRetryPolicy(int maxRetries) {
+        this.maxRetries = maxRetries;
+        for (COSBlobStore.Operation operation : COSBlobStore.Operation.values()) {
+            retries.put(operation, new LongAdder());
+        }
+    }
+
+    /**
+     * How many times a failed request is sent again before its failure is passed on.
+     */
+    int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Returns the retries of a new logical request, which may be spent by several layers that send it again.
+     */
+    Budget newBudget() {
+        return new Budget(maxRetries);
+    }
+
+    /**
+     * Waits before the given retry of a failed request. If interrupted, the failure is rethrown with the interruption suppressed.
+     */
+    void onRetry(COSBlobStore.Operation operation, int retry, RuntimeException failure) {
+        retries.get(operation).increment();
+        backoff(retry, failure);
+    }
+
+    static boolean isRetryable(COSBlobStore.Operation operation, Exception e) {
+        if (isRejected(e)) {
+            return true;
+        }
+        if (operation.isIdempotent() == false) {
+            return false;
+        }
+        if (COSEndpoints.isEndpointFailure(e)) {
+            return true;
+        }
+        if (e instanceof CosServiceException) {
+            final String errorCode = ((CosServiceException) e).getErrorCode();
+            if ("RequestTimeout".equals(errorCode)) {
+                return true;
+            }
+            // the part was corrupted on the way, its Content-MD5 did not match
+            return operation == COSBlobStore.Operation.UPLOAD_PART && ("BadDigest".equals(errorCode) || "InvalidDigest".equals(errorCode));
+        }
+        return false;
+    }
+
+    /**
+     * Whether the request was turned away before COS acted on it, either because it was throttled or overloaded or because no
+     * connection could be established. Such requests are safe to send again whatever they do.
+     */
+    static boolean isRejected(Exception e) {
+        if (e instanceof CosServiceException) {
+            final int statusCode = ((CosServiceException) e).getStatusCode();
+            return statusCode == 429 || statusCode == 503;
+        }
+        return e instanceof CosClientException && ExceptionsHelper.unwrap(e, ConnectException.class, UnknownHostException.class) != null;
+    }
+
+    /**
+     * Sleeps for half to all of an exponentially growing window, starting at {@link #BASE_DELAY_MILLIS}.
+     */
+    static void backoff(int retry, RuntimeException failure) {
+        final long window = BASE_DELAY_MILLIS << Math.min(retry, 6);
+        try {
+            Thread.sleep(window / 2 + Randomness.get().nextLong(window / 2 + 1));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            failure.addSuppressed(ie);
+            throw failure;
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        for (Map.Entry<COSBlobStore.Operation, LongAdder> entry : retries.entrySet()) {
+            stats.put("retries." + entry.getKey().getKey(), entry.getValue().sum());
+        }
+    }
+
+    /**
+     * The retries left to one logical request. Hedged attempts of the same read may spend from it concurrently.
+     */
+    static final class Budget {
+
+        private final AtomicInteger remaining;
+
+        Budget(int retries) {
+            this.remaining = new AtomicInteger(retries);
+        }
+
+        /**
+         * Takes one retry from this budget, returns {@code false} if there is none left.
+         */
+        boolean tryConsume() {
+            return remaining.getAndUpdate(r -> Math.max(0, r - 1)) > 0;
+        }
+    }
+}
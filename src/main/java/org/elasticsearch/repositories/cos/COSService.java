@@ -16,26 +16,44 @@ import org.elasticsearch.repositories.RepositoryException;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 //TODO: 考虑是否需要继承closeable，处理连接池等问题
 public class COSService implements Closeable {
     private static final Logger logger = LogManager.getLogger(COSService.class);
 
-    private final COSClient client;
+    private final COSEndpoints endpoints;
     public static final ByteSizeValue MAX_SINGLE_FILE_SIZE = new ByteSizeValue(5, ByteSizeUnit.GB);
 
     COSService(RepositoryMetadata metaData) {
-        this.client = createClient(metaData);
+        this.endpoints = createEndpoints(metaData);
     }
 
-    private synchronized COSClient createClient(RepositoryMetadata metaData) {
+    /**
+     * Creates one client per configured endpoint, in order of preference. {@code end_points} takes precedence over the single
+     * {@code end_point}; if neither is set the default endpoint of the region is used.
+     */
+    private synchronized COSEndpoints createEndpoints(RepositoryMetadata metaData) {
+        List<String> endPoints = COSClientSettings.END_POINTS.get(metaData.settings());
+        if (endPoints.isEmpty()) {
+            endPoints = List.of(COSClientSettings.END_POINT.get(metaData.settings()));
+        }
+        List<COSEndpoints.Endpoint> clients = new ArrayList<>(endPoints.size());
+        for (String endPoint : endPoints) {
+            COSClient client = createClient(metaData, endPoint);
+            clients.add(new COSEndpoints.Endpoint(Strings.hasLength(endPoint) ? endPoint : "default", client));
+        }
+        return new COSEndpoints(clients, COSClientSettings.END_POINT_RETRY_INTERVAL.get(metaData.settings()), System::nanoTime);
+    }
+
+    private COSClient createClient(RepositoryMetadata metaData, String endPoint) {
         SecureString accessKeyId = COSClientSettings.ACCESS_KEY_ID.get(metaData.settings());
         SecureString accessKeySecret = COSClientSettings.ACCESS_KEY_SECRET.get(metaData.settings());
         String region = COSClientSettings.REGION.get(metaData.settings());
         if (!Strings.hasLength(region)) {
             throw new RepositoryException(metaData.name(), "No region defined for cos repository");
         }
-        String endPoint = COSClientSettings.END_POINT.get(metaData.settings());
 
         COSCredentials cred = new BasicCOSCredentials(accessKeyId.toString(), accessKeySecret.toString());
 
@@ -43,18 +61,30 @@ public class COSService implements Closeable {
         if (Strings.hasLength(endPoint)) {
             clientConfig.setEndPointSuffix(endPoint);
         }
+        // resolve every new pooled connection through the SDK's resolver, which shuffles the addresses of the endpoint so that
+        // connections are spread over all of its front-ends instead of sticking to the first address DNS returned
+        clientConfig.setUseDefaultDnsResolver(false);
+        clientConfig.setCosSigner(new COSCachingSigner(System::currentTimeMillis));
+        // failed requests are only sent again by COSRetryPolicy, retrying in the client as well would multiply its attempts
+        clientConfig.setMaxErrorRetry(0);
+        clientConfig.setMaxErrorRetryForCopyRequest(0);
+        clientConfig.setChangeEndpointRetry(false);
         COSClient client = new COSClient(cred, clientConfig);
 
         return client;
     }
 
     public COSClient getClient() {
-        return this.client;
+        return this.endpoints.select().client();
+    }
+
+    COSEndpoints getEndpoints() {
+        return this.endpoints;
     }
 
     @Override
     public void close() throws IOException {
-        this.client.shutdown();
+        this.endpoints.close();
     }
 
 }
@@ -0,0 +1,202 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.model.COSObjectInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Detects object downloads whose connection degraded so far that they would trickle along for hours rather than fail, so that
+ * {@link CosRetryingInputStream} can abort them and reopen the object at the current offset.
+ * <p>
+ * A download is stalled if a single read from the response did not return any bytes within the read timeout, or if it received less
+ * than the minimum throughput over a sliding window. Only the time spent blocked in reads counts, so a consumer that is slow to
+ * process the bytes it reads is never mistaken for a slow connection. Reads that block are caught by {@link #check()}, which must be
+ * run periodically; the throughput of reads that do return is checked by the reading thread itself.
+ */
+final class COSStallWatchdog {
+
+    private static final Logger logger = LogManager.getLogger(COSStallWatchdog.class);
+
+    static final COSStallWatchdog DISABLED = new COSStallWatchdog(TimeValue.ZERO, ByteSizeValue.ZERO, TimeValue.ZERO, System::nanoTime);
+
+    /**
+     * How often {@link #check()} should run.
+     */
+    static final TimeValue CHECK_INTERVAL = TimeValue.timeValueSeconds(1);
+
+    private final long readTimeoutNanos;
+    private final long minBytesPerSecond;
+    private final long halfWindowNanos;
+    private final LongSupplier nanoTime;
+
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder timedOutReads = new LongAdder();
+    private final LongAdder slowReads = new LongAdder();
+
+    /**
+     * @param readTimeout   the longest a single read may block without receiving any bytes, or {@code 0} for no limit
+     * @param minThroughput the lowest throughput per second over the window, or {@code 0} for no limit
+     * @param window        the time spent reading over which the throughput is measured
+     */
+    COSStallWatchdog(TimeValue readTimeout, ByteSizeValue minThroughput, TimeValue window, LongSupplier nanoTime) {
+        this.readTimeoutNanos = readTimeout.nanos();
+        this.minBytesPerSecond = minThroughput.getBytes();
+        this.halfWindowNanos = window.nanos() / 2;
+        this.nanoTime = nanoTime;
+    }
+
+    boolean isEnabled() {
+        return readTimeoutNanos > 0L || (minBytesPerSecond > 0L && halfWindowNanos > 0L);
+    }
+
+    /**
+     * Starts watching a download, or returns {@code null} if this watchdog is disabled.
+     */
+    Watch watch(String blobKey) {
+        if (isEnabled() == false) {
+            return null;
+        }
+        final Watch watch = new Watch(blobKey);
+        watches.add(watch);
+        return watch;
+    }
+
+    /**
+     * Aborts the response of every download whose current read is blocked for longer than the read timeout, or for so long that the
+     * throughput of its window dropped below the minimum.
+     */
+    void check() {
+        final long now = nanoTime.getAsLong();
+        for (Watch watch : watches) {
+            watch.checkBlockedRead(now);
+        }
+    }
+
+    void addStats(Map<String, Long> stats) {
+        if (isEnabled()) {
+            stats.put("stalled_reads.timed_out", timedOutReads.sum());
+            stats.put("stalled_reads.too_slow", slowReads.sum());
+        }
+    }
+
+    private boolean isTooSlow(long bytes, long nanos) {
+        return minBytesPerSecond > 0L && halfWindowNanos > 0L && nanos >= 2 * halfWindowNanos
+                && bytes < (double) minBytesPerSecond * nanos / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * The reads of a single download. The throughput window is split into two halves, the previous and the current, so that it slides
+     * by half its length at a time.
+     */
+    final class Watch {
+        private final String blobKey;
+
+        private COSObjectInputStream readingStream;
+        private long readStartedNanos;
+        private boolean aborted;
+
+        private long previousBytes;
+        private long previousNanos;
+        private long currentBytes;
+        private long currentNanos;
+
+        private Watch(String blobKey) {
+            this.blobKey = blobKey;
+        }
+
+        synchronized void onReadStarted(COSObjectInputStream stream) {
+            readingStream = stream;
+            readStartedNanos = nanoTime.getAsLong();
+            aborted = false;
+        }
+
+        /**
+         * Records a completed read.
+         *
+         * @return an exception to reopen the download with if it is too slow, or {@code null} if it should carry on
+         */
+        synchronized IOException onReadCompleted(int bytesRead) {
+            readingStream = null;
+            currentBytes += Math.max(bytesRead, 0);
+            currentNanos += nanoTime.getAsLong() - readStartedNanos;
+            if (currentNanos < halfWindowNanos) {
+                return null;
+            }
+            final long bytes = previousBytes + currentBytes;
+            final long nanos = previousNanos + currentNanos;
+            previousBytes = currentBytes;
+            previousNanos = currentNanos;
+            currentBytes = 0L;
+            currentNanos = 0L;
+            if (isTooSlow(bytes, nanos)) {
+                slowReads.increment();
+                reset();
+                return new IOException("download of [" + blobKey + "] stalled, received [" + ByteSizeValue.ofBytes(bytes) + "] in ["
+                        + TimeValue.timeValueNanos(nanos) + "] which is below the minimum throughput of ["
+                        + ByteSizeValue.ofBytes(minBytesPerSecond) + "/s]");
+            }
+            return null;
+        }
+
+        /**
+         * Records a failed read.
+         *
+         * @return the exception to reopen the download with or to fail it with
+         */
+        synchronized IOException onReadFailed(IOException e) {
+            readingStream = null;
+            if (aborted) {
+                reset();
+                return new IOException("download of [" + blobKey + "] stalled and was aborted", e);
+            }
+            return e;
+        }
+
+        private void checkBlockedRead(long now) {
+            final COSObjectInputStream stream;
+            synchronized (this) {
+                if (readingStream == null || aborted) {
+                    return;
+                }
+                final long blockedNanos = now - readStartedNanos;
+                if (readTimeoutNanos > 0L && blockedNanos >= readTimeoutNanos) {
+                    timedOutReads.increment();
+                } else if (isTooSlow(previousBytes + currentBytes, previousNanos + currentNanos + blockedNanos)) {
+                    slowReads.increment();
+                } else {
+                    return;
+                }
+                aborted = true;
+                stream = readingStream;
+            }
+            logger.debug("aborting stalled download of [{}]", blobKey);
+            try {
+                stream.abort();
+            } catch (Exception e) {
+                logger.debug("failed to abort stalled download", e);
+            }
+        }
+
+        private void reset() {
+            previousBytes = 0L;
+            previousNanos = 0L;
+            currentBytes = 0L;
+            currentNanos = 0L;
+        }
+
+        void close() {
+            watches.remove(this);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.elasticsearch.repositories.cos;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.RefCountingRunnable;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.blobstore.support.BlobMetadata;
+import org.elasticsearch.common.util.concurrent.ThrottledTaskRunner;
+import org.elasticsearch.core.Releasable;
+import org.elasticsearch.repositories.IndexId;
+import org.elasticsearch.repositories.RepositoryData;
+import org.elasticsearch.repositories.ShardGeneration;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Computes the storage a repository uses per index by listing the {@code indices/} tree of the bucket.
+ * <p>
+ * The listing is split into one task per index, which lists the blobs of the index itself and queues one task per shard, and the
+ * tasks run concurrently. Every listed blob is added to the counters of its index right away, so memory does not grow with the
+ * number of blobs. Blobs that the given {@link RepositoryData} does not reference are counted as stale, see
+ * {@link COSBlobReferences}.
+ */
+final class COSStorageAccounting implements ToXContentObject {
+
+    private static final Logger logger = LogManager.getLogger(COSStorageAccounting.class);
+
+    enum State {
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    private final COSBlobStore blobStore;
+    private final BlobPath indicesPath;
+    private final COSBlobReferences references;
+    private final ThrottledTaskRunner runner;
+    private final LongSupplier currentTimeMillis;
+    private final long startTimeMillis;
+
+    private final Map<String, Usage> usageByIndex = new ConcurrentHashMap<>();
+    private final Usage unreferencedIndices = new Usage();
+    private final LongAdder queuedTasks = new LongAdder();
+    private final LongAdder completedTasks = new LongAdder();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private volatile State state = State.RUNNING;
+    private volatile long endTimeMillis = -1L;
+
+    COSStorageAccounting(COSBlobStore blobStore, BlobPath basePath, RepositoryData repositoryData, int concurrency, Executor executor,
+                         LongSupplier currentTimeMillis) {
+        this.blobStore = blobStore;
+        this.indicesPath = basePath.add("indices");
+        this.references = new COSBlobReferences(repositoryData);
+        this.runner = new ThrottledTaskRunner("cos-storage-accounting", concurrency, executor);
+        this.currentTimeMillis = currentTimeMillis;
+        this.startTimeMillis = currentTimeMillis.getAsLong();
+    }
+
+    /**
+     * Starts listing, the progress and the result are available through {@link #toXContent} and {@link #state()}.
+     */
+    void start() {
+        try (RefCountingRunnable refs = new RefCountingRunnable(this::onCompletion)) {
+            enqueue(refs, () -> {
+                final COSBlobContainer container = (COSBlobContainer) blobStore.blobContainer(indicesPath);
+                container.forEachListed(OperationPurpose.SNAPSHOT_METADATA, false, blob -> {},
+                        indexId -> enqueue(refs, () -> listIndex(refs, indexId)));
+            });
+        }
+    }
+
+    State state() {
+        return state;
+    }
+
+    private void listIndex(RefCountingRunnable refs, String indexId) throws IOException {
+        final IndexId index = references.index(indexId);
+        final COSBlobContainer container = (COSBlobContainer) blobStore.blobContainer(indicesPath.add(indexId));
+        if (index == null) {
+            container.forEachListed(OperationPurpose.SNAPSHOT_METADATA, true, unreferencedIndices::addStale, shard -> {});
+            return;
+        }
+        final Usage usage = usageByIndex.computeIfAbsent(indexId, k -> new Usage());
+        container.forEachListed(OperationPurpose.SNAPSHOT_METADATA, false, usage::addMetadata,
+                shard -> enqueue(refs, () -> listShard(index, usage, shard)));
+    }
+
+    private void listShard(IndexId index, Usage usage, String shard) throws IOException {
+        final ShardGeneration current;
+        try {
+            current = references.currentGeneration(index, Integer.parseInt(shard));
+        } catch (NumberFormatException e) {
+            logger.debug("unexpected folder [{}] in index [{}], counting it as stale", shard, index);
+            ((COSBlobContainer) blobStore.blobContainer(indicesPath.add(index.getId()).add(shard)))
+                    .forEachListed(OperationPurpose.SNAPSHOT_METADATA, true, usage::addStale, child -> {});
+            return;
+        }
+        ((COSBlobContainer) blobStore.blobContainer(indicesPath.add(index.getId()).add(shard)))
+                .forEachListed(OperationPurpose.SNAPSHOT_METADATA, true, blob -> {
+                    if (references.isStaleShardBlob(blob.name(), current)) {
+                        usage.addStale(blob);
+                    } else if (blob.name().startsWith("__")) {
+                        usage.addData(blob);
+                    } else {
+                        usage.addMetadata(blob);
+                    }
+                }, child -> {});
+    }
+
+    @FunctionalInterface
+    private interface ListingTask {
+        void run() throws IOException;
+    }
+
+    private void enqueue(RefCountingRunnable refs, ListingTask task) {
+        queuedTasks.increment();
+        final Releasable ref = refs.acquire();
+        runner.enqueueTask(new ActionListener<>() {
+            @Override
+            public void onResponse(Releasable releasable) {
+                try (releasable; ref) {
+                    if (failure.get() == null) {
+                        task.run();
+                    }
+                } catch (Exception e) {
+                    recordFailure(e);
+                } finally {
+                    completedTasks.increment();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                try (ref) {
+                    recordFailure(e);
+                }
+            }
+        });
+    }
+
+    private void recordFailure(Exception e) {
+        if (failure.compareAndSet(null, e) == false) {
+            failure.get().addSuppressed(e);
+        }
+    }
+
+    private void onCompletion() {
+        endTimeMillis = currentTimeMillis.getAsLong();
+        if (failure.get() == null) {
+            state = State.COMPLETED;
+            logger.debug("storage accounting of [{}] completed in [{}ms]", indicesPath, endTimeMillis - startTimeMillis);
+        } else {
+            state = State.FAILED;
+            logger.warn(() -> "storage accounting of [" + indicesPath + "] failed", failure.get());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("state", state.name().toLowerCase(Locale.ROOT));
+        builder.field("repository_generation", references.repositoryData().getGenId());
+        builder.field("start_time_millis", startTimeMillis);
+        builder.field("elapsed_millis", (state == State.RUNNING ? currentTimeMillis.getAsLong() : endTimeMillis) - startTimeMillis);
+        if (failure.get() != null) {
+            builder.field("failure", failure.get().toString());
+        }
+        builder.startObject("progress");
+        builder.field("listing_tasks", queuedTasks.sum());
+        builder.field("completed_listing_tasks", completedTasks.sum());
+        builder.endObject();
+
+        final Usage total = new Usage();
+        builder.startObject("indices");
+        final Map<String, String> names = new TreeMap<>();
+        usageByIndex.keySet().forEach(id -> names.put(references.index(id).getName(), id));
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            final Usage usage = usageByIndex.get(entry.getValue());
+            builder.startObject(entry.getKey());
+            builder.field("id", entry.getValue());
+            usage.toXContent(builder);
+            builder.endObject();
+            total.add(usage);
+        }
+        builder.endObject();
+        builder.startObject("unreferenced_indices");
+        unreferencedIndices.toXContent(builder);
+        builder.endObject();
+        total.add(unreferencedIndices);
+        builder.startObject("total");
+        total.toXContent(builder);
+        builder.endObject();
+        return builder.endObject();
+    }
+
+    /**
+     * The number and size of the blobs of an index, by whether they hold shard data, metadata or are no longer referenced.
+     */
+    private static final class Usage {
+
+        private final LongAdder dataBlobs = new LongAdder();
+        private final LongAdder dataBytes = new LongAdder();
+        private final LongAdder metadataBlobs = new LongAdder();
+        private final LongAdder metadataBytes = new LongAdder();
+        private final LongAdder staleBlobs = new LongAdder();
+        private final LongAdder staleBytes = new LongAdder();
+
+        void addData(BlobMetadata blob) {
+            dataBlobs.increment();
+            dataBytes.add(blob.length());
+        }
+
+        void addMetadata(BlobMetadata blob) {
+            metadataBlobs.increment();
+            metadataBytes.add(blob.length());
+        }
+
+        void addStale(BlobMetadata blob) {
+            staleBlobs.increment();
+            staleBytes.add(blob.length());
+        }
+
+        void add(Usage other) {
+            dataBlobs.add(other.dataBlobs.sum());
+            dataBytes.add(other.dataBytes.sum());
+            metadataBlobs.add(other.metadataBlobs.sum());
+            metadataBytes.add(other.metadataBytes.sum());
+            staleBlobs.add(other.staleBlobs.sum());
+            staleBytes.add(other.staleBytes.sum());
+        }
+
+        void toXContent(XContentBuilder builder) throws IOException {
+            builder.field("objects", dataBlobs.sum() + metadataBlobs.sum() + staleBlobs.sum());
+            builder.field("bytes", dataBytes.sum() + metadataBytes.sum() + staleBytes.sum());
+            builder.field("data_objects", dataBlobs.sum());
+            builder.field("data_bytes", dataBytes.sum());
+            builder.field("metadata_objects", metadataBlobs.sum());
+            builder.field("metadata_bytes", metadataBytes.sum());
+            builder.field("stale_objects", staleBlobs.sum());
+            builder.field("stale_bytes", staleBytes.sum());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The bandwidth COS may spend on a single request that transfers blob content, per {@link OperationPurpose} and direction, sent as
+ * the {@code x-cos-traffic-limit} header so that COS throttles the transfer on its side. Uploads and downloads are capped separately
+ * since snapshots and restores both transfer {@link OperationPurpose#SNAPSHOT_DATA}. The limits follow the dynamic node settings
+ * {@link COSClientSettings#UPLOAD_TRAFFIC_LIMIT} and {@link COSClientSettings#DOWNLOAD_TRAFFIC_LIMIT}, a change applies to the requests
+ * sent after it.
+ */
+final class COSTrafficLimits {
+
+    static final COSTrafficLimits UNLIMITED = new COSTrafficLimits(Settings.EMPTY);
+
+    // the range of the header, in bits per second
+    static final long MIN_BITS_PER_SECOND = 819200L;
+    static final long MAX_BITS_PER_SECOND = 838860800L;
+
+    // bits per second by purpose ordinal, 0 for no limit
+    private volatile long[] uploads;
+    private volatile long[] downloads;
+
+    COSTrafficLimits(Settings settings) {
+        apply(settings);
+    }
+
+    /**
+     * Follows the updates of the limits.
+     */
+    void register(ClusterSettings clusterSettings) {
+        clusterSettings.addSettingsUpdateConsumer(this::apply,
+                List.of(COSClientSettings.UPLOAD_TRAFFIC_LIMIT, COSClientSettings.DOWNLOAD_TRAFFIC_LIMIT), COSTrafficLimits::validate);
+    }
+
+    /**
+     * Returns the limit of a request of the given purpose in bits per second, or {@code 0} if it is not limited.
+     */
+    int limit(OperationPurpose purpose, boolean upload) {
+        return (int) (upload ? uploads : downloads)[purpose.ordinal()];
+    }
+
+    private void apply(Settings settings) {
+        uploads = limits(COSClientSettings.UPLOAD_TRAFFIC_LIMIT.getAsMap(settings));
+        downloads = limits(COSClientSettings.DOWNLOAD_TRAFFIC_LIMIT.getAsMap(settings));
+    }
+
+    private static void validate(Settings settings) {
+        limits(COSClientSettings.UPLOAD_TRAFFIC_LIMIT.getAsMap(settings));
+        limits(COSClientSettings.DOWNLOAD_TRAFFIC_LIMIT.getAsMap(settings));
+    }
+
+    private static long[] limits(Map<String, ByteSizeValue> settings) {
+        final long[] limits = new long[OperationPurpose.values().length];
+        settings.forEach((purpose, limit) -> limits[purpose(purpose).ordinal()] = toBitsPerSecond(limit));
+        return limits;
+    }
+
+    static OperationPurpose purpose(String name) {
+        for (OperationPurpose purpose : OperationPurpose.values()) {
+            if (purpose.name().toLowerCase(Locale.ROOT).equals(name)) {
+                return purpose;
+            }
+        }
+        throw new IllegalArgumentException("unknown operation purpose [" + name + "] in traffic limit");
+    }
+
+    /**
+     * Converts a limit in bytes per second to the bits per second of the header, raising it to the smallest limit COS accepts.
+     */
+    static long toBitsPerSecond(ByteSizeValue limit) {
+        if (limit.getBytes() <= 0) {
+            return 0L;
+        }
+        return Math.min(MAX_BITS_PER_SECOND, Math.max(MIN_BITS_PER_SECOND, limit.getBytes() * Byte.SIZE));
+    }
+
+    /**
+     * Builds the limits of the node and registers them for updates.
+     */
+    static COSTrafficLimits create(Settings settings, ClusterSettings clusterSettings) {
+        final COSTrafficLimits limits = new COSTrafficLimits(settings);
+        limits.register(clusterSettings);
+        return limits;
+    }
+}
@@ -11,66 +11,139 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.util.ByteArray;
+import org.elasticsearch.common.util.PageCacheRecycler;
+import org.elasticsearch.core.Releasables;
+import org.elasticsearch.repositories.cos.COSBlobStore.Operation;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
+/**
+ * Reads a blob (or a range of it) from COS, transparently re-opening the underlying request at the current offset if reading from it
+ * fails.
+ * <p>
+ * Data is pulled from the response in page-sized bulk reads, either straight into the caller's array for large reads or into a
+ * single recycled {@link PageCacheRecycler#BYTE_PAGE_SIZE} page from which small and single-byte reads are served, so that neither
+ * the retry machinery nor the client's stream wrappers are involved for every byte and reading does not allocate.
+ * <p>
+ * Reads are watched by the store's {@link COSStallWatchdog}, and a response that stalls is aborted and reopened like one that failed.
+ */
 public class CosRetryingInputStream extends InputStream {
 
     private static final Logger logger = LogManager.getLogger(CosRetryingInputStream.class);
 
     static final int MAX_SUPPRESSED_EXCEPTIONS = 10;
 
+    private final OperationPurpose purpose;
     private final COSBlobStore blobStore;
     private final String blobKey;
     private final long start;
     private final long end;
-    private final int maxAttempts;
+    // shared by the requests that open and reopen the download, so that a read is never sent more often than the policy allows
+    private final COSRetryPolicy.Budget retryBudget;
     private final List<IOException> failures;
 
+    private final long startNanos;
+    // when the first response started to arrive
+    private long firstByteNanos;
+
+    private final ByteArray bufferPage;
+    private final byte[] buffer;
+    private int bufferPosition;
+    private int bufferLimit;
+
+    private final COSStallWatchdog.Watch watch;
+    private IOException pendingStall;
+
     private COSObjectInputStream currentStream;
+    private String currentRequestId;
     private long currentStreamLastOffset;
     private int attempt = 1;
     private long currentOffset;
     private boolean closed;
     private boolean eof;
 
-    CosRetryingInputStream(COSBlobStore blobStore, String blobKey) throws IOException {
-        this(blobStore, blobKey, 0, Long.MAX_VALUE - 1);
+    CosRetryingInputStream(OperationPurpose purpose, COSBlobStore blobStore, String blobKey) throws IOException {
+        this(purpose, blobStore, blobKey, 0, Long.MAX_VALUE - 1);
     }
 
     // both start and end are inclusive bounds, following the definition in GetObjectRequest.setRange
-    CosRetryingInputStream(COSBlobStore blobStore, String blobKey, long start, long end) throws IOException {
+    CosRetryingInputStream(OperationPurpose purpose, COSBlobStore blobStore, String blobKey, long start, long end) throws IOException {
         if (start < 0L) {
             throw new IllegalArgumentException("start must be non-negative");
         }
         if (end < start || end == Long.MAX_VALUE) {
             throw new IllegalArgumentException("end must be >= start and not Long.MAX_VALUE");
         }
+        this.purpose = purpose;
         this.blobStore = blobStore;
         this.blobKey = blobKey;
-        this.maxAttempts = 11;
+        this.retryBudget = blobStore.retryPolicy().newBudget();
         this.failures = new ArrayList<>(MAX_SUPPRESSED_EXCEPTIONS);
         this.start = start;
         this.end = end;
-        openStream();
+        this.startNanos = System.nanoTime();
+        final ByteArray page = blobStore.bigArrays().newByteArray(PageCacheRecycler.BYTE_PAGE_SIZE, false);
+        if (page.hasArray()) {
+            this.bufferPage = page;
+            this.buffer = page.array();
+        } else {
+            page.close();
+            this.bufferPage = null;
+            this.buffer = new byte[PageCacheRecycler.BYTE_PAGE_SIZE];
+        }
+        // the page and the watch exist before the response does, and are released if either the watch or the response cannot be
+        // created, so that nothing is left open
+        COSStallWatchdog.Watch stallWatch = null;
+        boolean success = false;
+        try {
+            stallWatch = blobStore.stallWatchdog().watch(blobKey);
+            this.watch = stallWatch;
+            openStream();
+            success = true;
+        } finally {
+            if (success == false) {
+                if (stallWatch != null) {
+                    stallWatch.close();
+                }
+                Releasables.close(bufferPage);
+            }
+        }
     }
 
     private void openStream() throws IOException {
         try {
-            final GetObjectRequest getObjectRequest = new GetObjectRequest(blobStore.bucket(), blobKey);
-            setRequestHeader(getObjectRequest);
-            if (currentOffset > 0 || start > 0 || end < Long.MAX_VALUE - 1) {
-                assert start + currentOffset <= end :
-                        "requesting beyond end, start = " + start + " offset=" + currentOffset + " end=" + end;
-                getObjectRequest.setRange(Math.addExact(start, currentOffset), end);
+            final long rangeStart = Math.addExact(start, currentOffset);
+            final boolean ranged = currentOffset > 0 || start > 0 || end < Long.MAX_VALUE - 1;
+            assert ranged == false || rangeStart <= end :
+                    "requesting beyond end, start = " + start + " offset=" + currentOffset + " end=" + end;
+            final long requestNanos = System.nanoTime();
+            final COSObject cosObject = blobStore.getObject(purpose, blobKey, retryBudget, () -> {
+                final GetObjectRequest getObjectRequest = new GetObjectRequest(blobStore.bucket(blobKey), blobKey);
+                setRequestHeader(getObjectRequest);
+                if (ranged) {
+                    getObjectRequest.setRange(rangeStart, end);
+                }
+                final int trafficLimit = blobStore.trafficLimit(purpose, false);
+                if (trafficLimit > 0) {
+                    getObjectRequest.setTrafficLimit(trafficLimit);
+                }
+                return getObjectRequest;
+            });
+            final long openedNanos = System.nanoTime();
+            blobStore.readLength().onFirstByte(openedNanos - requestNanos);
+            if (attempt == 1) {
+                firstByteNanos = openedNanos;
             }
-            final COSObject cosObject = SocketAccess.doPrivileged(() -> blobStore.client().getObject(getObjectRequest));
             this.currentStreamLastOffset = Math.addExact(Math.addExact(start, currentOffset), getStreamLength(cosObject));
             this.currentStream = cosObject.getObjectContent();
+            this.currentRequestId = COSRequestStats.requestId(cosObject);
         } catch (final CosClientException e) {
             if (e instanceof CosServiceException) {
                 if (404 == ((CosServiceException) e).getStatusCode()) {
@@ -95,27 +168,65 @@ public class CosRetryingInputStream extends InputStream {
     @Override
     public int read() throws IOException {
         ensureOpen();
-        while (true) {
-            try {
-                final int result = currentStream.read();
-                if (result == -1) {
-                    eof = true;
-                    return -1;
-                }
-                currentOffset += 1;
-                return result;
-            } catch (IOException e) {
-                reopenStreamOrFail(e);
-            }
+        if (bufferPosition == bufferLimit && fillBuffer() == -1) {
+            return -1;
         }
+        return buffer[bufferPosition++] & 0xFF;
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         ensureOpen();
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (bufferPosition == bufferLimit) {
+            if (len >= buffer.length) {
+                // no point in staging a read that is at least as large as the buffer, fill the caller's array directly
+                return readFromStream(b, off, len);
+            }
+            if (fillBuffer() == -1) {
+                return -1;
+            }
+        }
+        final int bytesRead = Math.min(len, bufferLimit - bufferPosition);
+        System.arraycopy(buffer, bufferPosition, b, off, bytesRead);
+        bufferPosition += bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public int available() {
+        return bufferLimit - bufferPosition;
+    }
+
+    private int fillBuffer() throws IOException {
+        assert bufferPosition == bufferLimit : "buffer still holds [" + (bufferLimit - bufferPosition) + "] bytes";
+        bufferPosition = 0;
+        bufferLimit = 0;
+        int bytesRead;
+        do {
+            bytesRead = readFromStream(buffer, 0, buffer.length);
+        } while (bytesRead == 0);
+        if (bytesRead > 0) {
+            bufferLimit = bytesRead;
+        }
+        return bytesRead;
+    }
+
+    private int readFromStream(byte[] b, int off, int len) throws IOException {
+        if (eof) {
+            return -1;
+        }
         while (true) {
             try {
-                final int bytesRead = currentStream.read(b, off, len);
+                if (pendingStall != null) {
+                    final IOException stall = pendingStall;
+                    pendingStall = null;
+                    throw stall;
+                }
+                final int bytesRead = readCurrentStream(b, off, len);
                 if (bytesRead == -1) {
                     eof = true;
                     return -1;
@@ -128,6 +239,26 @@ public class CosRetryingInputStream extends InputStream {
         }
     }
 
+    private int readCurrentStream(byte[] b, int off, int len) throws IOException {
+        if (watch == null) {
+            return currentStream.read(b, off, len);
+        }
+        watch.onReadStarted(currentStream);
+        final int bytesRead;
+        try {
+            bytesRead = currentStream.read(b, off, len);
+        } catch (IOException e) {
+            throw watch.onReadFailed(e);
+        }
+        if (bytesRead != -1) {
+            // the bytes are handed out, the stream is reopened on the next read
+            pendingStall = watch.onReadCompleted(bytesRead);
+        } else {
+            watch.onReadCompleted(0);
+        }
+        return bytesRead;
+    }
+
     private void ensureOpen() {
         if (closed) {
             assert false : "using CosRetryingInputStream after close";
@@ -136,13 +267,13 @@ public class CosRetryingInputStream extends InputStream {
     }
 
     private void reopenStreamOrFail(IOException e) throws IOException {
-        if (attempt >= maxAttempts) {
-            logger.debug(new ParameterizedMessage("failed reading [{}/{}] at offset [{}], attempt [{}] of [{}], giving up",
-                    blobStore.bucket(), blobKey, start + currentOffset, attempt, maxAttempts), e);
+        if (retryBudget.tryConsume() == false) {
+            logger.debug(new ParameterizedMessage("failed reading [{}/{}] at offset [{}], attempt [{}], no retries left, giving up",
+                    blobStore.bucket(blobKey), blobKey, start + currentOffset, attempt), e);
             throw e;
         }
-        logger.debug(new ParameterizedMessage("failed reading [{}/{}] at offset [{}], attempt [{}] of [{}], retrying",
-                blobStore.bucket(), blobKey, start + currentOffset, attempt, maxAttempts), e);
+        logger.debug(new ParameterizedMessage("failed reading [{}/{}] at offset [{}], attempt [{}], retrying",
+                blobStore.bucket(blobKey), blobKey, start + currentOffset, attempt), e);
         attempt += 1;
         if (failures.size() < MAX_SUPPRESSED_EXCEPTIONS) {
             failures.add(e);
@@ -154,11 +285,25 @@ public class CosRetryingInputStream extends InputStream {
 
     @Override
     public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        blobStore.scheduler().onTransfer(Operation.GET_OBJECT, purpose, currentOffset);
+        if (attempt == 1 && isEof()) {
+            // a download that was read in one go tells the throughput of the link
+            blobStore.readLength().onTransfer(currentOffset, System.nanoTime() - firstByteNanos);
+        }
         maybeAbort(currentStream);
         try {
             currentStream.close();
         } finally {
             closed = true;
+            if (watch != null) {
+                watch.close();
+            }
+            Releasables.close(bufferPage);
+            blobStore.requestStats().logIfSlow(Operation.GET_OBJECT, purpose, blobKey, currentOffset, currentRequestId,
+                    System.nanoTime() - startNanos);
         }
     }
 
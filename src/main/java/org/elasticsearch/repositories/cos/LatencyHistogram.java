@@ -0,0 +1,100 @@
+package org.elasticsearch.repositories.cos;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, log-linear latency histogram in the spirit of HdrHistogram. Every power of two is split into
+ * {@link #SUB_BUCKET_COUNT} linear sub-buckets, so a recorded value is reported with a relative error of at most 1/8.
+ * Recording only touches atomics and never locks or allocates, so it is cheap enough to sit on every COS request.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values at or above 2^40 (about 12 days in microseconds) are clamped into the last bucket.
+     */
+    private static final int MAX_EXPONENT = 40;
+    static final long MAX_TRACKABLE_VALUE = (1L << MAX_EXPONENT) - 1;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalSum = new LongAdder();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    void record(long value) {
+        final long clamped = Math.min(Math.max(value, 0L), MAX_TRACKABLE_VALUE);
+        counts.incrementAndGet(bucketIndex(clamped));
+        totalCount.increment();
+        totalSum.add(clamped);
+        if (clamped > maxValue.get()) {
+            maxValue.accumulateAndGet(clamped, Math::max);
+        }
+    }
+
+    long count() {
+        return totalCount.sum();
+    }
+
+    long sum() {
+        return totalSum.sum();
+    }
+
+    long max() {
+        return maxValue.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, or 0 if nothing was recorded yet. Concurrent recordings
+     * may or may not be reflected in the result.
+     *
+     * @param percentile a percentile in the range [0, 100]
+     */
+    long percentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("percentile must be in [0, 100] but was [" + percentile + "]");
+        }
+        long total = 0;
+        final long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max());
+            }
+        }
+        return max();
+    }
+
+    // package-private for testing
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+    }
+
+    // package-private for testing
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long mantissa = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,39 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestUtils;
+import org.elasticsearch.rest.action.RestToXContentListener;
+
+import java.util.List;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Deletes the unreferenced blobs of a COS repository that a bucket inventory lists, see {@link COSInventoryCleanup}. The cleanup
+ * runs on the master node, see {@link TransportCOSInventoryCleanupAction}.
+ */
+public class RestCOSInventoryCleanupAction extends BaseRestHandler {
+
+    static final TimeValue DEFAULT_MIN_AGE = TimeValue.timeValueDays(1);
+
+    @Override
+    public String getName() {
+        return "cos_inventory_cleanup_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(POST, "/_cos/{repository}/inventory_cleanup"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        final TransportCOSInventoryCleanupAction.Request cleanupRequest = new TransportCOSInventoryCleanupAction.Request(
+                RestUtils.getMasterNodeTimeout(request), request.param("repository"), request.param("manifest"),
+                request.paramAsTime("min_age", DEFAULT_MIN_AGE), request.paramAsBoolean("dry_run", false));
+        return channel -> client.execute(TransportCOSInventoryCleanupAction.TYPE, cleanupRequest, new RestToXContentListener<>(channel));
+    }
+}
@@ -0,0 +1,58 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.repositories.Repository;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Reports the request latencies and the statistics of the components of a COS repository on the node that handles the request, see
+ * {@link COSBlobStore#detailedStats()}. They are kept out of the repositories metering API, which only expects request counts.
+ */
+public class RestCOSStatsAction extends BaseRestHandler {
+
+    private final Supplier<RepositoriesService> repositoriesService;
+
+    RestCOSStatsAction(Supplier<RepositoriesService> repositoriesService) {
+        this.repositoriesService = repositoriesService;
+    }
+
+    @Override
+    public String getName() {
+        return "cos_stats_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_cos/{repository}/stats"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        final String name = request.param("repository");
+        final Repository repository = repositoriesService.get().repository(name);
+        if (repository instanceof COSRepository == false) {
+            throw new IllegalArgumentException("repository [" + name + "] is not a [" + COSRepository.TYPE + "] repository");
+        }
+        final Map<String, Long> stats = new TreeMap<>(((COSRepository) repository).detailedStats());
+        return channel -> {
+            final XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("repository", name);
+            builder.field("stats", stats);
+            builder.endObject();
+            channel.sendResponse(new RestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,62 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.repositories.Repository;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Starts ({@code POST}) or reports the progress and the result ({@code GET}) of the storage accounting of a COS repository, see
+ * {@link COSStorageAccounting}.
+ */
+public class RestCOSStorageAccountingAction extends BaseRestHandler {
+
+    static final int DEFAULT_CONCURRENCY = 10;
+
+    private final Supplier<RepositoriesService> repositoriesService;
+
+    RestCOSStorageAccountingAction(Supplier<RepositoriesService> repositoriesService) {
+        this.repositoriesService = repositoriesService;
+    }
+
+    @Override
+    public String getName() {
+        return "cos_storage_accounting_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_cos/{repository}/storage"), new Route(POST, "/_cos/{repository}/storage"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        final String name = request.param("repository");
+        final Repository repository = repositoriesService.get().repository(name);
+        if (repository instanceof COSRepository == false) {
+            throw new IllegalArgumentException("repository [" + name + "] is not a [" + COSRepository.TYPE + "] repository");
+        }
+        final COSRepository cosRepository = (COSRepository) repository;
+        if (request.method() == POST) {
+            final int concurrency = request.paramAsInt("concurrency", DEFAULT_CONCURRENCY);
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("concurrency must be at least 1 but was [" + concurrency + "]");
+            }
+            return channel -> cosRepository.startStorageAccounting(concurrency, new RestToXContentListener<>(channel));
+        }
+        final COSStorageAccounting accounting = cosRepository.storageAccounting();
+        if (accounting == null) {
+            throw new ResourceNotFoundException("no storage accounting was started for repository [" + name + "]");
+        }
+        return channel -> new RestToXContentListener<COSStorageAccounting>(channel).onResponse(accounting);
+    }
+}
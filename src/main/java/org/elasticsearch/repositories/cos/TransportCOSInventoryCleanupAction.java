@@ -0,0 +1,301 @@
+package org.elasticsearch.repositories.cos;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.master.MasterNodeRequest;
+import org.elasticsearch.action.support.master.TransportMasterNodeAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateUpdateTask;
+import org.elasticsearch.cluster.RepositoryCleanupInProgress;
+import org.elasticsearch.cluster.SnapshotDeletionsInProgress;
+import org.elasticsearch.cluster.SnapshotsInProgress;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.RepositoriesMetadata;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.core.Nullable;
+import org.elasticsearch.core.SuppressForbidden;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.repositories.Repository;
+import org.elasticsearch.repositories.RepositoryData;
+import org.elasticsearch.snapshots.SnapshotsService;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Runs a {@link COSInventoryCleanup} on the master node. Like the built-in repository cleanup, a cleanup that deletes blobs is
+ * registered as a {@link RepositoryCleanupInProgress} entry while it runs, so that no snapshot, snapshot deletion or other cleanup
+ * starts on any node until it is done, and it only starts if none of them is running and the repository did not move on from the
+ * repository data it cleans up against. Should the master fail over in the meantime, the new master drops the entry as it does for
+ * the built-in cleanup. Dry runs delete nothing and are not registered.
+ */
+public final class TransportCOSInventoryCleanupAction
+        extends TransportMasterNodeAction<TransportCOSInventoryCleanupAction.Request, TransportCOSInventoryCleanupAction.Response> {
+
+    public static final ActionType<Response> TYPE = new ActionType<>("cluster:admin/repository/cos/inventory_cleanup");
+
+    private static final Logger logger = LogManager.getLogger(TransportCOSInventoryCleanupAction.class);
+
+    private final RepositoriesService repositoriesService;
+
+    @Inject
+    public TransportCOSInventoryCleanupAction(TransportService transportService, ClusterService clusterService,
+                                              RepositoriesService repositoriesService, ThreadPool threadPool, ActionFilters actionFilters,
+                                              IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(TYPE.name(), transportService, clusterService, threadPool, actionFilters, Request::new, indexNameExpressionResolver,
+                Response::new, EsExecutors.DIRECT_EXECUTOR_SERVICE);
+        this.repositoriesService = repositoriesService;
+    }
+
+    @Override
+    protected ClusterBlockException checkBlock(Request request, ClusterState state) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.METADATA_WRITE);
+    }
+
+    @Override
+    protected void masterOperation(Task task, Request request, ClusterState state, ActionListener<Response> listener) {
+        final Repository repository = repositoriesService.repository(request.repository());
+        if (repository instanceof COSRepository == false) {
+            listener.onFailure(new IllegalArgumentException("repository [" + request.repository() + "] is not a [" + COSRepository.TYPE
+                    + "] repository"));
+            return;
+        }
+        final COSRepository cosRepository = (COSRepository) repository;
+        final String manifest;
+        try {
+            manifest = cosRepository.inventoryManifest(request.manifest(), request.dryRun());
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        final Executor executor = threadPool.executor(ThreadPool.Names.SNAPSHOT);
+        cosRepository.getRepositoryData(executor, listener.delegateFailureAndWrap((l, repositoryData) -> {
+            if (request.dryRun()) {
+                executor.execute(ActionRunnable.supply(l, () -> new Response(
+                        cosRepository.cleanupFromInventory(repositoryData, manifest, request.minAge(), true))));
+            } else {
+                startCleanup(cosRepository, repositoryData, manifest, request.minAge(), l);
+            }
+        }));
+    }
+
+    private void startCleanup(COSRepository repository, RepositoryData repositoryData, String manifest, TimeValue minAge,
+                              ActionListener<Response> listener) {
+        final String repositoryName = repository.getMetadata().name();
+        final long repositoryStateId = repositoryData.getGenId();
+        submitUnbatchedTask("start cos inventory cleanup [" + repositoryName + "][" + repositoryStateId + "]",
+                new ClusterStateUpdateTask() {
+                    @Override
+                    public ClusterState execute(ClusterState currentState) {
+                        return registerCleanup(currentState, repositoryName, repositoryStateId);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        listener.onFailure(e);
+                    }
+
+                    @Override
+                    public void clusterStateProcessed(ClusterState oldState, ClusterState newState) {
+                        logger.info("running inventory cleanup on repository [{}][{}]", repositoryName, repositoryStateId);
+                        threadPool.executor(ThreadPool.Names.SNAPSHOT).execute(ActionRunnable.supply(
+                                ActionListener.wrap(response -> finishCleanup(repositoryName, response, null, listener),
+                                        e -> finishCleanup(repositoryName, null, e, listener)),
+                                () -> new Response(repository.cleanupFromInventory(repositoryData, manifest, minAge, false))));
+                    }
+                });
+    }
+
+    private void finishCleanup(String repositoryName, @Nullable Response response, @Nullable Exception failure,
+                               ActionListener<Response> listener) {
+        assert response != null || failure != null;
+        submitUnbatchedTask("finish cos inventory cleanup [" + repositoryName + "]", new ClusterStateUpdateTask() {
+            @Override
+            public ClusterState execute(ClusterState currentState) {
+                return removeCleanup(currentState, repositoryName);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                logger.warn(() -> "failed to remove the inventory cleanup of repository [" + repositoryName + "] from the cluster state",
+                        e);
+                listener.onFailure(e);
+            }
+
+            @Override
+            public void clusterStateProcessed(ClusterState oldState, ClusterState newState) {
+                if (failure == null) {
+                    logger.info("inventory cleanup on repository [{}] done: {}", repositoryName, response.result());
+                    listener.onResponse(response);
+                } else {
+                    logger.warn(() -> "inventory cleanup on repository [" + repositoryName + "] failed", failure);
+                    listener.onFailure(failure);
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers a cleanup of the given repository at the given generation, failing if any snapshot operation runs or if the repository
+     * was written since.
+     */
+    static ClusterState registerCleanup(ClusterState currentState, String repositoryName, long repositoryStateId) {
+        SnapshotsService.ensureRepositoryExists(repositoryName, currentState);
+        final RepositoryCleanupInProgress cleanups = RepositoryCleanupInProgress.get(currentState);
+        if (cleanups.hasCleanupInProgress()) {
+            throw new IllegalStateException("cannot clean up [" + repositoryName + "], a repository cleanup is already in progress in ["
+                    + cleanups + "]");
+        }
+        if (SnapshotDeletionsInProgress.get(currentState).hasDeletionsInProgress()) {
+            throw new IllegalStateException("cannot clean up [" + repositoryName + "] while snapshots are being deleted");
+        }
+        if (SnapshotsInProgress.get(currentState).isEmpty() == false) {
+            throw new IllegalStateException("cannot clean up [" + repositoryName + "] while snapshots are running");
+        }
+        final long generation = RepositoriesMetadata.get(currentState).repository(repositoryName).generation();
+        if (generation != repositoryStateId) {
+            throw new IllegalStateException("cannot clean up [" + repositoryName + "] against repository generation [" + repositoryStateId
+                    + "], the repository moved on to generation [" + generation + "]");
+        }
+        return ClusterState.builder(currentState)
+                .putCustom(RepositoryCleanupInProgress.TYPE, new RepositoryCleanupInProgress(
+                        List.of(RepositoryCleanupInProgress.startedEntry(repositoryName, repositoryStateId))))
+                .build();
+    }
+
+    /**
+     * Removes the cleanup of the given repository, if the cluster state still has it.
+     */
+    static ClusterState removeCleanup(ClusterState currentState, String repositoryName) {
+        final List<RepositoryCleanupInProgress.Entry> entries = RepositoryCleanupInProgress.get(currentState).entries();
+        final List<RepositoryCleanupInProgress.Entry> remaining = entries.stream()
+                .filter(entry -> entry.repository().equals(repositoryName) == false)
+                .toList();
+        if (remaining.size() == entries.size()) {
+            return currentState;
+        }
+        return ClusterState.builder(currentState)
+                .putCustom(RepositoryCleanupInProgress.TYPE, new RepositoryCleanupInProgress(remaining))
+                .build();
+    }
+
+    @SuppressForbidden(reason = "legacy usage of unbatched task, like the built-in repository cleanup")
+    private void submitUnbatchedTask(String source, ClusterStateUpdateTask task) {
+        clusterService.submitUnbatchedStateUpdateTask(source, task);
+    }
+
+    public static final class Request extends MasterNodeRequest<Request> {
+
+        private final String repository;
+        @Nullable
+        private final String manifest;
+        private final TimeValue minAge;
+        private final boolean dryRun;
+
+        public Request(TimeValue masterNodeTimeout, String repository, @Nullable String manifest, TimeValue minAge, boolean dryRun) {
+            super(masterNodeTimeout);
+            this.repository = repository;
+            this.manifest = manifest;
+            this.minAge = minAge;
+            this.dryRun = dryRun;
+        }
+
+        Request(StreamInput in) throws IOException {
+            super(in);
+            this.repository = in.readString();
+            this.manifest = in.readOptionalString();
+            this.minAge = in.readTimeValue();
+            this.dryRun = in.readBoolean();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(repository);
+            out.writeOptionalString(manifest);
+            out.writeTimeValue(minAge);
+            out.writeBoolean(dryRun);
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (Strings.hasText(repository) == false) {
+                validationException = addValidationError("repository is missing", validationException);
+            }
+            if (minAge.millis() < 0L) {
+                validationException = addValidationError("min_age must not be negative", validationException);
+            }
+            return validationException;
+        }
+
+        String repository() {
+            return repository;
+        }
+
+        @Nullable
+        String manifest() {
+            return manifest;
+        }
+
+        TimeValue minAge() {
+            return minAge;
+        }
+
+        boolean dryRun() {
+            return dryRun;
+        }
+    }
+
+    public static final class Response extends ActionResponse implements ToXContentObject {
+
+        private final COSInventoryCleanup.Result result;
+
+        Response(COSInventoryCleanup.Result result) {
+            this.result = result;
+        }
+
+        Response(StreamInput in) throws IOException {
+            this.result = new COSInventoryCleanup.Result(in);
+        }
+
+        COSInventoryCleanup.Result result() {
+            return result;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            result.writeTo(out);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            return result.toXContent(builder, params);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.exception.CosServiceException;
+import org.elasticsearch.repositories.cos.COSRequestScheduler.RequestClass;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CosAdaptiveConcurrencyTests extends ESTestCase {
+
+    private final AtomicLong nanoTime = new AtomicLong(randomLong());
+    private final COSAdaptiveConcurrency concurrency = new COSAdaptiveConcurrency(2, 64, nanoTime::get);
+
+    public void testLimitGrowsWhileGoodputDoes() {
+        round(1000L, true);
+        assertEquals(4, concurrency.limit(RequestClass.BULK));
+        round(1000L, true);
+        assertEquals(8, concurrency.limit(RequestClass.BULK));
+
+        // twice the requests at a time move no more bytes, so that raise is taken back and the limit probes one by one
+        round(500L, true);
+        assertEquals(4, concurrency.limit(RequestClass.BULK));
+        round(1000L, true);
+        assertEquals(5, concurrency.limit(RequestClass.BULK));
+
+        // a round that did not use up the limit says nothing about a higher one
+        round(1000L, false);
+        assertEquals(5, concurrency.limit(RequestClass.BULK));
+
+        final Map<String, Long> stats = stats();
+        assertEquals(Long.valueOf(5L), stats.get("adaptive_concurrency.bulk.limit"));
+        assertEquals(Long.valueOf(3L), stats.get("adaptive_concurrency.bulk.raises"));
+        assertEquals(Long.valueOf(1L), stats.get("adaptive_concurrency.bulk.taken_back"));
+        assertEquals(Long.valueOf(2L), stats.get("adaptive_concurrency.reads.limit"));
+        assertEquals(Integer.MAX_VALUE, concurrency.limit(RequestClass.METADATA));
+    }
+
+    public void testThrottlingCutsTheLimitOncePerRound() {
+        round(1000L, true);
+        round(1000L, true);
+        assertEquals(8, concurrency.limit(RequestClass.BULK));
+
+        assertFalse(concurrency.onCompleted(RequestClass.BULK, 0L, serviceException(503, "SlowDown"), true));
+        assertEquals(5, concurrency.limit(RequestClass.BULK));
+        concurrency.onCompleted(RequestClass.BULK, 0L, serviceException(429, "TooManyRequests"), true);
+        assertEquals(5, concurrency.limit(RequestClass.BULK));
+
+        nanoTime.addAndGet(COSAdaptiveConcurrency.ROUND_NANOS);
+        concurrency.onCompleted(RequestClass.BULK, 0L, serviceException(503, "SlowDown"), true);
+        assertEquals(3, concurrency.limit(RequestClass.BULK));
+
+        // server errors only count once a round is over
+        nanoTime.addAndGet(COSAdaptiveConcurrency.ROUND_NANOS);
+        for (int i = 0; i < 3; i++) {
+            concurrency.onCompleted(RequestClass.BULK, 0L, serviceException(500, "InternalError"), true);
+        }
+        assertEquals(2, concurrency.limit(RequestClass.BULK));
+
+        final Map<String, Long> stats = stats();
+        assertEquals(Long.valueOf(3L), stats.get("adaptive_concurrency.bulk.throttled"));
+        assertEquals(Long.valueOf(2L), stats.get("adaptive_concurrency.bulk.cuts_throttled"));
+        assertEquals(Long.valueOf(1L), stats.get("adaptive_concurrency.bulk.cuts_failing"));
+    }
+
+    /**
+     * Completes a round of bulk requests that each sent the given bytes.
+     */
+    private void round(long bytes, boolean saturated) {
+        nanoTime.addAndGet(COSAdaptiveConcurrency.ROUND_NANOS);
+        final int limit = concurrency.limit(RequestClass.BULK);
+        for (int i = 0; i < limit; i++) {
+            concurrency.onCompleted(RequestClass.BULK, bytes, null, saturated);
+        }
+    }
+
+    private Map<String, Long> stats() {
+        final Map<String, Long> stats = new HashMap<>();
+        concurrency.addStats(stats);
+        return stats;
+    }
+
+    private static CosServiceException serviceException(int statusCode, String errorCode) {
+        final CosServiceException e = new CosServiceException("failure");
+        e.setStatusCode(statusCode);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+}
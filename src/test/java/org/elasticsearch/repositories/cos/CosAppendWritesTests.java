@@ -0,0 +1,150 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.exception.CosServiceException;
+import com.qcloud.cos.model.AppendObjectRequest;
+import com.qcloud.cos.model.AppendObjectResult;
+import com.qcloud.cos.model.CopyObjectRequest;
+import com.qcloud.cos.model.CopyObjectResult;
+import com.qcloud.cos.model.DeleteObjectsRequest;
+import com.qcloud.cos.model.InitiateMultipartUploadRequest;
+import com.qcloud.cos.model.PutObjectRequest;
+import com.qcloud.cos.model.PutObjectResult;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CosAppendWritesTests extends ESTestCase {
+
+    private static final int APPEND_BUFFER_SIZE = 1024;
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Set<String> appendable = ConcurrentHashMap.newKeySet();
+    private final COSClient client = mockClient();
+    private final COSBlobStore blobStore = blobStore();
+    private final BlobContainer container = blobStore.blobContainer(BlobPath.EMPTY.add("base"));
+
+    public void testWritesAreAppendedToATemporaryKeyAndCopied() throws Exception {
+        objects.put("base/index-1", new byte[1]);
+        final byte[] content = randomByteArrayOfLength(between(APPEND_BUFFER_SIZE + 1, 10 * APPEND_BUFFER_SIZE));
+        container.writeMetadataBlob(OperationPurpose.SNAPSHOT_METADATA, "index-1", false, randomBoolean(), out -> {
+            write(out, content);
+            // nothing shows up under the key of the blob before it is complete
+            assertArrayEquals(new byte[1], objects.get("base/index-1"));
+        });
+
+        assertArrayEquals(content, objects.get("base/index-1"));
+        verify(client, times((content.length + APPEND_BUFFER_SIZE - 1) / APPEND_BUFFER_SIZE)).appendObject(any(AppendObjectRequest.class));
+        verify(client, times(1)).copyObject(any(CopyObjectRequest.class));
+        verify(client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+
+        // the temporary key is deleted in a batch later on
+        verify(client, never()).deleteObjects(any(DeleteObjectsRequest.class));
+        assertEquals(2, objects.size());
+        blobStore.close();
+        assertEquals(Set.of("base/index-1"), objects.keySet());
+    }
+
+    public void testSmallBlobsAreWrittenWithASingleRequest() throws Exception {
+        final byte[] content = randomByteArrayOfLength(between(0, APPEND_BUFFER_SIZE));
+        container.writeMetadataBlob(OperationPurpose.SNAPSHOT_METADATA, "index-1", false, randomBoolean(), out -> write(out, content));
+
+        assertArrayEquals(content, objects.get("base/index-1"));
+        verify(client, times(1)).putObject(any(PutObjectRequest.class));
+        verify(client, never()).appendObject(any(AppendObjectRequest.class));
+    }
+
+    public void testFailedWritesLeaveTheExistingBlobIntact() {
+        objects.put("base/index-1", new byte[1]);
+        final byte[] content = randomByteArrayOfLength(between(APPEND_BUFFER_SIZE + 1, 10 * APPEND_BUFFER_SIZE));
+        expectThrows(IllegalStateException.class, () -> container.writeMetadataBlob(OperationPurpose.SNAPSHOT_METADATA, "index-1",
+                false, randomBoolean(), out -> {
+                    write(out, content);
+                    throw new IllegalStateException("failed");
+                }));
+        assertEquals(Set.of("base/index-1"), objects.keySet());
+        assertArrayEquals(new byte[1], objects.get("base/index-1"));
+    }
+
+    /**
+     * Writes the content in small chunks, like the writers of metadata blobs do.
+     */
+    private static void write(OutputStream out, byte[] content) throws IOException {
+        for (int offset = 0; offset < content.length; offset += 128) {
+            out.write(content, offset, Math.min(128, content.length - offset));
+        }
+    }
+
+    private COSClient mockClient() {
+        final COSClient client = mock(COSClient.class);
+        when(client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            final PutObjectRequest request = invocation.getArgument(0);
+            objects.put(request.getKey(), request.getInputStream().readAllBytes());
+            appendable.remove(request.getKey());
+            return new PutObjectResult();
+        });
+        when(client.appendObject(any(AppendObjectRequest.class))).thenAnswer(invocation -> {
+            final AppendObjectRequest request = invocation.getArgument(0);
+            final byte[] existing = objects.getOrDefault(request.getKey(), new byte[0]);
+            if (objects.containsKey(request.getKey()) && appendable.contains(request.getKey()) == false) {
+                throw conflict("ObjectNotAppendable");
+            }
+            if (request.getPosition() != existing.length) {
+                throw conflict("PositionNotEqualToLength");
+            }
+            final byte[] appended = request.getInputStream().readAllBytes();
+            final byte[] content = Arrays.copyOf(existing, existing.length + appended.length);
+            System.arraycopy(appended, 0, content, existing.length, appended.length);
+            objects.put(request.getKey(), content);
+            appendable.add(request.getKey());
+            final AppendObjectResult result = new AppendObjectResult();
+            result.setNextAppendPosition((long) content.length);
+            return result;
+        });
+        when(client.copyObject(any(CopyObjectRequest.class))).thenAnswer(invocation -> {
+            final CopyObjectRequest request = invocation.getArgument(0);
+            objects.put(request.getDestinationKey(), objects.get(request.getSourceKey()).clone());
+            return new CopyObjectResult();
+        });
+        when(client.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+            final DeleteObjectsRequest request = invocation.getArgument(0);
+            request.getKeys().forEach(key -> {
+                objects.remove(key.getKey());
+                appendable.remove(key.getKey());
+            });
+            return null;
+        });
+        return client;
+    }
+
+    private static CosServiceException conflict(String errorCode) {
+        final CosServiceException e = new CosServiceException("conflict");
+        e.setStatusCode(409);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+
+    private COSBlobStore blobStore() {
+        return CosBlobStoreTestHelper.blobStore(client)
+                .appendWrites(new COSAppendWrites(new ByteSizeValue(APPEND_BUFFER_SIZE, ByteSizeUnit.BYTES),
+                        BlobPath.EMPTY.add("base").add(COSAppendWrites.FOLDER_NAME)))
+                .build();
+    }
+}
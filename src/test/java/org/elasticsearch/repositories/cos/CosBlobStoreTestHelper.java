@@ -0,0 +1,35 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.core.TimeValue;
+
+import java.util.List;
+
+/**
+ * Creates the blob stores the tests run against, so that each test only sets the components it exercises.
+ */
+final class CosBlobStoreTestHelper {
+
+    static final String BUCKET = "bucket";
+
+    private CosBlobStoreTestHelper() {
+    }
+
+    /**
+     * Returns a builder for a store of {@link #BUCKET} with 5mb buffers that sends all requests to the given client.
+     */
+    static COSBlobStore.Builder blobStore(COSClient client) {
+        return blobStore(endpoints(client));
+    }
+
+    static COSEndpoints endpoints(COSClient client) {
+        return new COSEndpoints(List.of(new COSEndpoints.Endpoint("default", client)), TimeValue.ZERO, System::nanoTime);
+    }
+
+    static COSBlobStore.Builder blobStore(COSEndpoints endpoints) {
+        return COSBlobStore.builder(endpoints, BUCKET, new ByteSizeValue(5, ByteSizeUnit.MB), BigArrays.NON_RECYCLING_INSTANCE);
+    }
+}
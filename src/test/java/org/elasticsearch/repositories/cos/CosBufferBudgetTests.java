@@ -0,0 +1,68 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CosBufferBudgetTests extends ESTestCase {
+
+    public void testReservationsShrinkBeforeTheyWait() throws Exception {
+        final COSBufferBudget budget = new COSBufferBudget(100L, null);
+        final COSBufferBudget.Reservation first = budget.reserve(60L, 10L);
+        assertEquals(60L, first.bytes());
+        final COSBufferBudget.Reservation second = budget.reserve(60L, 10L);
+        assertEquals(40L, second.bytes());
+        assertEquals(Long.valueOf(1L), stats(budget).get("buffer_budget.shrunk_reservations"));
+
+        final AtomicLong third = new AtomicLong();
+        final Thread waiter = new Thread(() -> {
+            try (COSBufferBudget.Reservation reservation = budget.reserve(60L, 10L)) {
+                third.set(reservation.bytes());
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        waiter.start();
+        assertBusy(() -> assertEquals(Long.valueOf(1L), stats(budget).get("buffer_budget.waiting")));
+        second.close();
+        waiter.join();
+        assertEquals(40L, third.get());
+        first.close();
+        first.close();
+
+        final Map<String, Long> stats = stats(budget);
+        assertEquals(Long.valueOf(0L), stats.get("buffer_budget.used_bytes"));
+        assertEquals(Long.valueOf(1L), stats.get("buffer_budget.waits"));
+    }
+
+    public void testSingleReservationMayExceedTheBudget() throws Exception {
+        final COSBufferBudget budget = new COSBufferBudget(100L, null);
+        try (COSBufferBudget.Reservation reservation = budget.reserve(500L, 200L)) {
+            assertEquals(200L, reservation.bytes());
+            assertEquals(Long.valueOf(200L), stats(budget).get("buffer_budget.used_bytes"));
+        }
+        assertEquals(Long.valueOf(0L), stats(budget).get("buffer_budget.used_bytes"));
+    }
+
+    public void testReservationsAreBoundedByTheCircuitBreaker() throws Exception {
+        final CircuitBreaker breaker = mock(CircuitBreaker.class);
+        when(breaker.getLimit()).thenReturn(1000L);
+        when(breaker.getUsed()).thenReturn(970L);
+        final COSBufferBudget budget = new COSBufferBudget(0L, breaker);
+        try (COSBufferBudget.Reservation reservation = budget.reserve(100L, 10L)) {
+            assertEquals(30L, reservation.bytes());
+        }
+    }
+
+    private static Map<String, Long> stats(COSBufferBudget budget) {
+        final Map<String, Long> stats = new HashMap<>();
+        budget.addStats(stats);
+        return stats;
+    }
+}
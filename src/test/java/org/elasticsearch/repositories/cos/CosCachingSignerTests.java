@@ -0,0 +1,117 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.auth.BasicCOSCredentials;
+import com.qcloud.cos.auth.COSCredentials;
+import com.qcloud.cos.auth.COSSigner;
+import com.qcloud.cos.http.HttpMethodName;
+import org.elasticsearch.test.ESTestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.lessThan;
+
+public class CosCachingSignerTests extends ESTestCase {
+
+    public void testSignaturesMatchTheSdk() {
+        final COSSigner sdkSigner = new COSSigner();
+        final COSCachingSigner cachingSigner = new COSCachingSigner(System::currentTimeMillis);
+        final int localTimeDelta = between(-100, 100);
+        sdkSigner.setLocalTimeDelta(localTimeDelta);
+        cachingSigner.setLocalTimeDelta(localTimeDelta);
+        final COSCredentials credentials = new BasicCOSCredentials(randomAlphaOfLength(20), randomAlphaOfLength(32));
+        final long start = randomLongBetween(0L, 4_000_000_000L) * 1000L;
+        for (int i = 0; i < 20; i++) {
+            final Map<String, String> headers = new HashMap<>();
+            headers.put("Host", "bucket-1250000000.cos.ap-guangzhou.myqcloud.com");
+            headers.put("Content-Length", Integer.toString(between(0, 1 << 20)));
+            headers.put("x-cos-meta-" + randomAlphaOfLength(5).toLowerCase(Locale.ROOT), randomUnicodeOfLength(10));
+            headers.put("User-Agent", "Elasticsearch");
+            if (randomBoolean()) {
+                headers.put("Range", "bytes=0-" + between(0, 100));
+            }
+            final Map<String, String> params = new HashMap<>();
+            if (randomBoolean()) {
+                params.put("uploadId", randomAlphaOfLength(10));
+                params.put("partNumber", Integer.toString(between(1, 10000)));
+            }
+            if (randomBoolean()) {
+                params.put("prefix", "indices/" + randomAlphaOfLength(5) + "/ /");
+                params.put("delimiter", "/");
+            }
+            final HttpMethodName method = randomFrom(HttpMethodName.GET, HttpMethodName.PUT, HttpMethodName.POST,
+                    HttpMethodName.DELETE, HttpMethodName.HEAD);
+            final String path = "/indices/" + randomAlphaOfLength(10) + "/__" + randomAlphaOfLength(10);
+            // requests of the same window share the sign key, which has to give the same signatures
+            final Date startTime = new Date(start + between(0, 3) * 1000L);
+            final Date endTime = new Date(startTime.getTime() + 3600_000L);
+            assertEquals(sdkSigner.buildAuthorizationStr(method, path, headers, params, credentials, startTime, endTime, true),
+                    cachingSigner.buildAuthorizationStr(method, path, headers, params, credentials, startTime, endTime, true));
+        }
+    }
+
+    public void testKeyTimeIsAlignedToWindows() {
+        final long window = COSCachingSigner.KEY_TIME_WINDOW_MILLIS;
+        final long windowStart = randomLongBetween(0L, 4_000_000L) * window;
+        final AtomicLong now = new AtomicLong(windowStart + randomLongBetween(1L, window / 2));
+        final COSCachingSigner signer = new COSCachingSigner(now::get);
+        final COSCredentials credentials = new BasicCOSCredentials("ak", "sk");
+        final Map<String, String> headers = Map.of("Host", "bucket.cos.ap-guangzhou.myqcloud.com");
+
+        final String keyTime = keyTime(signer.buildAuthorizationStr(HttpMethodName.GET, "/blob", headers, Map.of(), credentials,
+                new Date(now.get() + 3600_000L), true));
+        assertEquals(windowStart / 1000 + ";" + (windowStart + window + 3600_000L) / 1000, keyTime);
+
+        // a request later in the same window gets the same key time
+        now.set(randomLongBetween(now.get(), windowStart + window - 1));
+        assertEquals(keyTime, keyTime(signer.buildAuthorizationStr(HttpMethodName.GET, "/blob", headers, Map.of(), credentials,
+                new Date(now.get() + 3600_000L), true)));
+    }
+
+    /**
+     * Signs the same requests with both signers and checks that the caching signer allocates less per signature, which is what
+     * deriving the sign key once per window and reusing the per-thread Mac saves on every request.
+     */
+    public void testSigningAllocatesLessThanTheSdk() {
+        final java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue("thread allocation tracking is required", threadMXBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported());
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+
+        final COSCredentials credentials = new BasicCOSCredentials(randomAlphaOfLength(20), randomAlphaOfLength(32));
+        final Map<String, String> headers = Map.of("Host", "bucket-1250000000.cos.ap-guangzhou.myqcloud.com",
+                "Range", "bytes=0-" + between(0, 1 << 20));
+        final String path = "/indices/" + randomAlphaOfLength(10) + "/__" + randomAlphaOfLength(10);
+        final Date expiration = new Date(System.currentTimeMillis() + 3600_000L);
+        final int signatures = 10_000;
+        final long[] bytesPerSignature = new long[2];
+        final COSSigner[] signers = new COSSigner[] { new COSSigner(), new COSCachingSigner(System::currentTimeMillis) };
+        for (int i = 0; i < signers.length; i++) {
+            // warm up first, so that neither class loading nor compilation is counted
+            for (int j = 0; j < signatures; j++) {
+                signers[i].buildAuthorizationStr(HttpMethodName.GET, path, headers, Map.of(), credentials, expiration, true);
+            }
+            final long threadId = Thread.currentThread().getId();
+            final long before = allocations.getThreadAllocatedBytes(threadId);
+            for (int j = 0; j < signatures; j++) {
+                signers[i].buildAuthorizationStr(HttpMethodName.GET, path, headers, Map.of(), credentials, expiration, true);
+            }
+            bytesPerSignature[i] = (allocations.getThreadAllocatedBytes(threadId) - before) / signatures;
+        }
+        logger.info("bytes allocated per signature: COSSigner [{}], COSCachingSigner [{}]", bytesPerSignature[0], bytesPerSignature[1]);
+        assertThat(bytesPerSignature[1], lessThan(bytesPerSignature[0]));
+    }
+
+    private static String keyTime(String authorization) {
+        for (String member : authorization.split("&")) {
+            if (member.startsWith("q-key-time=")) {
+                return member.substring("q-key-time=".length());
+            }
+        }
+        throw new AssertionError("no key time in [" + authorization + "]");
+    }
+}
@@ -0,0 +1,96 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.DeleteResult;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.blobstore.support.BlobMetadata;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CosConsistencyProbeTests extends ESTestCase {
+
+    public void testConsistentBucketPasses() throws Exception {
+        final BlobContainer container = container(false);
+        final COSConsistencyProbe probe = new COSConsistencyProbe();
+        assertEquals(COSConsistencyProbe.Result.NOT_RUN, probe.result());
+        probe.run(() -> container, random());
+        assertTrue(probe.passed());
+        verify(container).delete(OperationPurpose.REPOSITORY_ANALYSIS);
+
+        final Map<String, Long> stats = new HashMap<>();
+        probe.addStats(stats);
+        assertEquals(Long.valueOf(1L), stats.get("consistency_probe.completed"));
+        assertEquals(Long.valueOf(1L), stats.get("consistency_probe.passed"));
+    }
+
+    public void testStaleListingFails() throws Exception {
+        final BlobContainer container = container(true);
+        final COSConsistencyProbe probe = new COSConsistencyProbe();
+        probe.run(() -> container, random());
+        assertEquals(COSConsistencyProbe.Result.FAILED, probe.result());
+        verify(container).delete(OperationPurpose.REPOSITORY_ANALYSIS);
+    }
+
+    public void testProbeThatCannotStartFails() {
+        final COSConsistencyProbe probe = new COSConsistencyProbe();
+        probe.run(() -> {
+            throw new IllegalStateException("blob store is closed");
+        }, random());
+        assertEquals(COSConsistencyProbe.Result.FAILED, probe.result());
+
+        final Map<String, Long> stats = new HashMap<>();
+        probe.addStats(stats);
+        assertEquals(Long.valueOf(1L), stats.get("consistency_probe.completed"));
+        assertEquals(Long.valueOf(0L), stats.get("consistency_probe.passed"));
+    }
+
+    /**
+     * A container backed by a map, whose listings lag behind the writes if {@code staleListings} is set.
+     */
+    private static BlobContainer container(boolean staleListings) throws Exception {
+        final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+        final BlobContainer container = mock(BlobContainer.class);
+        when(container.path()).thenReturn(BlobPath.EMPTY.add("probe"));
+        doAnswer(invocation -> {
+            blobs.put(invocation.getArgument(1), BytesReference.toBytes(invocation.getArgument(2)));
+            return null;
+        }).when(container).writeBlob(any(OperationPurpose.class), anyString(), any(BytesReference.class), anyBoolean());
+        when(container.readBlob(any(OperationPurpose.class), anyString())).thenAnswer(invocation -> {
+            final byte[] blob = blobs.get(invocation.getArgument(1));
+            if (blob == null) {
+                throw new NoSuchFileException(invocation.getArgument(1));
+            }
+            return new ByteArrayInputStream(blob);
+        });
+        when(container.listBlobs(any(OperationPurpose.class))).thenAnswer(invocation -> {
+            final Map<String, BlobMetadata> listing = new HashMap<>();
+            if (staleListings == false) {
+                blobs.forEach((name, blob) -> listing.put(name, new BlobMetadata(name, blob.length)));
+            }
+            return listing;
+        });
+        doAnswer(invocation -> {
+            final Iterator<String> names = invocation.getArgument(1);
+            names.forEachRemaining(blobs::remove);
+            return null;
+        }).when(container).deleteBlobsIgnoringIfNotExists(any(OperationPurpose.class), any());
+        when(container.delete(any(OperationPurpose.class))).thenReturn(DeleteResult.ZERO);
+        return container;
+    }
+}
@@ -0,0 +1,130 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.model.COSObject;
+import com.qcloud.cos.model.COSObjectInputStream;
+import com.qcloud.cos.model.COSObjectSummary;
+import com.qcloud.cos.model.DeleteObjectsRequest;
+import com.qcloud.cos.model.GetObjectRequest;
+import com.qcloud.cos.model.ListObjectsRequest;
+import com.qcloud.cos.model.ObjectListing;
+import com.qcloud.cos.model.ObjectMetadata;
+import com.qcloud.cos.model.PutObjectRequest;
+import com.qcloud.cos.model.PutObjectResult;
+import org.apache.http.client.methods.HttpGet;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CosDeletionJournalTests extends ESTestCase {
+
+    private static final BlobPath JOURNAL_PATH = BlobPath.EMPTY.add("base").add(COSDeletionJournal.FOLDER_NAME);
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    public void testDataBlobsAreDeletedInTheBackground() throws Exception {
+        final List<String> dataBlobs = IntStream.range(0, between(1, 2500)).mapToObj(i -> "base/indices/uuid/0/__" + i)
+                .collect(Collectors.toList());
+        dataBlobs.forEach(key -> objects.put(key, new byte[1]));
+        objects.put("base/indices/uuid/0/index-1", new byte[1]);
+        final COSDeletionJournal journal = new COSDeletionJournal(JOURNAL_PATH, between(1, 4), tasks::add, () -> 1L);
+        final COSBlobStore blobStore = blobStore(journal);
+
+        final List<String> keys = new ArrayList<>(dataBlobs);
+        keys.add("base/indices/uuid/0/index-1");
+        blobStore.deleteBlobsIgnoringIfNotExists(OperationPurpose.SNAPSHOT_DATA, keys.iterator());
+
+        // everything else is deleted right away, data blobs once the journal is drained
+        assertFalse(objects.containsKey("base/indices/uuid/0/index-1"));
+        assertEquals(dataBlobs.size(), objects.keySet().stream().filter(COSBlobStore::isDataBlob).count());
+        assertEquals(1, segments().size());
+        assertEquals(Long.valueOf(dataBlobs.size()), blobStore.detailedStats().get("deletion_journal.journaled_keys"));
+
+        runTasks();
+        assertEquals(Set.of(), objects.keySet());
+        assertEquals(Long.valueOf(dataBlobs.size()), blobStore.detailedStats().get("deletion_journal.deleted_keys"));
+        assertEquals(Long.valueOf(1L), blobStore.detailedStats().get("deletion_journal.drained_segments"));
+    }
+
+    public void testAnotherNodeResumesTheJournal() throws Exception {
+        objects.put("base/indices/uuid/0/__a", new byte[1]);
+        objects.put("base/indices/uuid/0/__b", new byte[1]);
+        final COSDeletionJournal journal = new COSDeletionJournal(JOURNAL_PATH, 1, tasks::add, () -> 1L);
+        blobStore(journal).deleteBlobsIgnoringIfNotExists(OperationPurpose.SNAPSHOT_DATA,
+                List.of("base/indices/uuid/0/__a", "base/indices/uuid/0/__b").iterator());
+        // the node that appended goes away before draining
+        tasks.clear();
+        assertEquals(1, segments().size());
+
+        final COSDeletionJournal resumed = new COSDeletionJournal(JOURNAL_PATH, 1, tasks::add, () -> 2L);
+        resumed.drain(blobStore(resumed));
+        runTasks();
+        assertEquals(Set.of(), objects.keySet());
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private List<String> segments() {
+        return objects.keySet().stream().filter(key -> key.startsWith(JOURNAL_PATH.buildAsString())).collect(Collectors.toList());
+    }
+
+    private COSBlobStore blobStore(COSDeletionJournal journal) {
+        final COSClient client = mock(COSClient.class);
+        when(client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            final PutObjectRequest request = invocation.getArgument(0);
+            objects.put(request.getKey(), request.getInputStream().readAllBytes());
+            return new PutObjectResult();
+        });
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            final byte[] content = objects.get(((GetObjectRequest) invocation.getArgument(0)).getKey());
+            final COSObject cosObject = new COSObject();
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(content.length);
+            cosObject.setObjectMetadata(metadata);
+            cosObject.setObjectContent(new COSObjectInputStream(new ByteArrayInputStream(content), new HttpGet()));
+            return cosObject;
+        });
+        when(client.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+            final DeleteObjectsRequest request = invocation.getArgument(0);
+            assertTrue(request.getKeys().size() <= COSBlobStore.MAX_BULK_DELETES);
+            request.getKeys().forEach(key -> objects.remove(key.getKey()));
+            return null;
+        });
+        when(client.listObjects(any(ListObjectsRequest.class))).thenAnswer(invocation -> {
+            final ListObjectsRequest request = invocation.getArgument(0);
+            final ObjectListing listing = new ObjectListing();
+            new TreeMap<>(objects).forEach((key, content) -> {
+                if (key.startsWith(request.getPrefix())) {
+                    final COSObjectSummary summary = new COSObjectSummary();
+                    summary.setKey(key);
+                    summary.setSize(content.length);
+                    listing.getObjectSummaries().add(summary);
+                }
+            });
+            return listing;
+        });
+        return CosBlobStoreTestHelper.blobStore(client).deletionJournal(journal).build();
+    }
+}
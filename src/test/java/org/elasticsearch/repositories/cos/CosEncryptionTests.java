@@ -0,0 +1,106 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class CosEncryptionTests extends ESTestCase {
+
+    private final COSEncryption encryption = new COSEncryption(randomByteArrayOfLength(randomFrom(16, 24, 32)));
+
+    private byte[] randomPlaintext() {
+        final int frames = between(0, 4);
+        return randomByteArrayOfLength(frames * COSEncryption.FRAME_SIZE + randomFrom(0, 1, between(0, COSEncryption.FRAME_SIZE)));
+    }
+
+    private byte[] encrypt(byte[] plaintext) throws IOException {
+        if (randomBoolean()) {
+            try (InputStream stream = encryption.encrypt(new ByteArrayInputStream(plaintext), plaintext.length)) {
+                return stream.readAllBytes();
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream stream = encryption.encrypt(out)) {
+            int offset = 0;
+            while (offset < plaintext.length) {
+                final int length = Math.min(plaintext.length - offset, between(1, 2 * COSEncryption.FRAME_SIZE));
+                stream.write(plaintext, offset, length);
+                offset += length;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public void testRoundTrip() throws IOException {
+        final byte[] plaintext = randomPlaintext();
+        final byte[] encrypted = encrypt(plaintext);
+        assertEquals(COSEncryption.encryptedLength(plaintext.length), encrypted.length);
+        assertEquals(plaintext.length, COSEncryption.plaintextLength(encrypted.length));
+        try (InputStream stream = encryption.decrypt("blob", new ByteArrayInputStream(encrypted))) {
+            assertArrayEquals(plaintext, stream.readAllBytes());
+        }
+    }
+
+    public void testRangedReadDecryptsOnlyTouchedFrames() throws IOException {
+        final byte[] plaintext = randomByteArrayOfLength(between(1, 5 * COSEncryption.FRAME_SIZE));
+        final byte[] encrypted = encrypt(plaintext);
+        final COSEncryption.Header header = encryption.readHeader(new ByteArrayInputStream(encrypted));
+        for (int i = 0; i < 20; i++) {
+            final int position = between(0, plaintext.length - 1);
+            final int length = between(1, plaintext.length - position + (randomBoolean() ? 0 : COSEncryption.FRAME_SIZE));
+            final long firstFrame = position / COSEncryption.FRAME_SIZE;
+            final long lastFrame = (position + length - 1) / COSEncryption.FRAME_SIZE;
+            // what a ranged GET returns: the requested frames, cut short at the end of the blob
+            final int start = Math.toIntExact(COSEncryption.frameOffset(firstFrame));
+            final int end = Math.toIntExact(Math.min(COSEncryption.frameOffset(lastFrame + 1), encrypted.length));
+            final InputStream frames = new ByteArrayInputStream(Arrays.copyOfRange(encrypted, start, end));
+            try (InputStream stream = Streams.limitStream(encryption.decryptFrames(header, frames, firstFrame,
+                    position - firstFrame * COSEncryption.FRAME_SIZE), length)) {
+                assertArrayEquals(Arrays.copyOfRange(plaintext, position, Math.min(position + length, plaintext.length)),
+                        stream.readAllBytes());
+            }
+        }
+    }
+
+    public void testOnlyHeadersOfDataBlobsAreCached() throws IOException {
+        // another node may overwrite a metadata blob with a new data key at any time, data blobs are never overwritten
+        final String metadataBlob = "base/indices/index-uuid/0/index-" + randomAlphaOfLength(8);
+        final String dataBlob = "base/indices/index-uuid/0/__" + randomAlphaOfLength(8);
+        for (String blobKey : new String[] { metadataBlob, dataBlob }) {
+            final byte[] plaintext = randomPlaintext();
+            try (InputStream stream = encryption.decrypt(blobKey, new ByteArrayInputStream(encrypt(plaintext)))) {
+                assertArrayEquals(plaintext, stream.readAllBytes());
+            }
+        }
+        assertNull(encryption.cachedHeader(metadataBlob));
+        assertNotNull(encryption.cachedHeader(dataBlob));
+
+        final COSEncryption.Header header = encryption.readHeader(new ByteArrayInputStream(encrypt(randomPlaintext())));
+        encryption.cacheHeader(metadataBlob, header);
+        assertNull(encryption.cachedHeader(metadataBlob));
+        encryption.invalidate(dataBlob);
+        assertNull(encryption.cachedHeader(dataBlob));
+    }
+
+    public void testTamperingIsDetected() throws IOException {
+        final byte[] plaintext = randomByteArrayOfLength(between(2 * COSEncryption.FRAME_SIZE, 4 * COSEncryption.FRAME_SIZE));
+        final byte[] encrypted = encrypt(plaintext);
+
+        final byte[] flipped = encrypted.clone();
+        flipped[between(COSEncryption.HEADER_LENGTH, flipped.length - 1)] ^= 1;
+        expectThrows(IOException.class, () -> encryption.decrypt("blob", new ByteArrayInputStream(flipped)).readAllBytes());
+
+        // cut off after a complete frame, which must not pass for the end of the blob
+        final byte[] truncated = Arrays.copyOf(encrypted, Math.toIntExact(COSEncryption.frameOffset(1)));
+        expectThrows(IOException.class, () -> encryption.decrypt("blob", new ByteArrayInputStream(truncated)).readAllBytes());
+
+        final COSEncryption otherKey = new COSEncryption(randomByteArrayOfLength(32));
+        expectThrows(IOException.class, () -> otherKey.decrypt("blob", new ByteArrayInputStream(encrypted)));
+    }
+}
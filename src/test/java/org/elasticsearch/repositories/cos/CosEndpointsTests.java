@@ -0,0 +1,115 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.exception.CosServiceException;
+import com.qcloud.cos.model.GetObjectMetadataRequest;
+import com.qcloud.cos.model.ObjectMetadata;
+import com.qcloud.cos.model.PutObjectRequest;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CosEndpointsTests extends ESTestCase {
+
+    private final AtomicLong nanoTime = new AtomicLong(randomLong());
+
+    public void testFailedEndpointIsSkippedUntilRetryInterval() {
+        final COSEndpoints.Endpoint primary = new COSEndpoints.Endpoint("primary", mock(COSClient.class));
+        final COSEndpoints.Endpoint secondary = new COSEndpoints.Endpoint("secondary", mock(COSClient.class));
+        final COSEndpoints endpoints = endpoints(primary, secondary);
+        assertSame(primary, endpoints.select());
+
+        assertTrue(endpoints.onFailure(primary, connectionFailure()));
+        assertSame(secondary, endpoints.select());
+
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertSame(primary, endpoints.select());
+
+        // a second consecutive failure doubles the backoff
+        assertTrue(endpoints.onFailure(primary, serviceException(503)));
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertSame(secondary, endpoints.select());
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertSame(primary, endpoints.select());
+
+        endpoints.onSuccess(primary);
+        assertTrue(endpoints.onFailure(primary, connectionFailure()));
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertSame(primary, endpoints.select());
+    }
+
+    public void testClientErrorsDoNotMarkEndpointUnhealthy() {
+        final COSEndpoints.Endpoint primary = new COSEndpoints.Endpoint("primary", mock(COSClient.class));
+        final COSEndpoints endpoints = endpoints(primary, new COSEndpoints.Endpoint("secondary", mock(COSClient.class)));
+        assertFalse(endpoints.onFailure(primary, serviceException(404)));
+        assertFalse(endpoints.onFailure(primary, new CosClientException("invalid argument")));
+        assertSame(primary, endpoints.select());
+    }
+
+    public void testLeastRecentlyFailedEndpointIsUsedWhenAllAreUnhealthy() {
+        final COSEndpoints.Endpoint primary = new COSEndpoints.Endpoint("primary", mock(COSClient.class));
+        final COSEndpoints.Endpoint secondary = new COSEndpoints.Endpoint("secondary", mock(COSClient.class));
+        final COSEndpoints endpoints = endpoints(primary, secondary);
+        endpoints.onFailure(secondary, connectionFailure());
+        nanoTime.addAndGet(1L);
+        endpoints.onFailure(primary, connectionFailure());
+        assertNull(endpoints.selectHealthy());
+        assertSame(secondary, endpoints.select());
+    }
+
+    public void testRequestsFailOverToNextEndpoint() {
+        final COSClient primaryClient = mock(COSClient.class);
+        final COSClient secondaryClient = mock(COSClient.class);
+        when(primaryClient.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenThrow(connectionFailure());
+        when(primaryClient.putObject(any(PutObjectRequest.class))).thenThrow(connectionFailure());
+        final ObjectMetadata metadata = new ObjectMetadata();
+        when(secondaryClient.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(metadata);
+        final COSEndpoints endpoints = endpoints(new COSEndpoints.Endpoint("primary", primaryClient),
+                new COSEndpoints.Endpoint("secondary", secondaryClient));
+        final COSBlobStore blobStore = CosBlobStoreTestHelper.blobStore(endpoints).retryPolicy(new COSRetryPolicy(1)).build();
+
+        assertSame(metadata, blobStore.execute(COSBlobStore.Operation.HEAD_OBJECT, OperationPurpose.SNAPSHOT_METADATA, "blob",
+                client -> client.getObjectMetadata(new GetObjectMetadataRequest("bucket", "blob"))));
+        assertEquals(Long.valueOf(1L), blobStore.detailedStats().get("endpoint.failovers"));
+        assertEquals(Long.valueOf(0L), blobStore.detailedStats().get("endpoint.primary.healthy"));
+
+        // the primary is now skipped, so the upload goes straight to the secondary
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(29));
+        blobStore.execute(COSBlobStore.Operation.PUT_OBJECT, OperationPurpose.SNAPSHOT_DATA, "blob",
+                client -> client.putObject(mock(PutObjectRequest.class)));
+        verify(primaryClient, never()).putObject(any(PutObjectRequest.class));
+
+        // requests with a payload are not replayed on another endpoint
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        expectThrows(CosClientException.class, () -> blobStore.execute(COSBlobStore.Operation.PUT_OBJECT,
+                OperationPurpose.SNAPSHOT_DATA, "blob", client -> client.putObject(mock(PutObjectRequest.class))));
+        verify(secondaryClient, times(1)).putObject(any(PutObjectRequest.class));
+    }
+
+    private COSEndpoints endpoints(COSEndpoints.Endpoint... endpoints) {
+        return new COSEndpoints(List.of(endpoints), TimeValue.timeValueSeconds(30), nanoTime::get);
+    }
+
+    private static CosClientException connectionFailure() {
+        return new CosClientException("connection refused", new ConnectException("connection refused"));
+    }
+
+    private static CosServiceException serviceException(int statusCode) {
+        final CosServiceException e = new CosServiceException("failure");
+        e.setStatusCode(statusCode);
+        return e;
+    }
+}
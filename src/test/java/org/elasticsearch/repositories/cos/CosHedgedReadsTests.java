@@ -0,0 +1,159 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.model.COSObject;
+import com.qcloud.cos.model.COSObjectInputStream;
+import org.apache.http.client.methods.HttpGet;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CosHedgedReadsTests extends ESTestCase {
+
+    private ExecutorService executor;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        // the losing attempts were released by the tests, let them finish instead of interrupting them
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        super.tearDown();
+    }
+
+    public void testSlowRequestIsHedgedAndLoserAborted() throws Exception {
+        final COSHedgedReads hedgedReads = new COSHedgedReads(executor, 95.0, 1.0);
+        recordFastResponses(hedgedReads);
+        final CountDownLatch releaseSlowRequest = new CountDownLatch(1);
+        final HttpGet slowHttpRequest = new HttpGet();
+        final COSObject slow = cosObject(slowHttpRequest);
+        final COSObject fast = cosObject(new HttpGet());
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final COSObject result = hedgedReads.getObject(() -> {
+            if (attempts.getAndIncrement() == 0) {
+                awaitQuietly(releaseSlowRequest);
+                return slow;
+            }
+            return fast;
+        });
+
+        assertSame(fast, result);
+        assertEquals(2, attempts.get());
+        releaseSlowRequest.countDown();
+        assertBusy(() -> assertTrue(slowHttpRequest.isAborted()));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(slowHttpRequest.isAborted());
+    }
+
+    public void testFailedHedgeFallsBackToOriginalRequest() throws Exception {
+        final COSHedgedReads hedgedReads = new COSHedgedReads(executor, 95.0, 1.0);
+        recordFastResponses(hedgedReads);
+        final CountDownLatch hedgeFailed = new CountDownLatch(1);
+        final COSObject original = cosObject(new HttpGet());
+        final AtomicInteger attempts = new AtomicInteger();
+        final COSObject result = hedgedReads.getObject(() -> {
+            if (attempts.getAndIncrement() == 0) {
+                // the original request only responds once the hedge failed, so it cannot win before the hedge was sent
+                try {
+                    if (hedgeFailed.await(10, TimeUnit.SECONDS) == false) {
+                        throw new CosClientException("the request was not hedged");
+                    }
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return original;
+            }
+            hedgeFailed.countDown();
+            throw new CosClientException("simulated");
+        });
+        assertSame(original, result);
+        assertEquals(2, attempts.get());
+        assertEquals(0L, hedgeFailed.getCount());
+        final Map<String, Long> stats = new HashMap<>();
+        hedgedReads.addStats(stats);
+        assertEquals(Long.valueOf(1L), stats.get("hedged_reads.hedged"));
+        assertEquals(Long.valueOf(0L), stats.get("hedged_reads.won"));
+    }
+
+    public void testNoHedgingWithoutBudget() throws IOException {
+        final COSHedgedReads hedgedReads = new COSHedgedReads(executor, 95.0, 0.01);
+        recordFastResponses(hedgedReads);
+        final AtomicInteger attempts = new AtomicInteger();
+        final Thread caller = Thread.currentThread();
+        // the first request only earns a hundredth of a hedge, so it is not even handed to the executor
+        hedgedReads.getObject(() -> {
+            attempts.incrementAndGet();
+            assertSame(caller, Thread.currentThread());
+            sleepQuietly(20L);
+            return cosObject(new HttpGet());
+        });
+        assertEquals(1, attempts.get());
+    }
+
+    public void testDelayRecoversAfterASlowPeriod() throws IOException {
+        final AtomicLong nanoTime = new AtomicLong(randomLong());
+        final COSHedgedReads hedgedReads = new COSHedgedReads(executor, 95.0, 1.0, nanoTime::get);
+        for (long i = 0; i < COSHedgedReads.WINDOW_SAMPLES; i++) {
+            hedgedReads.onFirstByte(TimeUnit.SECONDS.toNanos(10));
+        }
+        // a window of fast requests replaces the slow one, which would otherwise keep every hedge from firing
+        nanoTime.addAndGet(COSHedgedReads.WINDOW_NANOS);
+        recordFastResponses(hedgedReads);
+        final CountDownLatch releaseSlowRequest = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        final COSObject fast = cosObject(new HttpGet());
+        final COSObject result = hedgedReads.getObject(() -> {
+            if (attempts.getAndIncrement() == 0) {
+                awaitQuietly(releaseSlowRequest);
+                return cosObject(new HttpGet());
+            }
+            return fast;
+        });
+        assertSame(fast, result);
+        releaseSlowRequest.countDown();
+    }
+
+    private static void recordFastResponses(COSHedgedReads hedgedReads) {
+        for (long i = 0; i < COSHedgedReads.MIN_SAMPLES; i++) {
+            hedgedReads.onFirstByte(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private static COSObject cosObject(HttpGet httpRequest) {
+        final COSObject cosObject = new COSObject();
+        cosObject.setObjectContent(new COSObjectInputStream(new ByteArrayInputStream(new byte[16]), httpRequest));
+        return cosObject;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
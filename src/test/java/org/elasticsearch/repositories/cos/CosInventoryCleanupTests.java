@@ -0,0 +1,179 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.exception.CosServiceException;
+import com.qcloud.cos.model.DeleteObjectsRequest;
+import com.qcloud.cos.model.ObjectMetadata;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.RepositoryCleanupInProgress;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.cluster.metadata.RepositoriesMetadata;
+import org.elasticsearch.cluster.metadata.RepositoryMetadata;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.IndexVersion;
+import org.elasticsearch.repositories.IndexId;
+import org.elasticsearch.repositories.RepositoryData;
+import org.elasticsearch.repositories.ShardGeneration;
+import org.elasticsearch.repositories.ShardGenerations;
+import org.elasticsearch.snapshots.SnapshotId;
+import org.elasticsearch.snapshots.SnapshotState;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPOutputStream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CosInventoryCleanupTests extends ESTestCase {
+
+    private static final long NOW = TimeValue.timeValueDays(10).millis();
+
+    private final COSClient client = mock(COSClient.class);
+    private final Set<String> deleted = new TreeSet<>();
+
+    public void testParseLine() {
+        assertEquals(List.of("bucket", "a,b", "say \"hi\"", "12"), COSInventory.parseLine("\"bucket\",\"a,b\",\"say \"\"hi\"\"\",12"));
+    }
+
+    public void testConfirmedCandidatesAreDeleted() throws Exception {
+        final COSInventory inventory = inventory(
+                "base/index-5", // outside of indices/
+                "base/indices/index-uuid/meta-1.dat",
+                "base/indices/index-uuid/0/index-current",
+                "base/indices/index-uuid/0/index-previous", // stale
+                "base/indices/index-uuid/0/__data",
+                "base/indices/index-uuid/0/snap-deleted-uuid.dat", // stale
+                "base/indices/dangling-uuid/0/__data", // stale
+                "base/indices/dangling-uuid/0/__gone", // stale but deleted already
+                "base/indices/dangling-uuid/0/__recent"); // stale but too recent
+        final boolean dryRun = randomBoolean();
+        final COSInventoryCleanup.Result result = cleanup(dryRun, () -> true).run(inventory);
+        assertEquals(5L, result.candidates());
+        assertEquals(3L, result.deleted());
+        if (dryRun) {
+            assertTrue(deleted.isEmpty());
+        } else {
+            assertEquals(Set.of("base/indices/index-uuid/0/index-previous", "base/indices/index-uuid/0/snap-deleted-uuid.dat",
+                    "base/indices/dangling-uuid/0/__data"), deleted);
+        }
+    }
+
+    public void testNothingIsDeletedWhileSnapshotsRun() throws Exception {
+        final COSInventory inventory = inventory("base/indices/dangling-uuid/0/__data");
+        final AtomicBoolean idle = new AtomicBoolean(true);
+        final COSInventoryCleanup cleanup = cleanup(false, () -> idle.getAndSet(false));
+        expectThrows(IllegalStateException.class, () -> cleanup.run(inventory));
+        verify(client, never()).deleteObjects(any(DeleteObjectsRequest.class));
+    }
+
+    public void testCleanupIsRegisteredInTheClusterStateWhileItRuns() {
+        final ClusterState state = clusterState(5L);
+        final ClusterState running = TransportCOSInventoryCleanupAction.registerCleanup(state, "repo", 5L);
+        final List<RepositoryCleanupInProgress.Entry> entries = RepositoryCleanupInProgress.get(running).entries();
+        assertEquals(1, entries.size());
+        assertEquals("repo", entries.get(0).repository());
+        assertEquals(5L, entries.get(0).repositoryStateId());
+
+        expectThrows(IllegalStateException.class, () -> TransportCOSInventoryCleanupAction.registerCleanup(running, "repo", 5L));
+
+        final ClusterState done = TransportCOSInventoryCleanupAction.removeCleanup(running, "repo");
+        assertFalse(RepositoryCleanupInProgress.get(done).hasCleanupInProgress());
+        assertSame(done, TransportCOSInventoryCleanupAction.removeCleanup(done, "repo"));
+    }
+
+    public void testCleanupDoesNotStartAgainstAnOutdatedRepositoryGeneration() {
+        final IllegalStateException e = expectThrows(IllegalStateException.class,
+                () -> TransportCOSInventoryCleanupAction.registerCleanup(clusterState(6L), "repo", 5L));
+        assertTrue(e.getMessage(), e.getMessage().contains("moved on to generation [6]"));
+    }
+
+    public void testResultSerialization() throws Exception {
+        final COSInventory inventory = inventory("base/indices/dangling-uuid/0/__data", "base/indices/dangling-uuid/0/__recent");
+        final COSInventoryCleanup.Result result = cleanup(true, () -> true).run(inventory);
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            result.writeTo(out);
+            assertEquals(result.toString(), new COSInventoryCleanup.Result(out.bytes().streamInput()).toString());
+        }
+    }
+
+    private static ClusterState clusterState(long repositoryGeneration) {
+        final RepositoryMetadata repository = new RepositoryMetadata(new RepositoryMetadata("repo", COSRepository.TYPE, Settings.EMPTY),
+                repositoryGeneration, repositoryGeneration);
+        return ClusterState.builder(ClusterName.DEFAULT)
+                .metadata(Metadata.builder().putCustom(RepositoriesMetadata.TYPE, new RepositoriesMetadata(List.of(repository))))
+                .build();
+    }
+
+    private COSInventoryCleanup cleanup(boolean dryRun, BooleanSupplier idle) {
+        final IndexId indexId = new IndexId("index", "index-uuid");
+        final RepositoryData repositoryData = RepositoryData.EMPTY.addSnapshot(new SnapshotId("snapshot", "snapshot-uuid"),
+                new RepositoryData.SnapshotDetails(SnapshotState.SUCCESS, IndexVersion.current(), 0L, 0L, null),
+                ShardGenerations.builder().put(indexId, 0, new ShardGeneration("current")).build(), Map.of(), Map.of());
+
+        when(client.getObjectMetadata(anyString(), anyString())).thenAnswer(invocation -> {
+            final String key = invocation.getArgument(1);
+            if (key.endsWith("__gone")) {
+                final CosServiceException e = new CosServiceException("not found");
+                e.setStatusCode(404);
+                throw e;
+            }
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(100L);
+            metadata.setLastModified(new Date(key.endsWith("__recent") ? NOW - 1000L : 0L));
+            return metadata;
+        });
+        when(client.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+            final DeleteObjectsRequest request = invocation.getArgument(0);
+            request.getKeys().forEach(key -> deleted.add(key.getKey()));
+            return null;
+        });
+        final COSBlobStore blobStore = CosBlobStoreTestHelper.blobStore(client).build();
+        return new COSInventoryCleanup(blobStore, BlobPath.EMPTY.add("base"), new COSBlobReferences(repositoryData),
+                TimeValue.timeValueHours(1).millis(), () -> NOW, idle, dryRun);
+    }
+
+    /**
+     * Writes an inventory of the given keys to a local folder, split over a plain and a gzipped CSV file, and opens it from there.
+     */
+    private static COSInventory inventory(String... keys) throws Exception {
+        final Path folder = createTempDir();
+        final List<String> files = new ArrayList<>();
+        for (int file = 0; file < 2; file++) {
+            final String name = "data/part-" + file + (file == 0 ? ".csv" : ".csv.gz");
+            Files.createDirectories(folder.resolve("data"));
+            try (OutputStream out = Files.newOutputStream(folder.resolve(name));
+                 Writer writer = new OutputStreamWriter(file == 0 ? out : new GZIPOutputStream(out), StandardCharsets.UTF_8)) {
+                for (int i = file; i < keys.length; i += 2) {
+                    writer.write("\"bucket\",\"" + URLEncoder.encode(keys[i], StandardCharsets.UTF_8) + "\",\"100\",\"2024\"\n");
+                }
+            }
+            files.add("{\"key\":\"" + name + "\"}");
+        }
+        Files.writeString(folder.resolve("manifest.json"), "{\"fileFormat\":\"CSV\",\"fileSchema\":\"Bucket, Key, Size, "
+                + "LastModifiedDate\",\"files\":[" + String.join(",", files) + "]}");
+        return COSInventory.open(key -> Files.newInputStream(folder.resolve(key)), "manifest.json");
+    }
+}
@@ -0,0 +1,216 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.exception.CosServiceException;
+import com.qcloud.cos.model.AbortMultipartUploadRequest;
+import com.qcloud.cos.model.CompleteMultipartUploadRequest;
+import com.qcloud.cos.model.CompleteMultipartUploadResult;
+import com.qcloud.cos.model.InitiateMultipartUploadRequest;
+import com.qcloud.cos.model.InitiateMultipartUploadResult;
+import com.qcloud.cos.model.ListPartsRequest;
+import com.qcloud.cos.model.PartETag;
+import com.qcloud.cos.model.PartListing;
+import com.qcloud.cos.model.PartSummary;
+import com.qcloud.cos.model.UploadPartRequest;
+import com.qcloud.cos.model.UploadPartResult;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CosMultipartUploadTests extends ESTestCase {
+
+    private static final int PART_SIZE = new ByteSizeValue(5, ByteSizeUnit.MB).bytesAsInt();
+
+    private final COSClient client = mock(COSClient.class);
+    // the parts COS holds for the (single) upload, by part number
+    private final Map<Integer, PartSummary> storedParts = new ConcurrentHashMap<>();
+    private final List<Integer> uploadedParts = new ArrayList<>();
+    private volatile int failPart = -1;
+    // the number of part uploads COS rejects as corrupted in transit
+    private final AtomicInteger corruptParts = new AtomicInteger();
+
+    public void testFailedUploadIsResumedFromStoredParts() throws IOException {
+        final byte[] data = randomByteArrayOfLength(2 * PART_SIZE + between(1, 1024));
+        final COSBlobStore blobStore = blobStore(TimeValue.timeValueHours(1));
+        final BlobContainer container = blobStore.blobContainer(BlobPath.EMPTY);
+
+        failPart = 2;
+        expectThrows(IOException.class, () -> container.writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new BytesArray(data), false));
+        verify(client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        assertEquals(Long.valueOf(1L), blobStore.detailedStats().get("multipart.retained_uploads"));
+        assertEquals(List.of(1, 2), uploadedParts);
+
+        failPart = -1;
+        uploadedParts.clear();
+        container.writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new ByteArrayInputStream(data), data.length, false);
+        assertEquals(List.of(2, 3), uploadedParts);
+        verify(client, times(1)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        verify(client, times(1)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertEquals(Long.valueOf(0L), blobStore.detailedStats().get("multipart.retained_uploads"));
+        assertEquals(Long.valueOf(1L), blobStore.detailedStats().get("multipart.resumed_uploads"));
+        assertEquals(Long.valueOf(1L), blobStore.detailedStats().get("multipart.skipped_parts"));
+    }
+
+    public void testResumedUploadKeepsItsPartSize() throws IOException {
+        final byte[] data = randomByteArrayOfLength(2 * PART_SIZE + between(1, 1024));
+        final COSBufferBudget bufferBudget = new COSBufferBudget(2L * PART_SIZE + 1, null);
+        final COSBlobStore blobStore = blobStore(TimeValue.timeValueHours(1), 0, 2L * PART_SIZE).bufferBudget(bufferBudget).build();
+        final BlobContainer container = blobStore.blobContainer(BlobPath.EMPTY);
+
+        // while the budget is short the parts shrink to the minimum part size
+        failPart = 2;
+        try (COSBufferBudget.Reservation other = bufferBudget.reserve(PART_SIZE + 1, PART_SIZE + 1)) {
+            expectThrows(IOException.class,
+                    () -> container.writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new ByteArrayInputStream(data), data.length, false));
+        }
+        assertEquals(List.of(1, 2), uploadedParts);
+
+        // the budget recovered, but the upload is resumed with the parts it was started with
+        failPart = -1;
+        uploadedParts.clear();
+        container.writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new ByteArrayInputStream(data), data.length, false);
+        assertEquals(List.of(2, 3), uploadedParts);
+        verify(client, times(1)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+        assertEquals(Long.valueOf(1L), blobStore.detailedStats().get("multipart.resumed_uploads"));
+    }
+
+    public void testStoredPartsWithDifferentContentAreUploadedAgain() throws IOException {
+        final byte[] data = randomByteArrayOfLength(2 * PART_SIZE + between(1, 1024));
+        final COSBlobStore blobStore = blobStore(TimeValue.timeValueHours(1));
+        final BlobContainer container = blobStore.blobContainer(BlobPath.EMPTY);
+
+        failPart = 2;
+        expectThrows(IOException.class, () -> container.writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new BytesArray(data), false));
+
+        failPart = -1;
+        uploadedParts.clear();
+        data[0]++;
+        if (randomBoolean()) {
+            container.writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new BytesArray(data), false);
+        } else {
+            container.writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new ByteArrayInputStream(data), data.length, false);
+        }
+        assertEquals(List.of(1, 2, 3), uploadedParts);
+        verify(client, times(1)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        verify(client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    public void testFailedPartsAreRetried() throws IOException {
+        final byte[] data = randomByteArrayOfLength(2 * PART_SIZE + between(1, 1024));
+        final COSBlobStore blobStore = blobStore(TimeValue.ZERO, 2);
+        corruptParts.set(2);
+        if (randomBoolean()) {
+            blobStore.blobContainer(BlobPath.EMPTY).writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new BytesArray(data), false);
+        } else {
+            blobStore.blobContainer(BlobPath.EMPTY)
+                    .writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new ByteArrayInputStream(data), data.length, false);
+        }
+        assertEquals(List.of(1, 1, 1, 2, 3), uploadedParts);
+        verify(client, times(1)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertEquals(Long.valueOf(2L), blobStore.detailedStats().get("retries.UploadPart"));
+    }
+
+    public void testPartRetriesAreLimited() {
+        final byte[] data = randomByteArrayOfLength(PART_SIZE + between(1, 1024));
+        final COSBlobStore blobStore = blobStore(TimeValue.ZERO, 1);
+        failPart = 1;
+        expectThrows(IOException.class, () -> blobStore.blobContainer(BlobPath.EMPTY)
+                .writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new BytesArray(data), false));
+        assertEquals(List.of(1, 1), uploadedParts);
+        verify(client, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    public void testFailedUploadIsAbortedWhenResumingIsDisabled() {
+        final byte[] data = randomByteArrayOfLength(PART_SIZE + between(1, 1024));
+        final COSBlobStore blobStore = blobStore(TimeValue.ZERO);
+        failPart = 1;
+        expectThrows(IOException.class, () -> blobStore.blobContainer(BlobPath.EMPTY)
+                .writeBlob(OperationPurpose.SNAPSHOT_DATA, "blob", new BytesArray(data), false));
+        verify(client, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(client, never()).listParts(any(ListPartsRequest.class));
+    }
+
+    private COSBlobStore blobStore(TimeValue multipartResumeTtl) {
+        return blobStore(multipartResumeTtl, 0);
+    }
+
+    private COSBlobStore blobStore(TimeValue multipartResumeTtl, int maxRetries) {
+        return blobStore(multipartResumeTtl, maxRetries, PART_SIZE).build();
+    }
+
+    private COSBlobStore.Builder blobStore(TimeValue multipartResumeTtl, int maxRetries, long bufferSize) {
+        final InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload-id");
+        when(client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+        when(client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            final UploadPartRequest request = invocation.getArgument(0);
+            final byte[] content = request.getInputStream().readNBytes(Math.toIntExact(request.getPartSize()));
+            uploadedParts.add(request.getPartNumber());
+            if (request.getPartNumber() == failPart) {
+                throw new CosClientException("connection reset", new ConnectException("connection reset"));
+            }
+            final byte[] md5 = MessageDigests.digest(new BytesArray(content), MessageDigests.md5());
+            assertEquals(Base64.getEncoder().encodeToString(md5), request.getMd5Digest());
+            if (corruptParts.getAndDecrement() > 0) {
+                final CosServiceException e = new CosServiceException("content digest mismatch");
+                e.setStatusCode(400);
+                e.setErrorCode("BadDigest");
+                throw e;
+            }
+            final String eTag = MessageDigests.toHexString(md5);
+            final PartSummary part = new PartSummary();
+            part.setPartNumber(request.getPartNumber());
+            part.setSize(content.length);
+            part.setETag("\"" + eTag + "\"");
+            storedParts.put(request.getPartNumber(), part);
+            final UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(part.getETag());
+            return result;
+        });
+        when(client.listParts(any(ListPartsRequest.class))).thenAnswer(invocation -> {
+            final PartListing listing = new PartListing();
+            listing.setParts(new ArrayList<>(storedParts.values()));
+            return listing;
+        });
+        when(client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenAnswer(invocation -> {
+            final CompleteMultipartUploadRequest request = invocation.getArgument(0);
+            assertEquals(List.of(1, 2, 3), request.getPartETags().stream().map(PartETag::getPartNumber).collect(Collectors.toList()));
+            for (PartETag partETag : request.getPartETags()) {
+                assertEquals(storedParts.get(partETag.getPartNumber()).getETag(), partETag.getETag());
+            }
+            return new CompleteMultipartUploadResult();
+        });
+        return COSBlobStore.builder(CosBlobStoreTestHelper.endpoints(client), CosBlobStoreTestHelper.BUCKET,
+                        new ByteSizeValue(bufferSize, ByteSizeUnit.BYTES), BigArrays.NON_RECYCLING_INSTANCE)
+                .multipartResumeTtl(multipartResumeTtl)
+                .retryPolicy(new COSRetryPolicy(maxRetries));
+    }
+}
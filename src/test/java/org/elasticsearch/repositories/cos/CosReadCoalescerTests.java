@@ -0,0 +1,81 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CosReadCoalescerTests extends ESTestCase {
+
+    private static final int READ_SIZE = 1024;
+
+    public void testConcurrentAdjacentReadsShareOneFetch() throws Exception {
+        final byte[] blob = randomByteArrayOfLength(64 * READ_SIZE);
+        final COSReadCoalescer coalescer = new COSReadCoalescer(TimeValue.timeValueSeconds(1), new ByteSizeValue(4, ByteSizeUnit.KB),
+                new ByteSizeValue(1, ByteSizeUnit.MB));
+        final AtomicInteger fetches = new AtomicInteger();
+        final COSReadCoalescer.RangeReader reader = (purpose, key, start, end) -> {
+            fetches.incrementAndGet();
+            return Arrays.copyOfRange(blob, Math.toIntExact(start), Math.toIntExact(Math.min(end + 1, blob.length)));
+        };
+
+        final int readers = between(2, 16);
+        final CyclicBarrier barrier = new CyclicBarrier(readers);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[readers];
+        for (int i = 0; i < readers; i++) {
+            // adjacent ranges, with the last one reaching beyond the end of the blob
+            final long position = blob.length - (long) (i + 1) * READ_SIZE + READ_SIZE / 2;
+            threads[i] = new Thread(() -> {
+                try {
+                    barrier.await();
+                    try (InputStream stream = coalescer.read(OperationPurpose.INDICES, "blob", position, READ_SIZE, reader)) {
+                        final byte[] expected = Arrays.copyOfRange(blob, Math.toIntExact(position),
+                                Math.toIntExact(Math.min(position + READ_SIZE, blob.length)));
+                        assertArrayEquals(expected, stream.readAllBytes());
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        // readers arrive within the window, though a slow thread may still miss it and fetch on its own
+        assertTrue(fetches.get() < readers);
+    }
+
+    public void testFailuresAreRethrownToEveryReader() {
+        final COSReadCoalescer coalescer = new COSReadCoalescer(TimeValue.timeValueMillis(1), ByteSizeValue.ZERO,
+                new ByteSizeValue(1, ByteSizeUnit.MB));
+        expectThrows(NoSuchFileException.class, () -> coalescer.read(OperationPurpose.INDICES, "blob", 0L, READ_SIZE,
+                (purpose, key, start, end) -> {
+                    throw new NoSuchFileException(key);
+                }));
+        final IOException e = expectThrows(IOException.class, () -> coalescer.read(OperationPurpose.INDICES, "blob", 0L, READ_SIZE,
+                (purpose, key, start, end) -> {
+                    throw new IOException("simulated");
+                }));
+        assertEquals("simulated", e.getCause().getMessage());
+    }
+
+    public void testLargeReadsAreNotCoalesced() {
+        final COSReadCoalescer coalescer = new COSReadCoalescer(TimeValue.timeValueMillis(1), ByteSizeValue.ZERO,
+                new ByteSizeValue(1, ByteSizeUnit.MB));
+        assertTrue(coalescer.accepts(new ByteSizeValue(128, ByteSizeUnit.KB).getBytes()));
+        assertFalse(coalescer.accepts(new ByteSizeValue(128, ByteSizeUnit.KB).getBytes() + 1));
+        assertFalse(COSReadCoalescer.DISABLED.accepts(1L));
+    }
+}
@@ -0,0 +1,67 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class CosReadLengthTests extends ESTestCase {
+
+    private static final long MB = new ByteSizeValue(1, ByteSizeUnit.MB).getBytes();
+
+    public void testFixedLengthIgnoresSamples() {
+        final COSReadLength readLength = new COSReadLength(new ByteSizeValue(16, ByteSizeUnit.MB), false, 5.0);
+        sample(readLength, TimeUnit.MILLISECONDS.toNanos(500), 100 * MB, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(16 * MB, readLength.preferredLength());
+    }
+
+    public void testLengthAdaptsToFirstByteAndThroughput() {
+        final COSReadLength readLength = new COSReadLength(new ByteSizeValue(16, ByteSizeUnit.MB), true, 5.0);
+        assertEquals(16 * MB, readLength.preferredLength());
+
+        // 50ms to first byte at 100mb/s: a range of 95mb takes 950ms, so the first byte costs 5% of it
+        for (int i = 0; i < COSReadLength.MIN_SAMPLES - 1; i++) {
+            sample(readLength, TimeUnit.MILLISECONDS.toNanos(50), 100 * MB, TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals("the fixed length applies until enough downloads were observed", 16 * MB, readLength.preferredLength());
+        sample(readLength, TimeUnit.MILLISECONDS.toNanos(50), 100 * MB, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(95 * MB, readLength.preferredLength());
+
+        final Map<String, Long> stats = new HashMap<>();
+        readLength.addStats(stats);
+        assertEquals(Long.valueOf(95 * MB), stats.get("read_length.preferred_bytes"));
+        assertEquals(Long.valueOf(50_000L), stats.get("read_length.first_byte_micros"));
+        assertEquals(Long.valueOf(100 * MB), stats.get("read_length.bytes_per_second"));
+    }
+
+    public void testShortDownloadsDoNotCountTowardsThroughput() {
+        final COSReadLength readLength = new COSReadLength(new ByteSizeValue(16, ByteSizeUnit.MB), true, 5.0);
+        for (int i = 0; i < COSReadLength.MIN_SAMPLES; i++) {
+            sample(readLength, TimeUnit.MILLISECONDS.toNanos(50), between(0, (int) MB - 1), TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertEquals(16 * MB, readLength.preferredLength());
+    }
+
+    public void testLengthIsRoundedAndBounded() {
+        final COSReadLength slow = new COSReadLength(new ByteSizeValue(16, ByteSizeUnit.MB), true, 5.0);
+        final COSReadLength fast = new COSReadLength(new ByteSizeValue(16, ByteSizeUnit.MB), true, 5.0);
+        final COSReadLength moderate = new COSReadLength(new ByteSizeValue(16, ByteSizeUnit.MB), true, 50.0);
+        for (int i = 0; i < COSReadLength.MIN_SAMPLES; i++) {
+            sample(slow, TimeUnit.MILLISECONDS.toNanos(1), MB, TimeUnit.SECONDS.toNanos(1));
+            sample(fast, TimeUnit.SECONDS.toNanos(1), 1000 * MB, TimeUnit.SECONDS.toNanos(1));
+            sample(moderate, TimeUnit.MILLISECONDS.toNanos(25), 100 * MB, TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(COSReadLength.MIN_ADAPTIVE_LENGTH, slow.preferredLength());
+        assertEquals(COSReadLength.MAX_ADAPTIVE_LENGTH, fast.preferredLength());
+        // 2.5mb, rounded up to whole megabytes
+        assertEquals(3 * MB, moderate.preferredLength());
+    }
+
+    private static void sample(COSReadLength readLength, long firstByteNanos, long bytes, long transferNanos) {
+        readLength.onFirstByte(firstByteNanos);
+        readLength.onTransfer(bytes, transferNanos);
+    }
+}
@@ -0,0 +1,157 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.model.COSObject;
+import com.qcloud.cos.model.COSObjectInputStream;
+import com.qcloud.cos.model.COSObjectSummary;
+import com.qcloud.cos.model.GetObjectRequest;
+import com.qcloud.cos.model.ListObjectsRequest;
+import com.qcloud.cos.model.ObjectListing;
+import com.qcloud.cos.model.ObjectMetadata;
+import org.apache.http.client.methods.HttpGet;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CosReadOnlyCacheTests extends ESTestCase {
+
+    private static final TimeValue TTL = TimeValue.timeValueMinutes(1);
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final AtomicLong nanoTime = new AtomicLong(randomLong());
+    private final AtomicLong notModified = new AtomicLong();
+    private final COSClient client = mockClient();
+    private final COSBlobStore blobStore = blobStore();
+    private final BlobContainer root = blobStore.blobContainer(BlobPath.EMPTY.add("base"));
+
+    public void testIndexLatestIsRevalidatedByETag() throws IOException {
+        put("base/index.latest", "1");
+        put("base/index-1", "generation 1");
+        assertEquals("1", read(root, OperationPurpose.SNAPSHOT_METADATA, "index.latest"));
+        assertEquals(Set.of("index-1", "index.latest"), root.listBlobsByPrefix(OperationPurpose.SNAPSHOT_METADATA, "index").keySet());
+
+        // a new generation is only seen once the time to live passed
+        put("base/index.latest", "2");
+        put("base/index-2", "generation 2");
+        assertEquals("1", read(root, OperationPurpose.SNAPSHOT_METADATA, "index.latest"));
+        assertEquals(Set.of("index-1", "index.latest"), root.listBlobsByPrefix(OperationPurpose.SNAPSHOT_METADATA, "index").keySet());
+        verify(client, times(1)).getObject(any(GetObjectRequest.class));
+        verify(client, times(1)).listObjects(any(ListObjectsRequest.class));
+
+        // but then invalidates what was listed before, even if the listing itself did not expire yet
+        nanoTime.addAndGet(TTL.nanos());
+        assertEquals("2", read(root, OperationPurpose.SNAPSHOT_METADATA, "index.latest"));
+        assertEquals(Set.of("index-1", "index-2", "index.latest"),
+                root.listBlobsByPrefix(OperationPurpose.SNAPSHOT_METADATA, "index").keySet());
+
+        // an unchanged index.latest is revalidated without downloading it and keeps the listings
+        nanoTime.addAndGet(TTL.nanos());
+        root.listBlobsByPrefix(OperationPurpose.SNAPSHOT_METADATA, "index");
+        assertEquals("2", read(root, OperationPurpose.SNAPSHOT_METADATA, "index.latest"));
+        assertEquals(1L, notModified.get());
+        assertEquals(Set.of("index-1", "index-2", "index.latest"),
+                root.listBlobsByPrefix(OperationPurpose.SNAPSHOT_METADATA, "index").keySet());
+        verify(client, times(3)).getObject(any(GetObjectRequest.class));
+        verify(client, times(3)).listObjects(any(ListObjectsRequest.class));
+
+        final Map<String, Long> stats = blobStore.detailedStats();
+        assertEquals(Long.valueOf(1L), stats.get("readonly_cache.invalidations"));
+        assertEquals(Long.valueOf(1L), stats.get("readonly_cache.index_latest_not_modified"));
+    }
+
+    public void testOnlyImmutableMetadataBlobsAreCached() throws IOException {
+        final BlobContainer shard = blobStore.blobContainer(BlobPath.EMPTY.add("base").add("indices").add("uuid").add("0"));
+        put("base/indices/uuid/0/snap-uuid.dat", "snapshot");
+        put("base/indices/uuid/0/__data", "data");
+        for (int i = 0; i < 3; i++) {
+            assertEquals("snapshot", read(shard, OperationPurpose.SNAPSHOT_METADATA, "snap-uuid.dat"));
+            assertEquals("data", read(shard, OperationPurpose.SNAPSHOT_DATA, "__data"));
+        }
+        verify(client, times(4)).getObject(any(GetObjectRequest.class));
+        assertEquals(Set.of("0"), blobStore.blobContainer(BlobPath.EMPTY.add("base").add("indices").add("uuid"))
+                .children(OperationPurpose.SNAPSHOT_METADATA).keySet());
+
+        final Map<String, Long> stats = blobStore.detailedStats();
+        assertEquals(Long.valueOf(2L), stats.get("readonly_cache.blob_hits"));
+        assertEquals(Long.valueOf(1L), stats.get("readonly_cache.blob_misses"));
+        assertEquals(Long.valueOf("snapshot".length()), stats.get("readonly_cache.blob_bytes"));
+    }
+
+    private void put(String key, String content) {
+        objects.put(key, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(BlobContainer container, OperationPurpose purpose, String blobName) throws IOException {
+        try (InputStream stream = container.readBlob(purpose, blobName)) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private COSClient mockClient() {
+        final COSClient client = mock(COSClient.class);
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            final GetObjectRequest request = invocation.getArgument(0);
+            final byte[] content = objects.get(request.getKey());
+            final String eTag = Integer.toHexString(new String(content, StandardCharsets.UTF_8).hashCode());
+            if (request.getNonmatchingETagConstraints().contains(eTag)) {
+                notModified.incrementAndGet();
+                return null;
+            }
+            final COSObject cosObject = new COSObject();
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(content.length);
+            metadata.setHeader("ETag", eTag);
+            cosObject.setObjectMetadata(metadata);
+            cosObject.setObjectContent(new COSObjectInputStream(new ByteArrayInputStream(content), new HttpGet()));
+            return cosObject;
+        });
+        when(client.listObjects(any(ListObjectsRequest.class))).thenAnswer(invocation -> {
+            final ListObjectsRequest request = invocation.getArgument(0);
+            final ObjectListing listing = new ObjectListing();
+            new TreeMap<>(objects).forEach((key, content) -> {
+                if (key.startsWith(request.getPrefix()) == false) {
+                    return;
+                }
+                final int end = key.indexOf('/', request.getPrefix().length());
+                if (end >= 0) {
+                    if (listing.getCommonPrefixes().contains(key.substring(0, end + 1)) == false) {
+                        listing.getCommonPrefixes().add(key.substring(0, end + 1));
+                    }
+                } else {
+                    final COSObjectSummary summary = new COSObjectSummary();
+                    summary.setKey(key);
+                    summary.setSize(content.length);
+                    listing.getObjectSummaries().add(summary);
+                }
+            });
+            return listing;
+        });
+        return client;
+    }
+
+    private COSBlobStore blobStore() {
+        return CosBlobStoreTestHelper.blobStore(client)
+                .readOnlyCache(new COSReadOnlyCache(TTL, new ByteSizeValue(1, ByteSizeUnit.MB), nanoTime::get))
+                .build();
+    }
+}
@@ -0,0 +1,76 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.core.Releasable;
+import org.elasticsearch.repositories.cos.COSBlobStore.Operation;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class CosRequestSchedulerTests extends ESTestCase {
+
+    public void testClassification() {
+        assertEquals(COSRequestScheduler.RequestClass.METADATA,
+                COSRequestScheduler.classify(randomFrom(Operation.values()), OperationPurpose.SNAPSHOT_METADATA));
+        assertEquals(COSRequestScheduler.RequestClass.READS,
+                COSRequestScheduler.classify(Operation.GET_OBJECT, OperationPurpose.SNAPSHOT_DATA));
+        assertEquals(COSRequestScheduler.RequestClass.BULK,
+                COSRequestScheduler.classify(Operation.UPLOAD_PART, OperationPurpose.SNAPSHOT_DATA));
+    }
+
+    public void testWaitingMetadataRequestsGoFirst() throws Exception {
+        final COSRequestScheduler scheduler = new COSRequestScheduler(1, 0, 0, 0, null);
+        final Releasable running = scheduler.acquire(Operation.UPLOAD_PART, OperationPurpose.SNAPSHOT_DATA);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread bulk = waiter(scheduler, Operation.PUT_OBJECT, OperationPurpose.SNAPSHOT_DATA, "bulk", order);
+        assertBusy(() -> assertEquals(Long.valueOf(1L), stats(scheduler).get("scheduler.bulk.queued")));
+        final Thread read = waiter(scheduler, Operation.GET_OBJECT, OperationPurpose.SNAPSHOT_DATA, "read", order);
+        final Thread metadata = waiter(scheduler, Operation.PUT_OBJECT, OperationPurpose.SNAPSHOT_METADATA, "metadata", order);
+        assertBusy(() -> {
+            assertEquals(Long.valueOf(1L), stats(scheduler).get("scheduler.reads.queued"));
+            assertEquals(Long.valueOf(1L), stats(scheduler).get("scheduler.metadata.queued"));
+        });
+        running.close();
+        bulk.join();
+        read.join();
+        metadata.join();
+        assertEquals(List.of("metadata", "read", "bulk"), order);
+        final Map<String, Long> stats = stats(scheduler);
+        assertEquals(Long.valueOf(1L), stats.get("scheduler.metadata.waits"));
+        assertEquals(Long.valueOf(0L), stats.get("scheduler.bulk.active"));
+    }
+
+    public void testClassLimitLeavesRoomForOtherClasses() throws Exception {
+        final COSRequestScheduler scheduler = new COSRequestScheduler(between(3, 10), 0, 0, 1, null);
+        final Releasable upload = scheduler.acquire(Operation.UPLOAD_PART, OperationPurpose.SNAPSHOT_DATA);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread bulk = waiter(scheduler, Operation.UPLOAD_PART, OperationPurpose.SNAPSHOT_DATA, "bulk", order);
+        assertBusy(() -> assertEquals(Long.valueOf(1L), stats(scheduler).get("scheduler.bulk.queued")));
+        // admitted right away although an upload waits
+        scheduler.acquire(Operation.GET_OBJECT, OperationPurpose.SNAPSHOT_METADATA).close();
+        assertTrue(order.isEmpty());
+        upload.close();
+        bulk.join();
+        assertEquals(List.of("bulk"), order);
+    }
+
+    private static Thread waiter(COSRequestScheduler scheduler, Operation operation, OperationPurpose purpose, String name,
+                                 List<String> order) {
+        final Thread thread = new Thread(() -> {
+            try (Releasable ignored = scheduler.acquire(operation, purpose)) {
+                order.add(name);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static Map<String, Long> stats(COSRequestScheduler scheduler) {
+        final Map<String, Long> stats = new HashMap<>();
+        scheduler.addStats(stats);
+        return stats;
+    }
+}
@@ -0,0 +1,96 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.exception.CosClientException;
+import com.qcloud.cos.exception.CosServiceException;
+import com.qcloud.cos.model.CompleteMultipartUploadRequest;
+import com.qcloud.cos.model.ListObjectsRequest;
+import com.qcloud.cos.model.ObjectListing;
+import com.qcloud.cos.model.PutObjectRequest;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.test.ESTestCase;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static org.elasticsearch.repositories.cos.COSBlobStore.Operation;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CosRetryPolicyTests extends ESTestCase {
+
+    public void testFailuresAreClassified() {
+        assertTrue(COSRetryPolicy.isRetryable(Operation.LIST_OBJECTS, serviceException(500, "InternalError")));
+        assertTrue(COSRetryPolicy.isRetryable(Operation.DELETE_OBJECTS, readTimeout()));
+        assertTrue(COSRetryPolicy.isRetryable(Operation.HEAD_OBJECT, serviceException(400, "RequestTimeout")));
+        assertFalse(COSRetryPolicy.isRetryable(Operation.HEAD_OBJECT, serviceException(404, "NoSuchKey")));
+        assertFalse(COSRetryPolicy.isRetryable(Operation.LIST_OBJECTS, serviceException(403, "AccessDenied")));
+        assertFalse(COSRetryPolicy.isRetryable(Operation.LIST_OBJECTS, new CosClientException("invalid argument")));
+
+        // a completion that may have taken effect is not sent again, one that was turned away is
+        assertFalse(COSRetryPolicy.isRetryable(Operation.COMPLETE_MULTIPART_UPLOAD, serviceException(500, "InternalError")));
+        assertFalse(COSRetryPolicy.isRetryable(Operation.COMPLETE_MULTIPART_UPLOAD, readTimeout()));
+        assertTrue(COSRetryPolicy.isRetryable(Operation.COMPLETE_MULTIPART_UPLOAD, serviceException(503, "SlowDown")));
+        assertTrue(COSRetryPolicy.isRetryable(Operation.COMPLETE_MULTIPART_UPLOAD, serviceException(429, "TooManyRequests")));
+        assertTrue(COSRetryPolicy.isRetryable(Operation.COMPLETE_MULTIPART_UPLOAD,
+                new CosClientException("connection refused", new ConnectException("connection refused"))));
+
+        assertTrue(COSRetryPolicy.isRetryable(Operation.UPLOAD_PART, serviceException(400, "BadDigest")));
+        assertFalse(COSRetryPolicy.isRetryable(Operation.PUT_OBJECT, serviceException(400, "BadDigest")));
+    }
+
+    public void testTransientFailuresAreRetried() {
+        final COSClient client = mock(COSClient.class);
+        final ObjectListing listing = new ObjectListing();
+        when(client.listObjects(any(ListObjectsRequest.class)))
+                .thenThrow(serviceException(503, "SlowDown"))
+                .thenThrow(serviceException(500, "InternalError"))
+                .thenReturn(listing);
+        when(client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+                .thenThrow(serviceException(500, "InternalError"));
+        when(client.putObject(any(PutObjectRequest.class))).thenThrow(serviceException(503, "SlowDown"));
+        final COSBlobStore blobStore = blobStore(client, 3);
+
+        assertSame(listing, blobStore.execute(Operation.LIST_OBJECTS, OperationPurpose.SNAPSHOT_METADATA, "prefix",
+                c -> c.listObjects(new ListObjectsRequest())));
+        assertEquals(Long.valueOf(2L), blobStore.detailedStats().get("retries.ListObjects"));
+        assertEquals(Long.valueOf(3L), blobStore.stats().get("ListObjects"));
+        // the metering API only gets request counts, the retries are reported separately
+        assertEquals(Arrays.stream(Operation.values()).map(Operation::getKey).collect(Collectors.toSet()), blobStore.stats().keySet());
+
+        expectThrows(CosServiceException.class, () -> blobStore.executeVoid(Operation.COMPLETE_MULTIPART_UPLOAD,
+                OperationPurpose.SNAPSHOT_DATA, "blob", c -> c.completeMultipartUpload(mock(CompleteMultipartUploadRequest.class))));
+        verify(client, times(1)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+        // a body that was streamed once cannot be sent again
+        expectThrows(CosServiceException.class, () -> blobStore.execute(Operation.PUT_OBJECT, OperationPurpose.SNAPSHOT_DATA, "blob",
+                c -> c.putObject(mock(PutObjectRequest.class))));
+        verify(client, times(1)).putObject(any(PutObjectRequest.class));
+
+        // unless the caller rewinds it
+        expectThrows(CosServiceException.class, () -> blobStore.executeReplayable(Operation.PUT_OBJECT, OperationPurpose.SNAPSHOT_DATA,
+                "blob", 0L, c -> c.putObject(mock(PutObjectRequest.class))));
+        verify(client, times(1 + 4)).putObject(any(PutObjectRequest.class));
+        assertEquals(Long.valueOf(3L), blobStore.detailedStats().get("retries.PutObject"));
+    }
+
+    private static COSBlobStore blobStore(COSClient client, int maxRetries) {
+        return CosBlobStoreTestHelper.blobStore(client).retryPolicy(new COSRetryPolicy(maxRetries)).build();
+    }
+
+    private static CosClientException readTimeout() {
+        return new CosClientException("read timed out", new SocketTimeoutException("read timed out"));
+    }
+
+    private static CosServiceException serviceException(int statusCode, String errorCode) {
+        final CosServiceException e = new CosServiceException("failure");
+        e.setStatusCode(statusCode);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+}
@@ -0,0 +1,313 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.exception.CosServiceException;
+import com.qcloud.cos.model.COSObject;
+import com.qcloud.cos.model.COSObjectInputStream;
+import com.qcloud.cos.model.GetObjectRequest;
+import com.qcloud.cos.model.ObjectMetadata;
+import org.apache.http.client.methods.HttpGet;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.ByteArray;
+import org.elasticsearch.common.util.PageCacheRecycler;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CosRetryingInputStreamTests extends ESTestCase {
+
+    public void testSingleByteReadsAreServedFromBuffer() throws IOException {
+        final byte[] data = randomByteArrayOfLength(between(1, 5 * PageCacheRecycler.BYTE_PAGE_SIZE));
+        final AtomicInteger underlyingReads = new AtomicInteger();
+        final COSBlobStore blobStore = blobStore(data, underlyingReads);
+        try (CosRetryingInputStream stream = new CosRetryingInputStream(OperationPurpose.SNAPSHOT_DATA, blobStore, "blob")) {
+            for (byte b : data) {
+                assertEquals(b & 0xFF, stream.read());
+            }
+            assertEquals(-1, stream.read());
+        }
+        // one bulk read per page plus the read that hits the end of the stream
+        assertThat(underlyingReads.get(), lessThanOrEqualTo(data.length / PageCacheRecycler.BYTE_PAGE_SIZE + 2));
+    }
+
+    public void testMixedReadsReturnAllBytes() throws IOException {
+        final byte[] data = randomByteArrayOfLength(between(1, 10 * PageCacheRecycler.BYTE_PAGE_SIZE));
+        final byte[] result = new byte[data.length];
+        try (CosRetryingInputStream stream = new CosRetryingInputStream(OperationPurpose.SNAPSHOT_DATA, blobStore(data, null), "blob")) {
+            int offset = 0;
+            while (offset < result.length) {
+                if (randomBoolean()) {
+                    result[offset++] = (byte) stream.read();
+                } else {
+                    final int read = stream.read(result, offset, between(0, Math.min(result.length - offset, 3 * PageCacheRecycler.BYTE_PAGE_SIZE)));
+                    assertNotEquals(-1, read);
+                    offset += read;
+                }
+            }
+            assertEquals(-1, stream.read());
+            assertEquals(-1, stream.read(new byte[1], 0, 1));
+        }
+        assertArrayEquals(data, result);
+    }
+
+    /**
+     * Reads 256MB in page-sized chunks and checks that the read path itself allocates next to nothing.
+     */
+    public void testBulkReadsDoNotAllocate() throws IOException {
+        final java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue("thread allocation tracking is required", threadMXBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported());
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+
+        final long length = new ByteSizeValue(256, ByteSizeUnit.MB).getBytes();
+        final COSClient client = mock(COSClient.class);
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> cosObject(new ZeroInputStream(length), length));
+        final COSBlobStore blobStore = blobStore(client);
+        final byte[] target = new byte[randomFrom(1024, PageCacheRecycler.BYTE_PAGE_SIZE, 64 * 1024)];
+        try (CosRetryingInputStream stream = new CosRetryingInputStream(OperationPurpose.SNAPSHOT_DATA, blobStore, "blob")) {
+            final long threadId = Thread.currentThread().getId();
+            final long before = allocations.getThreadAllocatedBytes(threadId);
+            long total = 0;
+            int read;
+            while ((read = stream.read(target, 0, target.length)) != -1) {
+                total += read;
+            }
+            final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+            assertEquals(length, total);
+            assertThat(allocated, lessThan(new ByteSizeValue(64, ByteSizeUnit.KB).getBytes()));
+        }
+    }
+
+    public void testSlowDownloadIsReopened() throws IOException {
+        final byte[] data = randomByteArrayOfLength(between(4, 10) * PageCacheRecycler.BYTE_PAGE_SIZE);
+        final AtomicLong nanoTime = new AtomicLong();
+        final AtomicInteger requests = new AtomicInteger();
+        final COSClient client = mock(COSClient.class);
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            final GetObjectRequest request = invocation.getArgument(0);
+            final int offset = request.getRange() == null ? 0 : Math.toIntExact(request.getRange()[0]);
+            final boolean slow = requests.getAndIncrement() == 0;
+            final InputStream content = new ByteArrayInputStream(data, offset, data.length - offset) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    // the first response trickles along at a page per minute
+                    nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(slow ? 60 : 0));
+                    return super.read(b, off, len);
+                }
+            };
+            return cosObject(content, data.length - offset);
+        });
+        final COSStallWatchdog watchdog = new COSStallWatchdog(TimeValue.ZERO, new ByteSizeValue(1, ByteSizeUnit.KB),
+                TimeValue.timeValueSeconds(20), nanoTime::get);
+        final COSBlobStore blobStore = blobStore(client, watchdog);
+        try (CosRetryingInputStream stream = new CosRetryingInputStream(OperationPurpose.SNAPSHOT_DATA, blobStore, "blob")) {
+            assertArrayEquals(data, stream.readAllBytes());
+        }
+        assertEquals(2, requests.get());
+        assertEquals(Long.valueOf(1L), blobStore.detailedStats().get("stalled_reads.too_slow"));
+    }
+
+    public void testBlockedReadIsAbortedAndReopened() throws Exception {
+        final byte[] data = randomByteArrayOfLength(between(1, 4) * PageCacheRecycler.BYTE_PAGE_SIZE);
+        final AtomicLong nanoTime = new AtomicLong();
+        final AtomicInteger requests = new AtomicInteger();
+        final CountDownLatch closed = new CountDownLatch(1);
+        final COSClient client = mock(COSClient.class);
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            if (requests.getAndIncrement() > 0) {
+                return cosObject(new ByteArrayInputStream(data), data.length);
+            }
+            // the first response never sends a byte until the watchdog aborts it
+            return cosObject(new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        closed.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    throw new IOException("connection aborted");
+                }
+
+                @Override
+                public void close() {
+                    closed.countDown();
+                }
+            }, data.length);
+        });
+        final COSStallWatchdog watchdog = new COSStallWatchdog(TimeValue.timeValueSeconds(30), ByteSizeValue.ZERO, TimeValue.ZERO,
+                nanoTime::get);
+        final COSBlobStore blobStore = blobStore(client, watchdog);
+        final Thread checker = new Thread(() -> {
+            while (closed.getCount() > 0) {
+                nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(1));
+                watchdog.check();
+                Thread.yield();
+            }
+        });
+        checker.start();
+        try (CosRetryingInputStream stream = new CosRetryingInputStream(OperationPurpose.SNAPSHOT_DATA, blobStore, "blob")) {
+            assertArrayEquals(data, stream.readAllBytes());
+        } finally {
+            checker.join();
+        }
+        assertEquals(2, requests.get());
+        assertEquals(Long.valueOf(1L), blobStore.detailedStats().get("stalled_reads.timed_out"));
+    }
+
+    public void testBufferIsReleasedIfTheBlobCannotBeOpened() {
+        final COSClient client = mock(COSClient.class);
+        final CosServiceException notFound = new CosServiceException("not found");
+        notFound.setStatusCode(404);
+        when(client.getObject(any(GetObjectRequest.class))).thenThrow(notFound);
+        final BigArrays bigArrays = mock(BigArrays.class);
+        final ByteArray page = mock(ByteArray.class);
+        when(page.hasArray()).thenReturn(true);
+        when(page.array()).thenReturn(new byte[PageCacheRecycler.BYTE_PAGE_SIZE]);
+        when(bigArrays.newByteArray(PageCacheRecycler.BYTE_PAGE_SIZE, false)).thenReturn(page);
+        final COSBlobStore blobStore = COSBlobStore.builder(CosBlobStoreTestHelper.endpoints(client), CosBlobStoreTestHelper.BUCKET,
+                new ByteSizeValue(5, ByteSizeUnit.MB), bigArrays).build();
+
+        expectThrows(NoSuchFileException.class, () -> new CosRetryingInputStream(OperationPurpose.SNAPSHOT_DATA, blobStore, "blob"));
+        verify(page).close();
+    }
+
+    public void testBufferIsReleasedIfTheDownloadCannotBeWatched() {
+        final COSClient client = mock(COSClient.class);
+        final COSStallWatchdog stallWatchdog = mock(COSStallWatchdog.class);
+        when(stallWatchdog.watch("blob")).thenThrow(new IllegalStateException("cannot watch"));
+        final BigArrays bigArrays = mock(BigArrays.class);
+        final ByteArray page = mock(ByteArray.class);
+        when(page.hasArray()).thenReturn(true);
+        when(page.array()).thenReturn(new byte[PageCacheRecycler.BYTE_PAGE_SIZE]);
+        when(bigArrays.newByteArray(PageCacheRecycler.BYTE_PAGE_SIZE, false)).thenReturn(page);
+        final COSBlobStore blobStore = COSBlobStore.builder(CosBlobStoreTestHelper.endpoints(client), CosBlobStoreTestHelper.BUCKET,
+                new ByteSizeValue(5, ByteSizeUnit.MB), bigArrays).stallWatchdog(stallWatchdog).build();
+
+        expectThrows(IllegalStateException.class, () -> new CosRetryingInputStream(OperationPurpose.SNAPSHOT_DATA, blobStore, "blob"));
+        verify(page).close();
+        verify(client, never()).getObject(any(GetObjectRequest.class));
+    }
+
+    public void testReopeningAndRetryingShareOneBudget() throws IOException {
+        final byte[] data = randomByteArrayOfLength(between(2, 4) * PageCacheRecycler.BYTE_PAGE_SIZE);
+        final AtomicInteger requests = new AtomicInteger();
+        final COSClient client = mock(COSClient.class);
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            if (requests.getAndIncrement() > 0) {
+                final CosServiceException e = new CosServiceException("slow down");
+                e.setStatusCode(503);
+                throw e;
+            }
+            // the first response breaks off after a page
+            final InputStream page = new ByteArrayInputStream(data, 0, PageCacheRecycler.BYTE_PAGE_SIZE);
+            return cosObject(new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    final int read = page.read();
+                    if (read == -1) {
+                        throw new IOException("connection reset");
+                    }
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    final int read = page.read(b, off, len);
+                    if (read == -1) {
+                        throw new IOException("connection reset");
+                    }
+                    return read;
+                }
+            }, data.length);
+        });
+        // the single retry is spent on reopening the download, the throttled request that reopens it is not sent again
+        try (CosRetryingInputStream stream = new CosRetryingInputStream(OperationPurpose.SNAPSHOT_DATA, blobStore(client), "blob")) {
+            expectThrows(CosServiceException.class, stream::readAllBytes);
+        }
+        assertEquals(2, requests.get());
+    }
+
+    private static COSBlobStore blobStore(byte[] data, AtomicInteger underlyingReads) {
+        final COSClient client = mock(COSClient.class);
+        when(client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            final InputStream content = new ByteArrayInputStream(data) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (underlyingReads != null) {
+                        underlyingReads.incrementAndGet();
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+            return cosObject(content, data.length);
+        });
+        return blobStore(client);
+    }
+
+    private static COSBlobStore blobStore(COSClient client) {
+        return blobStore(client, COSStallWatchdog.DISABLED);
+    }
+
+    private static COSBlobStore blobStore(COSClient client, COSStallWatchdog stallWatchdog) {
+        return CosBlobStoreTestHelper.blobStore(client).retryPolicy(new COSRetryPolicy(1)).stallWatchdog(stallWatchdog).build();
+    }
+
+    private static COSObject cosObject(InputStream content, long length) {
+        final COSObject cosObject = new COSObject();
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(length);
+        cosObject.setObjectMetadata(metadata);
+        cosObject.setObjectContent(new COSObjectInputStream(content, new HttpGet()));
+        return cosObject;
+    }
+
+    private static class ZeroInputStream extends InputStream {
+        private long remaining;
+
+        ZeroInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            final int read = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + read, (byte) 0);
+            remaining -= read;
+            return read;
+        }
+    }
+}
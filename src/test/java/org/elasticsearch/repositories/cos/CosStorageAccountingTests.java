@@ -0,0 +1,97 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.model.COSObjectSummary;
+import com.qcloud.cos.model.ListObjectsRequest;
+import com.qcloud.cos.model.ObjectListing;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.IndexVersion;
+import org.elasticsearch.repositories.IndexId;
+import org.elasticsearch.repositories.RepositoryData;
+import org.elasticsearch.repositories.ShardGeneration;
+import org.elasticsearch.repositories.ShardGenerations;
+import org.elasticsearch.snapshots.SnapshotId;
+import org.elasticsearch.snapshots.SnapshotState;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.xcontent.json.JsonXContent;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CosStorageAccountingTests extends ESTestCase {
+
+    @SuppressWarnings("unchecked")
+    public void testBlobsAreAccountedPerIndex() throws Exception {
+        final SnapshotId snapshotId = new SnapshotId("snapshot", "snapshot-uuid");
+        final IndexId indexId = new IndexId("index", "index-uuid");
+        final RepositoryData repositoryData = RepositoryData.EMPTY.addSnapshot(snapshotId,
+                new RepositoryData.SnapshotDetails(SnapshotState.SUCCESS, IndexVersion.current(), 0L, 0L, null),
+                ShardGenerations.builder().put(indexId, 0, new ShardGeneration("current")).build(), Map.of(), Map.of());
+
+        final Map<String, Long> blobs = new TreeMap<>();
+        blobs.put("base/indices/index-uuid/meta-1.dat", 10L);
+        blobs.put("base/indices/index-uuid/0/index-current", 20L);
+        blobs.put("base/indices/index-uuid/0/index-previous", 30L);
+        blobs.put("base/indices/index-uuid/0/snap-snapshot-uuid.dat", 40L);
+        blobs.put("base/indices/index-uuid/0/snap-deleted-uuid.dat", 50L);
+        blobs.put("base/indices/index-uuid/0/__data", 1000L);
+        blobs.put("base/indices/index-uuid/1/__data", 2000L);
+        blobs.put("base/indices/dangling-uuid/0/__data", 5000L);
+        blobs.put("base/index-0", 1L);
+
+        final COSStorageAccounting accounting = new COSStorageAccounting(blobStore(blobs), BlobPath.EMPTY.add("base"), repositoryData,
+                between(1, 4), EsExecutors.DIRECT_EXECUTOR_SERVICE, () -> 0L);
+        accounting.start();
+        assertEquals(COSStorageAccounting.State.COMPLETED, accounting.state());
+
+        final Map<String, Object> result = XContentHelper.convertToMap(JsonXContent.jsonXContent, Strings.toString(accounting), false);
+        final Map<String, Object> index = (Map<String, Object>) ((Map<String, Object>) result.get("indices")).get("index");
+        assertEquals("index-uuid", index.get("id"));
+        assertEquals(3000, index.get("data_bytes"));
+        assertEquals(70, index.get("metadata_bytes"));
+        assertEquals(80, index.get("stale_bytes"));
+        assertEquals(7, index.get("objects"));
+        final Map<String, Object> unreferenced = (Map<String, Object>) result.get("unreferenced_indices");
+        assertEquals(5000, unreferenced.get("stale_bytes"));
+        assertEquals(8150, ((Map<String, Object>) result.get("total")).get("bytes"));
+    }
+
+    /**
+     * A blob store over the given keys and sizes, whose listings honour the prefix and the delimiter of the request.
+     */
+    private static COSBlobStore blobStore(Map<String, Long> blobs) {
+        final COSClient client = mock(COSClient.class);
+        when(client.listObjects(any(ListObjectsRequest.class))).thenAnswer(invocation -> {
+            final ListObjectsRequest request = invocation.getArgument(0);
+            final ObjectListing listing = new ObjectListing();
+            final TreeSet<String> commonPrefixes = new TreeSet<>();
+            blobs.forEach((key, size) -> {
+                if (key.startsWith(request.getPrefix()) == false) {
+                    return;
+                }
+                final String delimiter = request.getDelimiter();
+                final int end = delimiter == null ? -1 : key.indexOf(delimiter, request.getPrefix().length());
+                if (end >= 0) {
+                    commonPrefixes.add(key.substring(0, end + 1));
+                } else {
+                    final COSObjectSummary summary = new COSObjectSummary();
+                    summary.setKey(key);
+                    summary.setSize(size);
+                    listing.getObjectSummaries().add(summary);
+                }
+            });
+            listing.setCommonPrefixes(new ArrayList<>(commonPrefixes));
+            return listing;
+        });
+        return CosBlobStoreTestHelper.blobStore(client).build();
+    }
+}
@@ -0,0 +1,115 @@
+package org.elasticsearch.repositories.cos;
+
+import com.qcloud.cos.COSClient;
+import com.qcloud.cos.model.COSObjectSummary;
+import com.qcloud.cos.model.DeleteObjectsRequest;
+import com.qcloud.cos.model.ListObjectsRequest;
+import com.qcloud.cos.model.ObjectListing;
+import com.qcloud.cos.model.PutObjectRequest;
+import com.qcloud.cos.model.PutObjectResult;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CosStripedBlobStoreTests extends ESTestCase {
+
+    private static final List<String> DATA_BUCKETS = List.of("data-0", "data-1");
+
+    // the keys and sizes held by every bucket
+    private final Map<String, Map<String, Long>> buckets = new ConcurrentHashMap<>();
+
+    public void testDataBlobsAreSpreadOverDataBuckets() throws Exception {
+        final BlobContainer container = blobStore().blobContainer(BlobPath.EMPTY.add("indices").add("uuid").add("0"));
+        for (int i = 0; i < 20; i++) {
+            container.writeBlob(OperationPurpose.SNAPSHOT_DATA, "__" + i, new BytesArray(new byte[i]), false);
+        }
+        container.writeBlob(OperationPurpose.SNAPSHOT_METADATA, "index-0", new BytesArray(new byte[1]), false);
+
+        assertEquals(Set.of("indices/uuid/0/index-0"), buckets.get("primary").keySet());
+        assertEquals(20, buckets.get("data-0").size() + buckets.get("data-1").size());
+        assertFalse(buckets.get("data-0").isEmpty());
+        assertFalse(buckets.get("data-1").isEmpty());
+
+        assertEquals(21, container.listBlobs(OperationPurpose.SNAPSHOT_DATA).size());
+        assertEquals(Set.of("index-0"), container.listBlobsByPrefix(OperationPurpose.SNAPSHOT_METADATA, "index-").keySet());
+        assertEquals(Set.of("0"), blobStore().blobContainer(BlobPath.EMPTY.add("indices").add("uuid"))
+                .children(OperationPurpose.SNAPSHOT_DATA).keySet());
+
+        container.deleteBlobsIgnoringIfNotExists(OperationPurpose.SNAPSHOT_DATA, List.of("__3", "__4", "index-0").iterator());
+        assertEquals(18, container.listBlobs(OperationPurpose.SNAPSHOT_DATA).size());
+
+        container.delete(OperationPurpose.SNAPSHOT_DATA);
+        buckets.values().forEach(keys -> assertTrue(keys.toString(), keys.isEmpty()));
+    }
+
+    public void testBlobsAreRoutedByKey() {
+        final COSBlobStore blobStore = blobStore();
+        assertEquals("primary", blobStore.bucket("indices/uuid/0/index-0"));
+        assertEquals("primary", blobStore.bucket("indices/uuid/0/snap-uuid.dat"));
+        final String key = "indices/uuid/0/__" + randomAlphaOfLength(10);
+        assertTrue(DATA_BUCKETS.contains(blobStore.bucket(key)));
+        assertEquals(blobStore.bucket(key), blobStore().bucket(key));
+        assertEquals(List.of("primary", "data-0", "data-1"), blobStore.buckets());
+    }
+
+    private COSBlobStore blobStore() {
+        final COSClient client = mock(COSClient.class);
+        when(client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            final PutObjectRequest request = invocation.getArgument(0);
+            bucket(request.getBucketName()).put(request.getKey(), request.getMetadata().getContentLength());
+            return new PutObjectResult();
+        });
+        when(client.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+            final DeleteObjectsRequest request = invocation.getArgument(0);
+            request.getKeys().forEach(key -> bucket(request.getBucketName()).remove(key.getKey()));
+            return null;
+        });
+        when(client.listObjects(any(ListObjectsRequest.class))).thenAnswer(invocation -> {
+            final ListObjectsRequest request = invocation.getArgument(0);
+            final ObjectListing listing = new ObjectListing();
+            final TreeSet<String> commonPrefixes = new TreeSet<>();
+            new TreeMap<>(bucket(request.getBucketName())).forEach((key, size) -> {
+                if (key.startsWith(request.getPrefix()) == false) {
+                    return;
+                }
+                final String delimiter = request.getDelimiter();
+                final int end = delimiter == null ? -1 : key.indexOf(delimiter, request.getPrefix().length());
+                if (end >= 0) {
+                    commonPrefixes.add(key.substring(0, end + 1));
+                } else {
+                    final COSObjectSummary summary = new COSObjectSummary();
+                    summary.setKey(key);
+                    summary.setSize(size);
+                    listing.getObjectSummaries().add(summary);
+                }
+            });
+            listing.setCommonPrefixes(new ArrayList<>(commonPrefixes));
+            return listing;
+        });
+        return COSBlobStore.builder(CosBlobStoreTestHelper.endpoints(client), "primary", new ByteSizeValue(5, ByteSizeUnit.MB),
+                        BigArrays.NON_RECYCLING_INSTANCE)
+                .dataBuckets(DATA_BUCKETS)
+                .build();
+    }
+
+    private Map<String, Long> bucket(String name) {
+        return buckets.computeIfAbsent(name, n -> new ConcurrentHashMap<>());
+    }
+}
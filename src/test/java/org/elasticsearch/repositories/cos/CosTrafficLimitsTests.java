@@ -0,0 +1,49 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.common.blobstore.OperationPurpose;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Set;
+
+public class CosTrafficLimitsTests extends ESTestCase {
+
+    public void testLimitsAreConvertedToBits() {
+        assertEquals(0L, COSTrafficLimits.toBitsPerSecond(ByteSizeValue.ZERO));
+        assertEquals(8L * 1024 * 1024, COSTrafficLimits.toBitsPerSecond(new ByteSizeValue(1, ByteSizeUnit.MB)));
+        assertEquals(COSTrafficLimits.MIN_BITS_PER_SECOND, COSTrafficLimits.toBitsPerSecond(new ByteSizeValue(1, ByteSizeUnit.KB)));
+        assertEquals(COSTrafficLimits.MAX_BITS_PER_SECOND, COSTrafficLimits.toBitsPerSecond(new ByteSizeValue(100, ByteSizeUnit.MB)));
+    }
+
+    public void testLimitsFollowSettingUpdates() {
+        final Settings settings = Settings.builder()
+                .put("cos.client.upload_traffic_limit.snapshot_data", "10mb")
+                .build();
+        // node settings stay in force below the dynamic ones, so start from none
+        final ClusterSettings clusterSettings = new ClusterSettings(Settings.EMPTY,
+                Set.<Setting<?>>of(COSClientSettings.UPLOAD_TRAFFIC_LIMIT, COSClientSettings.DOWNLOAD_TRAFFIC_LIMIT));
+        final COSTrafficLimits limits = COSTrafficLimits.create(Settings.EMPTY, clusterSettings);
+        assertEquals(0, limits.limit(OperationPurpose.SNAPSHOT_DATA, true));
+        clusterSettings.applySettings(settings);
+        assertEquals(80L * 1024 * 1024, limits.limit(OperationPurpose.SNAPSHOT_DATA, true));
+        assertEquals(0, limits.limit(OperationPurpose.SNAPSHOT_DATA, false));
+        assertEquals(0, limits.limit(OperationPurpose.SNAPSHOT_METADATA, true));
+
+        clusterSettings.applySettings(Settings.builder()
+                .put("cos.client.download_traffic_limit.snapshot_data", "1mb")
+                .build());
+        assertEquals(0, limits.limit(OperationPurpose.SNAPSHOT_DATA, true));
+        assertEquals(8L * 1024 * 1024, limits.limit(OperationPurpose.SNAPSHOT_DATA, false));
+
+        expectThrows(IllegalArgumentException.class, () -> clusterSettings.applySettings(Settings.builder()
+                .put("cos.client.upload_traffic_limit.no_such_purpose", "1mb")
+                .build()));
+        expectThrows(IllegalArgumentException.class, () -> new COSTrafficLimits(Settings.builder()
+                .put("cos.client.upload_traffic_limit.no_such_purpose", "1mb")
+                .build()));
+    }
+}
@@ -0,0 +1,48 @@
+package org.elasticsearch.repositories.cos;
+
+import org.elasticsearch.test.ESTestCase;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class LatencyHistogramTests extends ESTestCase {
+
+    public void testBucketBoundsCoverEveryValue() {
+        for (int i = 0; i < 10_000; i++) {
+            final long value = randomLongBetween(0L, LatencyHistogram.MAX_TRACKABLE_VALUE);
+            final int index = LatencyHistogram.bucketIndex(value);
+            assertThat(LatencyHistogram.bucketUpperBound(index), greaterThanOrEqualTo(value));
+            if (index > 0) {
+                assertThat(LatencyHistogram.bucketUpperBound(index - 1), lessThanOrEqualTo(value - 1));
+            }
+        }
+    }
+
+    public void testPercentilesAreWithinRelativeError() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.percentile(99.0));
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000L, histogram.count());
+        assertEquals(500500L, histogram.sum());
+        assertEquals(1000L, histogram.max());
+        assertBetween(histogram.percentile(50.0), 500L, 500L + 500L / LatencyHistogram.SUB_BUCKET_COUNT);
+        assertBetween(histogram.percentile(99.0), 990L, 1000L);
+        assertEquals(1000L, histogram.percentile(100.0));
+    }
+
+    public void testValuesOutOfRangeAreClamped() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5L);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2L, histogram.count());
+        assertEquals(0L, histogram.percentile(50.0));
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.max());
+    }
+
+    private static void assertBetween(long value, long min, long max) {
+        assertThat(value, greaterThanOrEqualTo(min));
+        assertThat(value, lessThanOrEqualTo(max));
+    }
+}